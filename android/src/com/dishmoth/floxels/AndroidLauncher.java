@@ -8,6 +8,7 @@ package com.dishmoth.floxels;
 
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
+import android.os.Build;
 import android.os.Bundle;
 
 import com.badlogic.gdx.backends.android.AndroidApplication;
@@ -23,7 +24,10 @@ public class AndroidLauncher extends AndroidApplication {
 		lockScreenOrientation();
 		AndroidApplicationConfiguration config = new AndroidApplicationConfiguration();
 		config.useWakelock = true;
-		initialize(new FloxelsGame(), config);
+		TaskRunner taskRunner = ( Build.VERSION.SDK_INT >= 21 )
+		                        ? new ForkJoinTaskRunner()
+		                        : new SerialTaskRunner();
+		initialize(new FloxelsGame(taskRunner), config);
 	}
   
   private void lockScreenOrientation() {
@@ -8,11 +8,15 @@ package com.dishmoth.floxels.android;
 
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
+import android.os.Build;
 import android.os.Bundle;
 
 import com.badlogic.gdx.backends.android.AndroidApplication;
 import com.badlogic.gdx.backends.android.AndroidApplicationConfiguration;
 import com.dishmoth.floxels.FloxelsGame;
+import com.dishmoth.floxels.ForkJoinTaskRunner;
+import com.dishmoth.floxels.SerialTaskRunner;
+import com.dishmoth.floxels.TaskRunner;
 
 // This launcher is a copy of the one in com.dishmoth.floxels.
 // That one is consistent with the standard libGDX set up.
@@ -25,7 +29,10 @@ public class AndroidLauncher extends AndroidApplication {
 		lockScreenOrientation();
 		AndroidApplicationConfiguration config = new AndroidApplicationConfiguration();
 		config.useWakelock = true;
-		initialize(new FloxelsGame(), config);
+		TaskRunner taskRunner = ( Build.VERSION.SDK_INT >= 21 )
+		                        ? new ForkJoinTaskRunner()
+		                        : new SerialTaskRunner();
+		initialize(new FloxelsGame(taskRunner), config);
 	}
   
   private void lockScreenOrientation() {
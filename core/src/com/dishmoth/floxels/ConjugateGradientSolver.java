@@ -0,0 +1,199 @@
+/*
+ *  ConjugateGradientSolver.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// solves for a flow's potential by preconditioned conjugate gradients
+// (the preconditioner is a symmetric Gauss-Seidel sweep either side of a
+// correction from coarser grids, see FlowCoarseGrid, built directly on
+// the top grid's cells; the coarser grids' W-cycle is not quite
+// symmetric, so the flexible (Polak-Ribiere) form of the method is used)
+public class ConjugateGradientSolver extends DenseSolver {
+
+  // iterations of the method in each cycle (see improve())
+  static private final int kIterationsPerCycle = 2;
+
+  // cycles used when the solution is produced from scratch
+  static private final int kNumColdCycles = 4;
+
+  // scaling of the correction from the coarser grids (preconditioner)
+  static private final float kCorrectionFactor = 1.0f;
+
+  // the coarser grids used by the preconditioner (rebuilt whenever walls
+  // open or close)
+  private FlowCoarseGrid mCoarseGrid;
+
+  // which cell of the coarser grid each top grid cell is merged into
+  // (indexed as iy*mXSize + ix, or -1 for a cell with no openings)
+  private final int mCoarseCell[];
+
+  // vectors for the method (residual, preconditioned residual, search
+  // direction, and the operator applied to the search direction)
+  protected final float mResidual[],
+                        mPrecond[],
+                        mDirection[],
+                        mProduct[];
+
+  // constructor
+  public ConjugateGradientSolver(Flow flow) {
+
+    super(flow);
+
+    mResidual  = new float[mData.length];
+    mPrecond   = new float[mData.length];
+    mDirection = new float[mData.length];
+    mProduct   = new float[mData.length];
+
+    mCoarseCell = new int[mXSize*mYSize];
+    buildCoarseGrid();
+
+  } // constructor
+
+  // rebuild the preconditioner after walls have opened or closed
+  @Override
+  protected void linksChanged() { buildCoarseGrid(); }
+
+  // produce a solution from scratch (a few cycles, starting from zero)
+  @Override
+  public void solve() {
+
+    reset();
+    prepare();
+    for ( int n = 0 ; n < kNumColdCycles ; n++ ) improve();
+
+  } // solve()
+
+  // improve the current solution by a few iterations of the method
+  // (the method restarts each cycle, since the source will have changed)
+  public void improve() {
+
+    // r = b - A*x, z = M^-1*r, p = z
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        mResidual[i] = mRhs[i] - multiply(mData, i);
+      }
+    }
+    precondition(mResidual, mPrecond);
+    System.arraycopy(mPrecond, 0, mDirection, 0, mData.length);
+    double rz = dot(mResidual, mPrecond);
+
+    for ( int iter = 0 ; iter < kIterationsPerCycle ; iter++ ) {
+      if ( rz <= 0.0 ) break;
+
+      multiply(mDirection, mProduct);
+      final double pAp = dot(mDirection, mProduct);
+      if ( pAp <= 0.0 ) break;
+      final float alpha = (float)(rz/pAp);
+
+      for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+        for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+          mData[i] += alpha*mDirection[i];
+          mResidual[i] -= alpha*mProduct[i];
+        }
+      }
+      if ( iter == kIterationsPerCycle-1 ) break;
+
+      // beta = z'.(r' - r)/(z.r), using r' - r = -alpha*A*p
+      precondition(mResidual, mPrecond);
+      final double rzNew = dot(mResidual, mPrecond),
+                   zAp = dot(mPrecond, mProduct);
+      final float beta = (float)Math.max(0.0, -alpha*zAp/rz);
+      for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+        for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+          mDirection[i] = mPrecond[i] + beta*mDirection[i];
+        }
+      }
+      rz = rzNew;
+    }
+
+    normalizeSolution();
+
+  } // improve()
+
+  // apply the preconditioner to a residual vector (z = M^-1*r)
+  protected void precondition(float r[], float z[]) {
+
+    final int s = mStride;
+
+    for ( int i = 0 ; i < z.length ; i++ ) z[i] = 0.0f;
+
+    // forward Gauss-Seidel sweep
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        final float c = mCoupleSum[i];
+        if ( c == 0.0f ) continue;
+        z[i] = ( r[i] + mLinkEast[i]*z[i+1] + mLinkEast[i-1]*z[i-1]
+                      + mLinkSouth[i]*z[i+s] + mLinkSouth[i-s]*z[i-s] )/c;
+      }
+    }
+
+    // correction from the coarser grids (which solve L*e = source)
+    if ( mCoarseGrid != null ) {
+      final float coarseSource[] = mCoarseGrid.source();
+      for ( int k = 0 ; k < coarseSource.length ; k++ ) coarseSource[k] = 0.0f;
+      for ( int iy = 0, k = 0 ; iy < mYSize ; iy++ ) {
+        for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++, k++ ) {
+          if ( mCoarseCell[k] < 0 ) continue;
+          coarseSource[mCoarseCell[k]] -= r[i] - multiply(z, i);
+        }
+      }
+      mCoarseGrid.solve();
+      final float coarseData[] = mCoarseGrid.data();
+      for ( int iy = 0, k = 0 ; iy < mYSize ; iy++ ) {
+        for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++, k++ ) {
+          if ( mCoarseCell[k] < 0 ) continue;
+          z[i] += kCorrectionFactor*coarseData[mCoarseCell[k]];
+        }
+      }
+    }
+
+    // backward Gauss-Seidel sweep
+    for ( int iy = mYSize-1 ; iy >= 0 ; iy-- ) {
+      for ( int ix = mXSize-1, i = index(ix, iy) ; ix >= 0 ; ix--, i-- ) {
+        final float c = mCoupleSum[i];
+        if ( c == 0.0f ) continue;
+        z[i] = ( r[i] + mLinkEast[i]*z[i+1] + mLinkEast[i-1]*z[i-1]
+                      + mLinkSouth[i]*z[i+s] + mLinkSouth[i-s]*z[i-s] )/c;
+      }
+    }
+
+  } // precondition()
+
+  // set up the coarser grids used by the preconditioner
+  // (each top grid cell is coupled to the neighbours it opens on to)
+  private void buildCoarseGrid() {
+
+    final int num = mXSize*mYSize;
+
+    final int   cellX[]      = new int[num],
+                cellY[]      = new int[num],
+                linkStart[]  = new int[num+1],
+                linkCell[]   = new int[4*num];
+    final float linkWeight[] = new float[4*num],
+                area[]       = new float[num];
+
+    int numLinks = 0;
+    for ( int iy = 0, k = 0 ; iy < mYSize ; iy++ ) {
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++, k++ ) {
+        cellX[k] = ix;
+        cellY[k] = iy;
+        linkStart[k] = numLinks;
+        if ( mLinkEast[i-1] != 0.0f )        linkCell[numLinks++] = k-1;
+        if ( mLinkEast[i] != 0.0f )          linkCell[numLinks++] = k+1;
+        if ( mLinkSouth[i-mStride] != 0.0f ) linkCell[numLinks++] = k-mXSize;
+        if ( mLinkSouth[i] != 0.0f )         linkCell[numLinks++] = k+mXSize;
+        area[k] = 1.0f;
+      }
+    }
+    linkStart[num] = numLinks;
+    for ( int n = 0 ; n < numLinks ; n++ ) linkWeight[n] = 1.0f;
+
+    mCoarseGrid = new FlowCoarseGrid(cellX, cellY, linkStart, linkCell,
+                                     linkWeight, area, mCoarseCell);
+
+  } // buildCoarseGrid()
+
+} // class ConjugateGradientSolver
@@ -0,0 +1,330 @@
+/*
+ *  CosineTransform.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// discrete cosine transform (DCT-II) and its inverse, for a fixed length
+// (X[k] = sum over n of x[n]*cos(pi*k*(2n+1)/2N), which diagonalizes the
+// cell-centred Laplacian with walls at both ends)
+// (calculated with a complex FFT of the same length, after reordering the
+// values; the FFT is mixed-radix so that any length can be used, although
+// it is slow for lengths with big prime factors)
+public class CosineTransform {
+
+  // length of the transform
+  private final int mLength;
+
+  // factors of the length (the radix of each pass of the FFT)
+  private final int mFactors[];
+
+  // cos and sin of 2*pi*t/length for t = 0 to length-1
+  private final float mCos[],
+                      mSin[];
+
+  // cos and sin of pi*k/(2*length), for shifting the FFT output
+  private final float mShiftCos[],
+                      mShiftSin[];
+
+  // working space (real and imaginary parts, two sets for the FFT passes)
+  private final float mRe[],
+                      mIm[],
+                      mWorkRe[],
+                      mWorkIm[];
+
+  // constructor
+  public CosineTransform(int length) {
+
+    assert( length > 0 );
+    mLength = length;
+
+    int numFactors = 0;
+    int factors[] = new int[32];
+    int remaining = length;
+    while ( remaining % 4 == 0 ) {
+      factors[numFactors++] = 4;
+      remaining /= 4;
+    }
+    for ( int f = 2 ; remaining > 1 ; f++ ) {
+      while ( remaining % f == 0 ) {
+        factors[numFactors++] = f;
+        remaining /= f;
+      }
+    }
+    mFactors = new int[numFactors];
+    System.arraycopy(factors, 0, mFactors, 0, numFactors);
+
+    mCos = new float[length];
+    mSin = new float[length];
+    mShiftCos = new float[length];
+    mShiftSin = new float[length];
+    for ( int t = 0 ; t < length ; t++ ) {
+      final double theta = 2.0*Math.PI*t/length,
+                   shift = 0.5*Math.PI*t/length;
+      mCos[t] = (float)Math.cos(theta);
+      mSin[t] = (float)Math.sin(theta);
+      mShiftCos[t] = (float)Math.cos(shift);
+      mShiftSin[t] = (float)Math.sin(shift);
+    }
+
+    mRe = new float[length];
+    mIm = new float[length];
+    mWorkRe = new float[length];
+    mWorkIm = new float[length];
+
+  } // constructor
+
+  // length of the transform
+  public int length() { return mLength; }
+
+  // replace values with their transform (the values are taken from the
+  // array at positions start, start+step, start+2*step, ...)
+  public void forward(float data[], int start, int step) {
+
+    final int n = mLength;
+
+    for ( int j = 0 ; 2*j < n ; j++ ) {
+      mRe[j] = data[start + 2*j*step];
+      mIm[j] = 0.0f;
+    }
+    for ( int j = 0 ; 2*j+1 < n ; j++ ) {
+      mRe[n-1-j] = data[start + (2*j+1)*step];
+      mIm[n-1-j] = 0.0f;
+    }
+
+    fft();
+
+    for ( int k = 0 ; k < n ; k++ ) {
+      data[start + k*step] = mRe[k]*mShiftCos[k] + mIm[k]*mShiftSin[k];
+    }
+
+  } // forward(data, start, step)
+
+  // replace transformed values with the original values (see forward())
+  public void inverse(float data[], int start, int step) {
+
+    final int n = mLength;
+
+    // undo the shift, and conjugate so that the FFT runs backwards
+    for ( int k = 0 ; k < n ; k++ ) {
+      final float x = data[start + k*step],
+                  y = ( k == 0 ) ? 0.0f : data[start + (n-k)*step];
+      mRe[k] = x*mShiftCos[k] + y*mShiftSin[k];
+      mIm[k] = y*mShiftCos[k] - x*mShiftSin[k];
+    }
+
+    fft();
+
+    final float scale = 1.0f/n;
+    for ( int j = 0 ; 2*j < n ; j++ ) {
+      data[start + 2*j*step] = scale*mRe[j];
+    }
+    for ( int j = 0 ; 2*j+1 < n ; j++ ) {
+      data[start + (2*j+1)*step] = scale*mRe[n-1-j];
+    }
+
+  } // inverse(data, start, step)
+
+  // transform two sets of values at once (see forward())
+  // (one complex FFT does for both, with one set as the real part and the
+  // other as the imaginary part, since their transforms can be separated)
+  public void forward(float data[], int start1, int start2, int step) {
+
+    final int n = mLength;
+
+    for ( int j = 0 ; 2*j < n ; j++ ) {
+      mRe[j] = data[start1 + 2*j*step];
+      mIm[j] = data[start2 + 2*j*step];
+    }
+    for ( int j = 0 ; 2*j+1 < n ; j++ ) {
+      mRe[n-1-j] = data[start1 + (2*j+1)*step];
+      mIm[n-1-j] = data[start2 + (2*j+1)*step];
+    }
+
+    fft();
+
+    for ( int k = 0 ; k < n ; k++ ) {
+      final int m = ( k == 0 ) ? 0 : n-k;
+      final float re1 = 0.5f*( mRe[k] + mRe[m] ),
+                  im1 = 0.5f*( mIm[k] - mIm[m] ),
+                  re2 = 0.5f*( mIm[k] + mIm[m] ),
+                  im2 = 0.5f*( mRe[m] - mRe[k] );
+      data[start1 + k*step] = re1*mShiftCos[k] + im1*mShiftSin[k];
+      data[start2 + k*step] = re2*mShiftCos[k] + im2*mShiftSin[k];
+    }
+
+  } // forward(data, start1, start2, step)
+
+  // undo the transform of two sets of values at once (see inverse())
+  public void inverse(float data[], int start1, int start2, int step) {
+
+    final int n = mLength;
+
+    // combine the unshifted spectra as V1 + i*V2, conjugated
+    for ( int k = 0 ; k < n ; k++ ) {
+      final float x1 = data[start1 + k*step],
+                  y1 = ( k == 0 ) ? 0.0f : data[start1 + (n-k)*step],
+                  x2 = data[start2 + k*step],
+                  y2 = ( k == 0 ) ? 0.0f : data[start2 + (n-k)*step];
+      final float c = mShiftCos[k],
+                  s = mShiftSin[k];
+      final float re1 = x1*c + y1*s, im1 = x1*s - y1*c,
+                  re2 = x2*c + y2*s, im2 = x2*s - y2*c;
+      mRe[k] = re1 - im2;
+      mIm[k] = -( im1 + re2 );
+    }
+
+    fft();
+
+    final float scale = 1.0f/n;
+    for ( int j = 0 ; 2*j < n ; j++ ) {
+      data[start1 + 2*j*step] = scale*mRe[j];
+      data[start2 + 2*j*step] = -scale*mIm[j];
+    }
+    for ( int j = 0 ; 2*j+1 < n ; j++ ) {
+      data[start1 + (2*j+1)*step] = scale*mRe[n-1-j];
+      data[start2 + (2*j+1)*step] = -scale*mIm[n-1-j];
+    }
+
+  } // inverse(data, start1, start2, step)
+
+  // fast Fourier transform of the values in mRe and mIm
+  // (exponent -2*pi*i*j*k/length; Stockham's method, so each pass reads
+  // one pair of arrays and writes the other, ending in the natural order)
+  private void fft() {
+
+    final int n = mLength;
+    float xRe[] = mRe,
+          xIm[] = mIm,
+          yRe[] = mWorkRe,
+          yIm[] = mWorkIm;
+
+    int stride = 1;
+    for ( int f = 0 ; f < mFactors.length ; f++ ) {
+      final int radix = mFactors[f],
+                m = n/(radix*stride);
+      if ( radix == 2 ) {
+        fftPass2(xRe, xIm, yRe, yIm, m, stride);
+      } else if ( radix == 4 ) {
+        fftPass4(xRe, xIm, yRe, yIm, m, stride);
+      } else {
+        fftPass(xRe, xIm, yRe, yIm, radix, m, stride);
+      }
+      float temp[] = xRe; xRe = yRe; yRe = temp;
+      temp = xIm; xIm = yIm; yIm = temp;
+      stride *= radix;
+    }
+
+    if ( xRe != mRe ) {
+      System.arraycopy(xRe, 0, mRe, 0, n);
+      System.arraycopy(xIm, 0, mIm, 0, n);
+    }
+
+  } // fft()
+
+  // one pass of the FFT for a general radix
+  // (the sub-sequences of length m*radix, interleaved with the given
+  // stride, are each split into radix sub-sequences of length m)
+  private void fftPass(float xRe[], float xIm[], float yRe[], float yIm[],
+                       int radix, int m, int stride) {
+
+    final int n = mLength,
+              rootStep = n/radix;
+
+    for ( int p = 0 ; p < m ; p++ ) {
+      for ( int q = 0 ; q < stride ; q++ ) {
+        for ( int k = 0 ; k < radix ; k++ ) {
+          float re = 0.0f,
+                im = 0.0f;
+          for ( int j = 0, root = 0 ; j < radix ; j++ ) {
+            final int i = q + stride*(p + j*m);
+            final float c = mCos[root],
+                        s = mSin[root];
+            re += xRe[i]*c + xIm[i]*s;
+            im += xIm[i]*c - xRe[i]*s;
+            root += k*rootStep;
+            if ( root >= n ) root -= n;
+          }
+          final int t = (p*k*stride) % n;
+          final float c = mCos[t],
+                      s = mSin[t];
+          final int o = q + stride*(radix*p + k);
+          yRe[o] = re*c + im*s;
+          yIm[o] = im*c - re*s;
+        }
+      }
+    }
+
+  } // fftPass()
+
+  // one pass of the FFT with radix 2
+  private void fftPass2(float xRe[], float xIm[], float yRe[], float yIm[],
+                        int m, int stride) {
+
+    for ( int p = 0 ; p < m ; p++ ) {
+      final int t = p*stride;
+      final float c = mCos[t],
+                  s = mSin[t];
+      for ( int q = 0 ; q < stride ; q++ ) {
+        final int i0 = q + stride*p,
+                  i1 = i0 + stride*m,
+                  o0 = q + stride*(2*p),
+                  o1 = o0 + stride;
+        final float aRe = xRe[i0], aIm = xIm[i0],
+                    bRe = xRe[i1], bIm = xIm[i1];
+        yRe[o0] = aRe + bRe;
+        yIm[o0] = aIm + bIm;
+        final float dRe = aRe - bRe,
+                    dIm = aIm - bIm;
+        yRe[o1] = dRe*c + dIm*s;
+        yIm[o1] = dIm*c - dRe*s;
+      }
+    }
+
+  } // fftPass2()
+
+  // one pass of the FFT with radix 4
+  private void fftPass4(float xRe[], float xIm[], float yRe[], float yIm[],
+                        int m, int stride) {
+
+    final int n = mLength;
+
+    for ( int p = 0 ; p < m ; p++ ) {
+      final int t1 = p*stride,
+                t2 = (2*t1) % n,
+                t3 = (3*t1) % n;
+      final float c1 = mCos[t1], s1 = mSin[t1],
+                  c2 = mCos[t2], s2 = mSin[t2],
+                  c3 = mCos[t3], s3 = mSin[t3];
+      for ( int q = 0 ; q < stride ; q++ ) {
+        final int i0 = q + stride*p,
+                  i1 = i0 + stride*m,
+                  i2 = i1 + stride*m,
+                  i3 = i2 + stride*m,
+                  o0 = q + stride*(4*p);
+        final float aRe = xRe[i0] + xRe[i2], aIm = xIm[i0] + xIm[i2],
+                    bRe = xRe[i0] - xRe[i2], bIm = xIm[i0] - xIm[i2],
+                    cRe = xRe[i1] + xRe[i3], cIm = xIm[i1] + xIm[i3],
+                    dRe = xRe[i1] - xRe[i3], dIm = xIm[i1] - xIm[i3];
+        yRe[o0] = aRe + cRe;
+        yIm[o0] = aIm + cIm;
+        // k=1: b - i*d
+        final float r1 = bRe + dIm, m1 = bIm - dRe;
+        yRe[o0+stride] = r1*c1 + m1*s1;
+        yIm[o0+stride] = m1*c1 - r1*s1;
+        // k=2: a - c
+        final float r2 = aRe - cRe, m2 = aIm - cIm;
+        yRe[o0+2*stride] = r2*c2 + m2*s2;
+        yIm[o0+2*stride] = m2*c2 - r2*s2;
+        // k=3: b + i*d
+        final float r3 = bRe - dIm, m3 = bIm + dRe;
+        yRe[o0+3*stride] = r3*c3 + m3*s3;
+        yIm[o0+3*stride] = m3*c3 - r3*s3;
+      }
+    }
+
+  } // fftPass4()
+
+} // class CosineTransform
@@ -0,0 +1,116 @@
+/*
+ *  CosineTransformSolver.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// solves for a flow's potential using discrete cosine transforms
+// (the transform diagonalizes the equations for an open room, with walls
+// only around the edge of the grid, so then the solution is direct; if
+// there are walls inside the room then the direct solve for the open room
+// is used as the preconditioner for conjugate gradients instead)
+public class CosineTransformSolver extends ConjugateGradientSolver {
+
+  // transforms along the rows and the columns of the grid
+  private final CosineTransform mRowTransform,
+                                mColumnTransform;
+
+  // eigenvalues of the equations for the open room, for each combination
+  // of row and column frequencies (indexed as ky*mXSize + kx)
+  private final float mEigenvalues[];
+
+  // working space for the transforms (indexed as iy*mXSize + ix)
+  private final float mWork[];
+
+  // constructor
+  public CosineTransformSolver(Flow flow) {
+
+    super(flow);
+
+    mRowTransform = new CosineTransform(mXSize);
+    mColumnTransform = new CosineTransform(mYSize);
+
+    mEigenvalues = new float[mXSize*mYSize];
+    for ( int ky = 0, k = 0 ; ky < mYSize ; ky++ ) {
+      final double ey = 2.0 - 2.0*Math.cos(Math.PI*ky/mYSize);
+      for ( int kx = 0 ; kx < mXSize ; kx++, k++ ) {
+        final double ex = 2.0 - 2.0*Math.cos(Math.PI*kx/mXSize);
+        mEigenvalues[k] = (float)(ex + ey);
+      }
+    }
+
+    mWork = new float[mXSize*mYSize];
+
+  } // constructor
+
+  // produce a solution from scratch
+  // (one cycle if the solve is direct, otherwise as for the base class)
+  @Override
+  public void solve() {
+
+    if ( mOpenRoom ) {
+      reset();
+      prepare();
+      improve();
+    } else {
+      super.solve();
+    }
+
+  } // solve()
+
+  // improve the current solution
+  // (the solution is just replaced if the room is open)
+  @Override
+  public void improve() {
+
+    if ( mOpenRoom ) {
+      precondition(mRhs, mData);
+      normalizeSolution();
+    } else {
+      super.improve();
+    }
+
+  } // improve()
+
+  // solve the equations for the open room (z = A^-1*r, ignoring walls
+  // inside the room, and with the constant part of the solution zero)
+  @Override
+  protected void precondition(float r[], float z[]) {
+
+    for ( int k = 0 ; k < mYSize ; k++ ) {
+      System.arraycopy(r, index(0, k), mWork, k*mXSize, mXSize);
+    }
+
+    // (the rows and columns are transformed in pairs, see CosineTransform)
+    int iy = 0;
+    for ( ; iy+1 < mYSize ; iy += 2 ) {
+      mRowTransform.forward(mWork, iy*mXSize, (iy+1)*mXSize, 1);
+    }
+    if ( iy < mYSize ) mRowTransform.forward(mWork, iy*mXSize, 1);
+    int ix = 0;
+    for ( ; ix+1 < mXSize ; ix += 2 ) {
+      mColumnTransform.forward(mWork, ix, ix+1, mXSize);
+    }
+    if ( ix < mXSize ) mColumnTransform.forward(mWork, ix, mXSize);
+
+    mWork[0] = 0.0f;
+    for ( int k = 1 ; k < mWork.length ; k++ ) mWork[k] /= mEigenvalues[k];
+
+    for ( ix = 0 ; ix+1 < mXSize ; ix += 2 ) {
+      mColumnTransform.inverse(mWork, ix, ix+1, mXSize);
+    }
+    if ( ix < mXSize ) mColumnTransform.inverse(mWork, ix, mXSize);
+    for ( iy = 0 ; iy+1 < mYSize ; iy += 2 ) {
+      mRowTransform.inverse(mWork, iy*mXSize, (iy+1)*mXSize, 1);
+    }
+    if ( iy < mYSize ) mRowTransform.inverse(mWork, iy*mXSize, 1);
+
+    for ( int k = 0 ; k < mYSize ; k++ ) {
+      System.arraycopy(mWork, k*mXSize, z, index(0, k), mXSize);
+    }
+
+  } // precondition()
+
+} // class CosineTransformSolver
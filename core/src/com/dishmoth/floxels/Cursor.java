@@ -435,7 +435,7 @@ public class Cursor extends Sprite implements SourceTerm {
   
   // attract and repel floxels
   @Override
-  public void addToSource(int floxelType, float[][] source, int refineFactor) {
+  public void addToSource(int floxelType, Flow flow) {
 
     float strength = 0.0f;
     if ( floxelType == mFloxelType ) {
@@ -451,16 +451,17 @@ public class Cursor extends Sprite implements SourceTerm {
     }
     if ( strength == 0.0f ) return;
 
+    final int refineFactor = flow.refineFactor();
     final int range = Math.round(kAttractRange*refineFactor);
     final int ix = (int)Math.floor(mXPos*refineFactor),
               iy = (int)Math.floor(mYPos*refineFactor);
 
     for ( int dy = -range ; dy <= +range ; dy++ ) {
       for ( int dx = -range ; dx <= +range ; dx++ ) {
-        if ( ix+dx < 0 || ix+dx >= source[0].length ||
-             iy+dy < 0 || iy+dy >= source.length ) continue;
+        if ( ix+dx < 0 || ix+dx >= flow.topXSize() ||
+             iy+dy < 0 || iy+dy >= flow.topYSize() ) continue;
         float scale = Math.max(Math.abs(dx), Math.abs(dy))/(range+1.0f);
-        source[iy+dy][ix+dx] += scale*strength;
+        flow.addToSource(ix+dx, iy+dy, scale*strength);
       }
     }
     
@@ -0,0 +1,415 @@
+/*
+ *  DenseSolver.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// base class for solvers that work on the whole of a flow's top grid
+// (the grid is stored as one array with a ring of padding cells; the
+// desired solution levels are ignored, so every block is always solved)
+// (the equations are written as A*x = b, where A is the negated Laplacian
+// scaled by the cell area, so A is positive semi-definite and symmetric;
+// the source is projected so that it balances over each connected region
+// of the maze, otherwise the equations would have no solution)
+abstract public class DenseSolver implements PoissonSolver {
+
+  // the flow being solved for
+  protected final Flow mFlow;
+
+  // the base grid (no refinement)
+  protected final int mBaseXSize,
+                      mBaseYSize;
+
+  // refinement factor and level for the top grid
+  protected final int mRefineFactor,
+                      mRefineLevel;
+
+  // size of the top grid
+  protected final int mXSize,
+                      mYSize;
+
+  // distance between rows in the arrays (see index())
+  protected final int mStride;
+
+  // current solution on the grid
+  protected final float mData[];
+
+  // source term on the grid
+  protected final float mSource[];
+
+  // whether each cell is open to the cell to its east, and to the cell
+  // to its south (1 if open, 0 if not; zero for the padding cells)
+  protected final float mLinkEast[],
+                        mLinkSouth[];
+
+  // number of open neighbours of each cell
+  protected final float mCoupleSum[];
+
+  // contribution of the in-flows at the walls to each cell's equation
+  protected final float mWallTerm[];
+
+  // right-hand side of the equations (see prepare())
+  protected final float mRhs[];
+
+  // true if there are no walls inside the grid (just around the edge)
+  protected boolean mOpenRoom;
+
+  // which connected region each base block belongs to
+  private final int mBlockRegion[][];
+
+  // total source and number of cells for each region (working space)
+  private double mRegionSum[];
+  private int    mRegionCount[];
+
+  // constructor
+  public DenseSolver(Flow flow) {
+
+    mFlow = flow;
+    mBaseXSize = flow.baseXSize();
+    mBaseYSize = flow.baseYSize();
+    mRefineFactor = flow.refineFactor();
+    mRefineLevel = flow.refineLevel();
+    mXSize = mBaseXSize*mRefineFactor;
+    mYSize = mBaseYSize*mRefineFactor;
+    mStride = mXSize + 2;
+
+    final int length = mStride*(mYSize + 2);
+    mData      = new float[length];
+    mSource    = new float[length];
+    mLinkEast  = new float[length];
+    mLinkSouth = new float[length];
+    mCoupleSum = new float[length];
+    mWallTerm  = new float[length];
+    mRhs       = new float[length];
+
+    mBlockRegion = new int[mBaseYSize][mBaseXSize];
+
+    buildLinks();
+    buildWallTerms();
+
+  } // constructor
+
+  // called after the links between cells have changed (see buildLinks())
+  abstract protected void linksChanged();
+
+  // bring the equations up to date after the walls have changed
+  public void wallsChanged(boolean openingsChanged) {
+
+    if ( openingsChanged ) {
+      buildLinks();
+      linksChanged();
+    }
+    buildWallTerms();
+
+  } // wallsChanged()
+
+  // bring the equations up to date after some openings have changed
+  // (the links are rebuilt for every cell anyway)
+  public void openingsChanged(boolean blocks[]) { wallsChanged(true); }
+
+  // set the current solution to zero
+  public void reset() {
+    for ( int i = 0 ; i < mData.length ; i++ ) mData[i] = 0.0f;
+  } // reset()
+
+  // set the source term to zero
+  public void clearSource() {
+    for ( int i = 0 ; i < mSource.length ; i++ ) mSource[i] = 0.0f;
+  } // clearSource()
+
+  // increase the source term for a top grid cell
+  public void addToSource(int ix, int iy, float value) {
+    mSource[index(ix, iy)] += value;
+  } // addToSource()
+
+  // source term for a top grid cell
+  public float source(int ix, int iy) { return mSource[index(ix, iy)]; }
+
+  // potential value for a top grid cell
+  public float data(int ix, int iy) { return mData[index(ix, iy)]; }
+
+  // calculate the right-hand side of the equations from the source term
+  // (the total over each connected region is removed, spread evenly)
+  public void prepare() {
+
+    final float area = 1.0f/(mRefineFactor*mRefineFactor);
+
+    for ( int r = 0 ; r < mRegionSum.length ; r++ ) mRegionSum[r] = 0.0;
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      final int regions[] = mBlockRegion[iy >> mRefineLevel];
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        final float b = -( area*mSource[i] + mWallTerm[i] );
+        mRhs[i] = b;
+        mRegionSum[regions[ix >> mRefineLevel]] += b;
+      }
+    }
+
+    for ( int r = 0 ; r < mRegionSum.length ; r++ ) {
+      mRegionSum[r] /= mRegionCount[r];
+    }
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      final int regions[] = mBlockRegion[iy >> mRefineLevel];
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        mRhs[i] -= (float)mRegionSum[regions[ix >> mRefineLevel]];
+      }
+    }
+
+  } // prepare()
+
+  // produce a solution from scratch (one cycle, starting from zero)
+  public void solve() {
+
+    reset();
+    prepare();
+    improve();
+
+  } // solve()
+
+  // size of the residual (in the same units as the source term, and with
+  // its mean removed, as for FlowGrid.residual())
+  public float residual() {
+
+    final float scale = mRefineFactor*mRefineFactor;
+    double sum = 0.0,
+           sumSq = 0.0;
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        final float r = scale*( multiply(mData, i)
+                                + mSource[i]/scale + mWallTerm[i] );
+        sum += r;
+        sumSq += r*r;
+      }
+    }
+
+    final int num = mXSize*mYSize;
+    final double mean = sum/num;
+    return (float)Math.sqrt( Math.max(0.0, sumSq/num - mean*mean) );
+
+  } // residual()
+
+  // access to the solution data (see index())
+  public float[] data() { return mData; }
+
+  // position of a cell in the arrays
+  public int index(int ix, int iy) { return (iy+1)*mStride + (ix+1); }
+
+  // distance between rows in the arrays
+  public int stride() { return mStride; }
+
+  // distance between neighbouring cells in a row of the data array
+  public int step() { return 1; }
+
+  // every block is stored
+  public boolean hasBlock(int kx, int ky) { return true; }
+
+  // copy the values at the edges of the grid into the padding cells
+  public void updateHalos() {
+
+    final int top = index(0, 0),
+              bottom = index(0, mYSize-1);
+    System.arraycopy(mData, top, mData, top-mStride, mXSize);
+    System.arraycopy(mData, bottom, mData, bottom+mStride, mXSize);
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      final int i = index(0, iy);
+      mData[i-1] = mData[i];
+      mData[i+mXSize] = mData[i+mXSize-1];
+    }
+
+  } // updateHalos()
+
+  // value of the operator A applied to a vector, for one cell
+  protected float multiply(float x[], int i) {
+
+    return mCoupleSum[i]*x[i]
+           - mLinkEast[i]*x[i+1] - mLinkEast[i-1]*x[i-1]
+           - mLinkSouth[i]*x[i+mStride] - mLinkSouth[i-mStride]*x[i-mStride];
+
+  } // multiply(x, i)
+
+  // apply the operator A to a vector over the whole grid
+  protected void multiply(float x[], float out[]) {
+
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        out[i] = multiply(x, i);
+      }
+    }
+
+  } // multiply(x, out)
+
+  // dot product of two vectors over the grid
+  protected double dot(float x[], float y[]) {
+
+    double sum = 0.0;
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      float rowSum = 0.0f;
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        rowSum += x[i]*y[i];
+      }
+      sum += rowSum;
+    }
+    return sum;
+
+  } // dot()
+
+  // shift the solution so that it averages to zero over each region
+  // (the equations say nothing about the level of the potential)
+  protected void normalizeSolution() {
+
+    for ( int r = 0 ; r < mRegionSum.length ; r++ ) mRegionSum[r] = 0.0;
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      final int regions[] = mBlockRegion[iy >> mRefineLevel];
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        mRegionSum[regions[ix >> mRefineLevel]] += mData[i];
+      }
+    }
+
+    for ( int r = 0 ; r < mRegionSum.length ; r++ ) {
+      mRegionSum[r] /= mRegionCount[r];
+    }
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      final int regions[] = mBlockRegion[iy >> mRefineLevel];
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        mData[i] -= (float)mRegionSum[regions[ix >> mRefineLevel]];
+      }
+    }
+
+  } // normalizeSolution()
+
+  // work out which cells are open to each other from the walls, and
+  // which connected region each block belongs to
+  // (openings at the edge of the grid are treated as walls)
+  private void buildLinks() {
+
+    final float baseWalls[][][] = mFlow.solverWalls();
+    final int last = mRefineFactor-1;
+
+    for ( int i = 0 ; i < mLinkEast.length ; i++ ) {
+      mLinkEast[i] = mLinkSouth[i] = mCoupleSum[i] = 0.0f;
+    }
+
+    mOpenRoom = true;
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      final int ky = ( iy >> mRefineLevel );
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        final int kx = ( ix >> mRefineLevel );
+        final float walls[] = baseWalls[ky][kx];
+        if ( ix < mXSize-1 ) {
+          final boolean open = ( (ix & last) != last ||
+                                 walls[Env.EAST] == Flow.OPEN );
+          if ( open ) mLinkEast[i] = 1.0f;
+          else        mOpenRoom = false;
+        }
+        if ( iy < mYSize-1 ) {
+          final boolean open = ( (iy & last) != last ||
+                                 walls[Env.SOUTH] == Flow.OPEN );
+          if ( open ) mLinkSouth[i] = 1.0f;
+          else        mOpenRoom = false;
+        }
+      }
+    }
+
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        mCoupleSum[i] = mLinkEast[i] + mLinkEast[i-1]
+                      + mLinkSouth[i] + mLinkSouth[i-mStride];
+      }
+    }
+
+    findRegions();
+
+  } // buildLinks()
+
+  // label the connected regions of the base grid (flood fill)
+  private void findRegions() {
+
+    final float baseWalls[][][] = mFlow.solverWalls();
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) mBlockRegion[ky][kx] = -1;
+    }
+
+    int numRegions = 0;
+    int stack[] = new int[mBaseXSize*mBaseYSize];
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        if ( mBlockRegion[ky][kx] >= 0 ) continue;
+        int top = 0;
+        stack[top++] = ky*mBaseXSize + kx;
+        mBlockRegion[ky][kx] = numRegions;
+        while ( top > 0 ) {
+          final int k = stack[--top],
+                    x = k % mBaseXSize,
+                    y = k / mBaseXSize;
+          final float walls[] = baseWalls[y][x];
+          if ( walls[Env.WEST] == Flow.OPEN && x > 0 ) {
+            top = addToRegion(x-1, y, numRegions, stack, top);
+          }
+          if ( walls[Env.EAST] == Flow.OPEN && x < mBaseXSize-1 ) {
+            top = addToRegion(x+1, y, numRegions, stack, top);
+          }
+          if ( walls[Env.NORTH] == Flow.OPEN && y > 0 ) {
+            top = addToRegion(x, y-1, numRegions, stack, top);
+          }
+          if ( walls[Env.SOUTH] == Flow.OPEN && y < mBaseYSize-1 ) {
+            top = addToRegion(x, y+1, numRegions, stack, top);
+          }
+        }
+        numRegions++;
+      }
+    }
+
+    mRegionSum = new double[numRegions];
+    mRegionCount = new int[numRegions];
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        mRegionCount[mBlockRegion[ky][kx]] += mRefineFactor*mRefineFactor;
+      }
+    }
+
+  } // findRegions()
+
+  // label a block as part of a region, unless it already is, and push it
+  // on to the stack (returns the new top of the stack)
+  private int addToRegion(int kx, int ky, int region, int stack[], int top) {
+
+    if ( mBlockRegion[ky][kx] >= 0 ) return top;
+    mBlockRegion[ky][kx] = region;
+    stack[top] = ky*mBaseXSize + kx;
+    return top+1;
+
+  } // addToRegion()
+
+  // work out the in-flow contributions to the equations
+  // (a wall acts as a ghost cell with value phi0 - delta*inFlow)
+  private void buildWallTerms() {
+
+    final float baseWalls[][][] = mFlow.solverWalls();
+    final int last = mRefineFactor-1;
+    final float delta = 1.0f/mRefineFactor;
+
+    for ( int iy = 0 ; iy < mYSize ; iy++ ) {
+      final int ky = ( iy >> mRefineLevel );
+      for ( int ix = 0, i = index(0, iy) ; ix < mXSize ; ix++, i++ ) {
+        final float walls[] = baseWalls[ky][ix >> mRefineLevel];
+        float term = 0.0f;
+        if ( (ix & last) == 0 && walls[Env.WEST] != Flow.OPEN ) {
+          term += walls[Env.WEST];
+        }
+        if ( (ix & last) == last && walls[Env.EAST] != Flow.OPEN ) {
+          term += walls[Env.EAST];
+        }
+        if ( (iy & last) == 0 && walls[Env.NORTH] != Flow.OPEN ) {
+          term += walls[Env.NORTH];
+        }
+        if ( (iy & last) == last && walls[Env.SOUTH] != Flow.OPEN ) {
+          term += walls[Env.SOUTH];
+        }
+        mWallTerm[i] = delta*term;
+      }
+    }
+
+  } // buildWallTerms()
+
+} // class DenseSolver
@@ -44,6 +44,20 @@ public class EndBlast extends Sprite implements SourceTerm {
   // how much longer the blast stays for
   private float mLifeSeconds;
 
+  // the shape of the repulsion (at unit strength)
+  // (its solution is cached, so only its strength is solved every tick)
+  private final FlowBasis.Pattern mPattern = new FlowBasis.Pattern() {
+    public void addToSource(Flow flow) { addRepulsion(flow, 1.0f); }
+  };
+  
+  // identifies the repulsion's solution in the cache
+  private final String mBasisKey;
+  
+  // the repulsion's solution, or null while it is solved in the background
+  // (it is only looked for in advance(), so the flows, which are updated
+  // in parallel, just read it)
+  private FlowBasis mBasis;
+
   // constructor
   public EndBlast(float x, float y, Floxels floxels) {
     
@@ -60,6 +74,11 @@ public class EndBlast extends Sprite implements SourceTerm {
     mStunRadius = 0.0f;
     mLifeSeconds = kLifeTimeSeconds;
 
+    mBasisKey = "EndBlast " + mXPos + " " + mYPos;
+    mBasis = null;
+    Flow flow = mFloxels.flow(0);
+    flow.basisCache().precomputeSource(mBasisKey, flow, mPattern);
+    
   } // constructor
   
   // expand the blast
@@ -75,6 +94,10 @@ public class EndBlast extends Sprite implements SourceTerm {
       newStoryEvents.add(new FloxelsStory.EventExitGame());
     }
 
+    if ( mBasis == null ) {
+      mBasis = mFloxels.flow(0).basisCache().readySourceBasis(mBasisKey);
+    }
+    
     final float dr = kStunSpeed*dt;
     mStunRadius += dr;
     
@@ -87,39 +110,52 @@ public class EndBlast extends Sprite implements SourceTerm {
   } // Sprite.advance()
 
   // add repulsion to the source terms
-  public void addToSource(int floxelType, float source[][], int refineFactor) {
+  // (as a precomputed solution once it is ready, see FlowBasis, and until
+  // then as a plain source)
+  public void addToSource(int floxelType, Flow flow) {
 
     final float fade = Math.min(1.0f, mLifeSeconds/kFadeTimeSeconds);
     final float strength = fade*kRepulsionStrength/16;
 
+    if ( mBasis != null ) {
+      flow.addBasis(mBasis, strength);
+    } else {
+      addRepulsion(flow, strength);
+    }
+    
+  } // SourceTerm.addToSource()
+
+  // add the repulsion pattern to the source
+  private void addRepulsion(Flow flow, float strength) {
+    
     final float d1 = kRepulsionDistance,
                 d2 = kRepulsionDistance/(float)Math.sqrt(2); 
     
-    addToSource(source, refineFactor, mXPos,    mYPos,    8*strength);
+    addToSource(flow, mXPos,    mYPos,    8*strength);
     
-    addToSource(source, refineFactor, mXPos+d1, mYPos,    strength);
-    addToSource(source, refineFactor, mXPos,    mYPos+d1, strength);
-    addToSource(source, refineFactor, mXPos-d1, mYPos,    strength);
-    addToSource(source, refineFactor, mXPos,    mYPos-d1, strength);
+    addToSource(flow, mXPos+d1, mYPos,    strength);
+    addToSource(flow, mXPos,    mYPos+d1, strength);
+    addToSource(flow, mXPos-d1, mYPos,    strength);
+    addToSource(flow, mXPos,    mYPos-d1, strength);
     
-    addToSource(source, refineFactor, mXPos+d2, mYPos+d2, strength);
-    addToSource(source, refineFactor, mXPos-d2, mYPos+d2, strength);
-    addToSource(source, refineFactor, mXPos+d2, mYPos-d2, strength);
-    addToSource(source, refineFactor, mXPos-d2, mYPos-d2, strength);
+    addToSource(flow, mXPos+d2, mYPos+d2, strength);
+    addToSource(flow, mXPos-d2, mYPos+d2, strength);
+    addToSource(flow, mXPos+d2, mYPos-d2, strength);
+    addToSource(flow, mXPos-d2, mYPos-d2, strength);
     
-  } // SourceTerm.addToSource()
+  } // addRepulsion()
 
   // add a single point to the source
-  private void addToSource(float source[][], int refineFactor, 
-                           float x, float y, float strength) {
+  private void addToSource(Flow flow, float x, float y, float strength) {
     
+    final int refineFactor = flow.refineFactor();
     int ix = (int)Math.floor( x*refineFactor ),
         iy = (int)Math.floor( y*refineFactor );
     
-    iy = Math.max(0, Math.min(source.length-1, iy));
-    ix = Math.max(0, Math.min(source[iy].length-1, ix));
+    iy = Math.max(0, Math.min(flow.topYSize()-1, iy));
+    ix = Math.max(0, Math.min(flow.topXSize()-1, ix));
     
-    source[iy][ix] += strength;
+    flow.addToSource(ix, iy, strength);
     
   } // addToSource()
   
@@ -36,6 +36,9 @@ public class Env {
   // frame rate to display (percentage of required rate)
   static private int kFrameRate = 0;
   
+  // number of floxels that the game supports (see Floxels)
+  static private int kMaxFloxels = 1000;
+  
   // label to use for debug logging
   static private final String kLogTag = "Floxels";
   
@@ -48,6 +51,12 @@ public class Env {
   static private Sounds       kSounds;
   static private Painter      kPainter;
   
+  // how jobs are shared between threads (if there are threads)
+  static private TaskRunner   kTaskRunner = new SerialTaskRunner();
+  
+  // inner loops of the flow solver (a platform may have a faster version)
+  static private FlowKernel   kFlowKernel = new FlowKernel();
+  
   // this sets up a global Env for the applet
   static public void initialize() {
   
@@ -95,6 +104,10 @@ public class Env {
   static public int gameOffsetX() { return (Gdx.graphics.getWidth()-gameWidth())/2; }
   static public int gameOffsetY() { return (Gdx.graphics.getHeight()-gameHeight())/2; }
 
+  // the floxel capacity (set before the game starts)
+  static public void setMaxFloxels(int num) { kMaxFloxels = num; }
+  static public int maxFloxels() { return kMaxFloxels; }
+
   // measured frame rate
   static public void setFrameRate(int percentage) { kFrameRate = percentage; }
   static public int frameRate() { return kFrameRate; }
@@ -125,6 +138,24 @@ public class Env {
   // collection of classes for drawing stuff
   static public Painter painter() { return kPainter; }
   
+  // runs jobs, possibly in parallel
+  static public TaskRunner tasks() { return kTaskRunner; }
+  
+  // change how jobs are run (the default is one at a time)
+  static public void setTaskRunner(TaskRunner runner) { 
+    assert( runner != null );
+    kTaskRunner = runner; 
+  } // setTaskRunner()
+  
+  // inner loops of the flow solver
+  static public FlowKernel flowKernel() { return kFlowKernel; }
+  
+  // change the inner loops of the flow solver (the default is plain Java)
+  static public void setFlowKernel(FlowKernel kernel) { 
+    assert( kernel != null );
+    kFlowKernel = kernel; 
+  } // setFlowKernel()
+  
   // end the game, close the window/shut the app
   static public void exit() { Gdx.app.exit(); }
 
@@ -158,6 +189,9 @@ public class Env {
   static public boolean randomBoolean() { 
     return kRandom.nextBoolean(); 
   } // randomBoolean()
+  static public Random random() { // the generator itself, to pass on
+    return kRandom;
+  } // random()
 
   // assorted modulo-type functions
   static public int fold(int a, int b) {
@@ -6,6 +6,8 @@
 
 package com.dishmoth.floxels;
 
+import com.badlogic.gdx.utils.TimeUtils;
+
 // class for generating flow field
 public class Flow {
 
@@ -14,6 +16,26 @@ public class Flow {
     public float x=0.0f, y=0.0f;
   } // class Flow.Vel
 
+  // simple class for reporting on the progress of the solver
+  static public class SolveStats {
+    public int   iterations = 0;
+    public float residual   = 0.0f;
+    public long  nanos      = 0;
+  } // class Flow.SolveStats
+
+  // limit on the number of cycles in a single solve (see solve(...))
+  static private final int kMaxSolveCycles = 8;
+  
+  // give up on a solve if a cycle fails to reduce the residual by this much
+  // (the residual does not go to zero if the in-flows and sources are 
+  // out of balance, so it eventually stalls)
+  static private final float kStallFactor = 0.9f;
+  
+  // velocities are calculated in parallel if the top grid has this many 
+  // cells (split into a few bands of rows per thread, as in FlowGrid)
+  static private final int kMinParallelCells = 128*128,
+                           kBandsPerThread   = 2;
+  
   // value in the mBaseWalls array that indicates an opening
   static public final float OPEN = Float.MAX_VALUE;
 
@@ -26,20 +48,107 @@ public class Flow {
   // (in-flow is velocity of fluid coming in through the boundary)
   private float mBaseWalls[][][];
 
+  // copy of the walls as they were when the solver last saw them
+  private float mStencilWalls[][][];
+
+  // which blocks' walls have opened or closed (workspace for checkWalls())
+  // [y*mBaseXSize + x]
+  private boolean mChangedBlocks[];
+
+  // the walls as given to the solver (the same as mStencilWalls, but with
+  // the static in-flow taken off, see setStaticInFlow())
+  private float mSolverWalls[][][];
+
+  // part of the in-flow at every wall that the solver does not see, since
+  // its effect comes from a precomputed basis instead (or zero and null)
+  private float     mStaticInFlow;
+  private FlowBasis mInFlowBasis;
+
+  // precomputed velocity fields to add on, and their scale factors, for
+  // sources that keep the same shape (cleared by clearSource())
+  private FlowBasis mBases[];
+  private float     mBasisScales[];
+  private int       mNumBases;
+
+  // solutions for static sources in this maze (possibly shared by flows)
+  private FlowBasisCache mBasisCache;
+
   // how refined the solution needs to be on the base grid
   // (an optimization if a quality solution is only needed in some regions) 
   private int mDesiredSolutionLevel[][];
   
-  // the most refined solution grid
-  private FlowGrid mTopGrid = null;
+  // copy of the desired solution levels taken when a pipelined solve
+  // starts (the originals can change while the solve runs)
+  private int mSolveLevels[][];
+  
+  // the engine that solves for the potential (see setSolver())
+  private PoissonSolver mSolver = null;
   
   // refinement factor and level for the topmost grid
   private int mRefineFactor,
               mRefineLevel;
 
-  // constructor
+  // if true then each solve improves on the previous solution
+  // (correction scheme, otherwise the solution is rebuilt every time)
+  private boolean mWarmStart;
+
+  // estimated time taken by one cycle of the solver (nanoseconds)
+  private long mCycleNanos;
+  
+  // if non-zero then a solve with a tolerance runs up to this many cycles
+  // whatever the time, so the results do not depend on the machine (see
+  // setFixedCycles())
+  private int mFixedCycles;
+
+  // velocity in each cell of the top grid, for the base blocks that were
+  // stored by the solver (these are the velocities that getVelocity() 
+  // uses, as of the last solve)
+  private FlowVelocities mVel;
+  
+  // velocities calculated by the latest solve (see updateVelocities())
+  private FlowVelocities mNextVel;
+  
+  // velocities from the solve before the last one (for extrapolation)
+  // (blocks that were not stored then hold the last solve's velocities)
+  private FlowVelocities mPrevVel;
+  
+  // ticks since the last solve, and ticks between the last two solves
+  // (zero if there has only been one), see extrapolateVelocities()
+  private int mTicksSinceSolve,
+              mTicksBetweenSolves;
+  
+  // how far the velocities are pushed beyond the last solve, as a fraction
+  // of the difference between the last two solves (zero normally)
+  private float mExtrapolation;
+  
+  // if true then new velocities are held back until swapVelocities()
+  // (so that they can be calculated on one thread while used on another)
+  private boolean mPipelined;
+  
+  // how many bands of rows the velocity calculation is split into
+  private int mVelocityBands;
+  
+  // job for calculating velocities in parallel (see updateVelocities())
+  private final TaskRunner.Task mVelocityTask = new TaskRunner.Task() {
+    public void run(int index) {
+      final int ySize = mBaseYSize*mRefineFactor;
+      updateVelocities((index*ySize)/mVelocityBands, 
+                       ((index+1)*ySize)/mVelocityBands);
+    }
+  };
+
+  // constructor (the flow has a solver and a basis cache of its own)
   public Flow(int baseXSize, int baseYSize, int refineLevel) {
     
+    this(baseXSize, baseYSize, refineLevel, true);
+    
+  } // constructor
+  
+  // constructor (without a solver or basis cache if 'own' is false, in 
+  // which case they must be supplied by setSolver() and setBasisCache() 
+  // before the flow is used, see FlowSet)
+  Flow(int baseXSize, int baseYSize, int refineLevel, boolean own) {
+    
     assert( baseXSize > 0 && baseYSize > 0 );
     assert( refineLevel >= 0 );
     
@@ -59,19 +168,95 @@ public class Flow {
     mDesiredSolutionLevel = new int[mBaseYSize][mBaseXSize];
     resetDesiredSolutionLevel(mRefineLevel);
     
-    mTopGrid = new FlowGrid(this, mRefineLevel);
+    mStencilWalls = new float[mBaseYSize][mBaseXSize][4];
+    mSolverWalls = new float[mBaseYSize][mBaseXSize][4];
+    mChangedBlocks = new boolean[mBaseXSize*mBaseYSize];
+    for ( int iy = 0 ; iy < mBaseYSize ; iy++ ) {
+      for ( int ix = 0 ; ix < mBaseXSize ; ix++ ) {
+        for ( int d = 0 ; d < 4 ; d++ ) {
+          mStencilWalls[iy][ix][d] = mSolverWalls[iy][ix][d] = OPEN;
+        }
+      }
+    }    
     
-  } // constructor
+    mStaticInFlow = 0.0f;
+    mInFlowBasis = null;
+    mBases = new FlowBasis[4];
+    mBasisScales = new float[4];
+    mNumBases = 0;
+    mBasisCache = ( own ? new FlowBasisCache() : null );
+    
+    mVel = new FlowVelocities(mBaseXSize, mBaseYSize, mRefineLevel);
+    mNextVel = new FlowVelocities(mBaseXSize, mBaseYSize, mRefineLevel);
+    mPrevVel = new FlowVelocities(mBaseXSize, mBaseYSize, mRefineLevel);
+    mPipelined = false;
+    mTicksSinceSolve = mTicksBetweenSolves = 0;
+    mExtrapolation = 0.0f;
+    
+    mWarmStart = false;
+    mCycleNanos = 0;
+    mFixedCycles = 0;
+    
+    if ( own ) mSolver = new MultigridSolver(this).layer(0);
+    
+  } // constructor(own)
 
   // access to wall layout and in-flow values
   public float[][][] walls() { return mBaseWalls; }
 
-  // access to potential field
-  public float[][] data() { return mTopGrid.data(); }
+  // set the walls of a base block from the tile of a maze, with the same
+  // in-flow at each of them (the flow has a block for each maze tile)
+  public void setWalls(MazeData maze, int ix, int iy, float inFlow) {
+    
+    float walls[] = mBaseWalls[iy][ix];
+    walls[Env.NORTH] = ( maze.horizWall(ix, iy)   ? inFlow : OPEN );
+    walls[Env.SOUTH] = ( maze.horizWall(ix, iy+1) ? inFlow : OPEN );
+    walls[Env.WEST]  = ( maze.vertWall(ix, iy)    ? inFlow : OPEN );
+    walls[Env.EAST]  = ( maze.vertWall(ix+1, iy)  ? inFlow : OPEN );
+    
+  } // setWalls(maze, ix, iy, inFlow)
+  
+  // set the walls of every base block from a maze (see above)
+  public void setWalls(MazeData maze, float inFlow) {
+    
+    assert( maze.numTilesX() == mBaseXSize && 
+            maze.numTilesY() == mBaseYSize );
+    for ( int iy = 0 ; iy < mBaseYSize ; iy++ ) {
+      for ( int ix = 0 ; ix < mBaseXSize ; ix++ ) {
+        setWalls(maze, ix, iy, inFlow);
+      }
+    }
+    
+  } // setWalls(maze, inFlow)
 
-  // access to source terms
-  public float[][] source() { return mTopGrid.source(); }
+  // the walls as the solver sees them (see setStaticInFlow())
+  float[][][] solverWalls() { return mSolverWalls; }
 
+  // the engine that solves for the potential
+  public PoissonSolver solver() { return mSolver; }
+  
+  // change the engine that solves for the potential (the solver should 
+  // have been made for this flow; the solution starts again from zero, 
+  // and the source terms need to be added again)
+  public void setSolver(PoissonSolver solver) {
+    
+    assert( solver != null );
+    mSolver = solver;
+    reset();
+    
+  } // setSolver()
+  
+  // potential value for a top grid cell (zero if the block is not stored)
+  public float data(int ix, int iy) { return mSolver.data(ix, iy); }
+  
+  // source term for a top grid cell (zero if the block is not stored)
+  public float source(int ix, int iy) { return mSolver.source(ix, iy); }
+  
+  // increase the source term for a top grid cell
+  public void addToSource(int ix, int iy, float value) {
+    mSolver.addToSource(ix, iy, value);
+  } // addToSource()
+  
   // top grid's refinement level
   public int refineLevel() { return mRefineLevel; }
   
@@ -82,25 +267,344 @@ public class Flow {
   public int baseXSize() { return mBaseXSize; }
   public int baseYSize() { return mBaseYSize; }
   
+  // size of the top grid
+  public int topXSize() { return mBaseXSize*mRefineFactor; }
+  public int topYSize() { return mBaseYSize*mRefineFactor; }
+  
   // clear the current solution
-  public void reset() { mTopGrid.reset(); }
+  public void reset() { 
+    
+    mSolver.reset(); 
+    mVel.clear();
+    mNextVel.clear();
+    mPrevVel.clear();
+    mTicksSinceSolve = mTicksBetweenSolves = 0;
+    mExtrapolation = 0.0f;
+    
+  } // reset()
   
   // clear the current source terms
   public void clearSource() { 
     
-    float source[][] = mTopGrid.source();
-    for ( int ky = 0 ; ky < source.length ; ky++ ) {
-      for ( int kx = 0, len = source[ky].length ; kx < len ; kx++ ) {
-        source[ky][kx] = 0.0f;
+    mSolver.clearSource(); 
+    for ( int k = 0 ; k < mNumBases ; k++ ) mBases[k] = null;
+    mNumBases = 0;
+    
+  } // clearSource()
+  
+  // add a precomputed solution for a source with a fixed shape, in place
+  // of adding the source itself (until the next clearSource())
+  public void addBasis(FlowBasis basis, float scale) {
+    
+    assert( basis != null );
+    if ( mNumBases == mBases.length ) {
+      FlowBasis bases[] = new FlowBasis[2*mNumBases];
+      float scales[] = new float[2*mNumBases];
+      System.arraycopy(mBases, 0, bases, 0, mNumBases);
+      System.arraycopy(mBasisScales, 0, scales, 0, mNumBases);
+      mBases = bases;
+      mBasisScales = scales;
+    }
+    mBases[mNumBases] = basis;
+    mBasisScales[mNumBases] = scale;
+    mNumBases++;
+    
+  } // addBasis()
+  
+  // take a uniform in-flow out of the solve (the in-flow at every wall is
+  // reduced by this amount for the solver, and the basis, the solution for
+  // unit in-flow at every wall, is added on instead; null for none)
+  public void setStaticInFlow(float inFlow, FlowBasis basis) {
+    
+    assert( basis != null || inFlow == 0.0f );
+    mStaticInFlow = ( basis != null ) ? inFlow : 0.0f;
+    mInFlowBasis = basis;
+    
+    for ( int iy = 0 ; iy < mBaseYSize ; iy++ ) {
+      for ( int ix = 0 ; ix < mBaseXSize ; ix++ ) {
+        for ( int d = 0 ; d < 4 ; d++ ) {
+          mSolverWalls[iy][ix][d] = solverWall(mStencilWalls[iy][ix][d]);
+        }
       }
     }
+    mSolver.wallsChanged(false);
     
-  } // clearSource()
+  } // setStaticInFlow()
+  
+  // the in-flow taken out of the solve (see setStaticInFlow())
+  public float staticInFlow() { return mStaticInFlow; }
+  
+  // a wall value as given to the solver (see setStaticInFlow())
+  private float solverWall(float wall) {
+    
+    return ( wall == OPEN ) ? OPEN : ( wall - mStaticInFlow );
+    
+  } // solverWall()
+  
+  // the precomputed solutions for static sources in this flow's maze
+  // (see FlowBasis)
+  public FlowBasisCache basisCache() { return mBasisCache; }
+  
+  // use a cache of precomputed solutions that is shared with other flows
+  // (they must have the same walls, apart from their in-flow values)
+  public void setBasisCache(FlowBasisCache cache) { 
+    
+    assert( cache != null );
+    mBasisCache = cache; 
+    
+  } // setBasisCache()
+  
+  // choose between improving and rebuilding the solution (see solve())
+  public void setWarmStart(boolean warm) { mWarmStart = warm; }
+  
+  // whether the solution is improved rather than rebuilt each time 
+  public boolean warmStart() { return mWarmStart; }
+  
+  // run up to a fixed number of cycles in solve(tolerance, ...) instead 
+  // of stopping when the time budget runs out (zero to use the budget)
+  // (the cycles still stop early once the residual meets the tolerance or
+  // stalls, which only depends on the solution, so it is deterministic)
+  public void setFixedCycles(int cycles) {
+    
+    assert( cycles >= 0 );
+    mFixedCycles = cycles;
+    
+  } // setFixedCycles()
+  
+  // the fixed number of cycles in a solve, or zero (see setFixedCycles())
+  public int fixedCycles() { return mFixedCycles; }
+  
+  // produce a solution (one cycle of the solver)
+  public void solve() { 
+    
+    checkWalls();
+    if ( mWarmStart ) {
+      mSolver.prepare();
+      mSolver.improve();
+    } else {
+      mSolver.solve(); 
+    }
+    updateVelocities();
+    
+  } // solve()
+
+  // improve the solution until the residual is below the tolerance, or
+  // until another cycle would take the time beyond the budget (nanoseconds)
+  // (always improves the solution, and always runs at least one cycle 
+  // unless the tolerance is already met; the stats object is optional;
+  // the budget is ignored if there is a fixed number of cycles, see 
+  // setFixedCycles())
+  public void solve(float tolerance, long maxNanos, SolveStats stats) {
+    
+    checkWalls();
+    improveSolution(tolerance, maxNanos, stats);
+    updateVelocities();
+    
+  } // solve(tolerance, maxNanos, stats)
   
-  // produce a solution (multi-grid method)
-  public void solve() { mTopGrid.solve(); }
+  // the cycles of solve(tolerance, maxNanos, stats), without checking the
+  // walls or updating the velocities (see FlowSet)
+  void improveSolution(float tolerance, long maxNanos, SolveStats stats) {
+    
+    final long startTime = TimeUtils.nanoTime();
+
+    mSolver.prepare();
+    float residual = mSolver.residual();
+    
+    final boolean timed = ( mFixedCycles == 0 );
+    final int maxCycles = ( timed ? kMaxSolveCycles : mFixedCycles );
+    int iterations = 0;
+    long elapsed = TimeUtils.nanoTime() - startTime;
+    while ( residual > tolerance && iterations < maxCycles &&
+            ( !timed || iterations == 0 || 
+              elapsed + mCycleNanos <= maxNanos ) ) {
+      final long cycleStart = TimeUtils.nanoTime();
+      mSolver.improve();
+      final float newResidual = mSolver.residual();
+      final long cycleEnd = TimeUtils.nanoTime();
+      
+      mCycleNanos = ( mCycleNanos == 0 ) 
+                    ? ( cycleEnd - cycleStart )
+                    : ( mCycleNanos + (cycleEnd - cycleStart) )/2;
+      elapsed = cycleEnd - startTime;
+      iterations++;
+      
+      final boolean stalled = ( newResidual > kStallFactor*residual );
+      residual = newResidual;
+      if ( stalled ) break;
+    }
+    
+    if ( stats != null ) {
+      stats.iterations = iterations;
+      stats.residual = residual;
+      stats.nanos = TimeUtils.nanoTime() - startTime;
+    }
+    
+  } // improveSolution()
 
-  // calculate and return velocity at a position
+  // tell the solver if the walls have changed since last time
+  // (distinguishing walls that have opened or closed, and the blocks they
+  // belong to, from changes to just the in-flow values; when the maze 
+  // changes a wall or two at a time only those blocks' stencils need to
+  // be rebuilt)
+  void checkWalls() {
+    
+    boolean openingsChanged = false,
+            inFlowsChanged  = false;
+    
+    for ( int iy = 0, k = 0 ; iy < mBaseYSize ; iy++ ) {
+      for ( int ix = 0 ; ix < mBaseXSize ; ix++, k++ ) {
+        final float walls[] = mBaseWalls[iy][ix],
+                    oldWalls[] = mStencilWalls[iy][ix];
+        for ( int d = 0 ; d < 4 ; d++ ) {
+          if ( walls[d] == oldWalls[d] ) continue;
+          if ( (walls[d] == OPEN) != (oldWalls[d] == OPEN) ) {
+            openingsChanged = mChangedBlocks[k] = true;
+          } else {
+            inFlowsChanged = true;
+          }
+          oldWalls[d] = walls[d];
+          mSolverWalls[iy][ix][d] = solverWall(walls[d]);
+        }
+      }
+    }
+    
+    if ( openingsChanged ) {
+      mSolver.openingsChanged(mChangedBlocks);
+      for ( int k = 0 ; k < mChangedBlocks.length ; k++ ) {
+        mChangedBlocks[k] = false;
+      }
+    } else if ( inFlowsChanged ) {
+      mSolver.wallsChanged(false);
+    }
+    
+  } // checkWalls()
+  
+  // hold back new velocities until swapVelocities() is called
+  // (for a solve that runs in the background, see FlowSet.startSolve())
+  public void setPipelined(boolean pipelined) { 
+    
+    if ( pipelined ) copyDesiredSolutionLevels();
+    mPipelined = pipelined; 
+    
+  } // setPipelined()
+  
+  // whether new velocities are held back until swapVelocities()
+  public boolean pipelined() { return mPipelined; }
+  
+  // start using the velocities from the latest solve (pipelined mode)
+  // (the velocities that were in use are kept for extrapolation)
+  public void swapVelocities() {
+    
+    FlowVelocities temp = mPrevVel;
+    mPrevVel = mVel;
+    mVel = mNextVel;
+    mNextVel = temp;
+    
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        if ( !mVel.hasTile(kx, ky) || mPrevVel.hasTile(kx, ky) ) continue;
+        mPrevVel.copyTile(mVel, kx, ky);
+      }
+    }
+    
+    mTicksBetweenSolves = mTicksSinceSolve + 1;
+    mTicksSinceSolve = 0;
+    mExtrapolation = 0.0f;
+    
+  } // swapVelocities()
+  
+  // a tick passes without a solve, so extrapolate linearly from the last 
+  // two solves to estimate the velocities now (see FlowSet.setSolvePeriods)
+  // (velocities are linear in the potential, so this is the same as 
+  // extrapolating the potential)
+  public void extrapolateVelocities() {
+    
+    mTicksSinceSolve += 1;
+    mExtrapolation = ( mTicksBetweenSolves > 0 )
+                     ? mTicksSinceSolve/(float)mTicksBetweenSolves
+                     : 0.0f;
+    
+  } // extrapolateVelocities()
+  
+  // calculate the velocity in every top grid cell from the potential 
+  // (in parallel on a large grid; the velocities are used straight away
+  // unless the flow is pipelined)
+  void updateVelocities() {
+    
+    final TaskRunner tasks = Env.tasks();
+    final int xSize = mBaseXSize*mRefineFactor,
+              ySize = mBaseYSize*mRefineFactor;
+    
+    mSolver.updateHalos();
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        mNextVel.setStored(kx, ky, mSolver.hasBlock(kx, ky));
+      }
+    }
+    
+    if ( tasks.numThreads() > 1 && xSize*ySize >= kMinParallelCells ) {
+      mVelocityBands = Math.min( kBandsPerThread*tasks.numThreads(), ySize );
+      tasks.run(mVelocityTask, mVelocityBands);
+    } else {
+      updateVelocities(0, ySize);
+    }
+    
+    if ( !mPipelined ) swapVelocities();
+    
+  } // updateVelocities()
+  
+  // calculate the velocity for a range of rows [iyStart,iyEnd) of the grid
+  // (the gradient of the potential, with the in-flow at walls; only for 
+  // the blocks stored by the solver)
+  private void updateVelocities(int iyStart, int iyEnd) {
+    
+    final float data[] = mSolver.data();
+    final int s = mSolver.stride(),
+              e = mSolver.step();
+    final float delta = 1.0f/mRefineFactor;
+    final float velX[] = mNextVel.velX(),
+                velY[] = mNextVel.velY();
+    
+    for ( int iy = iyStart ; iy < iyEnd ; iy++ ) {
+      final int ky = ( iy >> mRefineLevel );
+      final int iy0 = (ky << mRefineLevel),
+                iy1 = iy0 + mRefineFactor-1;
+      
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        final int base = mNextVel.tileBase(kx, ky);
+        if ( base < 0 ) continue;
+        final float walls[] = mSolverWalls[ky][kx];
+        
+        final int ix0 = (kx << mRefineLevel),
+                  ix1 = ix0 + mRefineFactor-1;
+        
+        for ( int ix = ix0, i = mSolver.index(ix0, iy), 
+                  j = base + ((iy - iy0) << mRefineLevel) ;
+              ix <= ix1 ; ix++, i += e, j++ ) {
+          if ( ix == ix0 && walls[Env.WEST] != OPEN ) {
+            velX[j] = 0.5f*((data[i+e] - data[i])/delta + walls[Env.WEST]);
+          } else if ( ix == ix1 && walls[Env.EAST] != OPEN ) {
+            velX[j] = 0.5f*((data[i] - data[i-e])/delta - walls[Env.EAST]);
+          } else {
+            velX[j] = (data[i+e] - data[i-e])/(2*delta);
+          }
+          
+          if ( iy == iy0 && walls[Env.NORTH] != OPEN ) {
+            velY[j] = 0.5f*((data[i+s] - data[i])/delta + walls[Env.NORTH]);
+          } else if ( iy == iy1 && walls[Env.SOUTH] != OPEN ) {
+            velY[j] = 0.5f*((data[i] - data[i-s])/delta - walls[Env.SOUTH]);
+          } else {
+            velY[j] = (data[i+s] - data[i-s])/(2*delta);
+          }
+        }
+      } // for kx
+    } // for iy
+    
+  } // updateVelocities(iyStart, iyEnd)
+  
+  // return the velocity at a position (as of the last solve, or
+  // extrapolated from the last two, see extrapolateVelocities())
   public void getVelocity(float x, float y, Vel vel) {
     
     assert( x > 0.0f && x < mBaseXSize );
@@ -108,40 +612,94 @@ public class Flow {
 
     final int ix = (int)(x*mRefineFactor),
               iy = (int)(y*mRefineFactor);
+    final int i = mVel.index(ix, iy);
+    if ( i < 0 ) {
+      vel.x = vel.y = 0.0f;
+    } else if ( mExtrapolation == 0.0f ) {
+      vel.x = mVel.velX()[i];
+      vel.y = mVel.velY()[i];
+    } else {
+      final int j = mPrevVel.index(ix, iy);
+      assert( j >= 0 );
+      final float velX = mVel.velX()[i],
+                  velY = mVel.velY()[i];
+      vel.x = velX + mExtrapolation*(velX - mPrevVel.velX()[j]);
+      vel.y = velY + mExtrapolation*(velY - mPrevVel.velY()[j]);
+    }
     
-    final int kx = ( ix >> mRefineLevel ),
-              ky = ( iy >> mRefineLevel );
-    float walls[] = mBaseWalls[ky][kx];
+    if ( mInFlowBasis != null || mNumBases > 0 ) {
+      final int j = cellIndex(x, y);
+      vel.x += basisVelX(j);
+      vel.y += basisVelY(j);
+    }
     
-    float data[][] = mTopGrid.data();
-    final float delta = 1.0f/mRefineFactor;
+  } // getVelocity()
+
+  // position of a top grid cell in the velocity arrays (row by row)
+  private int cellIndex(float x, float y) {
     
-    final int iy0 = (ky << mRefineLevel),
-              iy1 = iy0 + mRefineFactor-1,
-              ix0 = (kx << mRefineLevel),
-              ix1 = ix0 + mRefineFactor-1;
-        
-    if ( ix == ix0 && walls[Env.WEST] != OPEN ) {
-      vel.x = 0.5f*((data[iy][ix+1] - data[iy][ix])/delta + walls[Env.WEST]);
-    } else if ( ix == ix1 && walls[Env.EAST] != OPEN ) {
-      vel.x = 0.5f*((data[iy][ix] - data[iy][ix-1])/delta - walls[Env.EAST]);                
-    } else {
-      vel.x = (data[iy][ix+1] - data[iy][ix-1])/(2*delta);
+    return (int)(y*mRefineFactor)*mBaseXSize*mRefineFactor 
+           + (int)(x*mRefineFactor);
+    
+  } // cellIndex()
+  
+  // the velocity contributed by the precomputed solutions for a cell
+  // (see setStaticInFlow() and addBasis())
+  private float basisVelX(int i) {
+    
+    float vel = ( mInFlowBasis != null ) 
+                ? mStaticInFlow*mInFlowBasis.velX()[i] : 0.0f;
+    for ( int k = 0 ; k < mNumBases ; k++ ) {
+      vel += mBasisScales[k]*mBases[k].velX()[i];
     }
+    return vel;
     
-    if ( iy == iy0 && walls[Env.NORTH] != OPEN ) {
-      vel.y = 0.5f*((data[iy+1][ix] - data[iy][ix])/delta + walls[Env.NORTH]);
-    } else if ( iy == iy1 && walls[Env.SOUTH] != OPEN ) {
-      vel.y = 0.5f*((data[iy][ix] - data[iy-1][ix])/delta - walls[Env.SOUTH]);                
-    } else {
-      vel.y = (data[iy+1][ix] - data[iy-1][ix])/(2*delta);
-    }    
+  } // basisVelX()
+  
+  // the velocity contributed by the precomputed solutions for a cell
+  private float basisVelY(int i) {
     
-  } // getVelocity()
+    float vel = ( mInFlowBasis != null ) 
+                ? mStaticInFlow*mInFlowBasis.velY()[i] : 0.0f;
+    for ( int k = 0 ; k < mNumBases ; k++ ) {
+      vel += mBasisScales[k]*mBases[k].velY()[i];
+    }
+    return vel;
+    
+  } // basisVelY()
+  
+  // copy the velocities from the last solve, row by row (zero in blocks 
+  // that the solver did not store; see FlowBasis)
+  void copyVelocities(float velX[], float velY[]) {
+    
+    mVel.copyTo(velX, velY);
+    
+  } // copyVelocities()
 
   // access to the desired solution levels
   public int[][] desiredSolutionLevel() { return mDesiredSolutionLevel; }
   
+  // the desired solution levels that the solver should use
+  // (a copy if the flow is pipelined, see copyDesiredSolutionLevels())
+  int[][] solveLevels() { 
+    
+    return ( mPipelined ) ? mSolveLevels : mDesiredSolutionLevel; 
+    
+  } // solveLevels()
+  
+  // take a copy of the desired solution levels for a pipelined solve
+  void copyDesiredSolutionLevels() {
+    
+    if ( mSolveLevels == null ) {
+      mSolveLevels = new int[mBaseYSize][mBaseXSize];
+    }
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      System.arraycopy(mDesiredSolutionLevel[ky], 0, 
+                       mSolveLevels[ky], 0, mBaseXSize);
+    }
+    
+  } // copyDesiredSolutionLevels()
+  
   // set the desired solution level uniformly across the grid
   public void resetDesiredSolutionLevel(int level) {
     
@@ -0,0 +1,117 @@
+/*
+ *  FlowBasis.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// the velocity field for a source of fixed shape, or for a unit in-flow at
+// every wall, solved once for a particular layout of walls
+// (the flow problem is linear, so a flow can add the field on, scaled, 
+// rather than solve for that part of the problem every tick; see 
+// Flow.addBasis() and Flow.setStaticInFlow(), and FlowBasisCache)
+// (the velocities are kept rather than the potential, since they are what
+// the floxels use, and they are linear in the potential)
+public class FlowBasis {
+
+  // a source of fixed shape (at unit strength)
+  public interface Pattern {
+    public void addToSource(Flow flow);
+  } // interface FlowBasis.Pattern
+  
+  // residual at which the basis is considered solved
+  static private final float kTolerance = 5.0e-3f;
+  
+  // limit on the number of solves (each of several cycles) for a basis
+  static private final int kMaxSolves = 4;
+  
+  // cycles in each of the solves (a fixed number rather than a time 
+  // budget, so that the basis is the same on every machine)
+  static private final int kSolveCycles = 8;
+  
+  // velocity in each cell of the top grid (row by row)
+  private final float mVelX[],
+                      mVelY[];
+  
+  // constructor (takes the velocities of a solved flow)
+  private FlowBasis(Flow flow) {
+    
+    final int numCells = flow.topXSize()*flow.topYSize();
+    mVelX = new float[numCells];
+    mVelY = new float[numCells];
+    flow.copyVelocities(mVelX, mVelY);
+    
+  } // constructor
+  
+  // access to the velocities (indexed iy*topXSize + ix)
+  float[] velX() { return mVelX; }
+  float[] velY() { return mVelY; }
+  
+  // solve for a unit in-flow at every wall of a maze (one flow block for
+  // each of the maze's tiles; this can be called from any thread)
+  static public FlowBasis solveInFlow(MazeData maze, int refineLevel) {
+    
+    Flow flow = new Flow(maze.numTilesX(), maze.numTilesY(), refineLevel);
+    flow.setWalls(maze, 1.0f);
+    return solve(flow);
+    
+  } // solveInFlow(maze)
+  
+  // a new flow with the same openings as the given one and a source
+  // pattern added (with no in-flow), to be solved later 
+  // (see solveSourceFlow())
+  // (the given flow is only read here, so the solve can then be run on
+  // another thread while the given flow carries on being used)
+  static public Flow sourceFlow(Flow like, Pattern pattern) {
+    
+    assert( pattern != null );
+    Flow flow = makeFlow(like, 0.0f);
+    pattern.addToSource(flow);
+    return flow;
+    
+  } // sourceFlow()
+  
+  // solve a flow made by sourceFlow() (this can be called from any thread)
+  static public FlowBasis solveSourceFlow(Flow flow) { return solve(flow); }
+  
+  // a new flow with the same openings as the given one, and the given
+  // in-flow at its walls
+  static private Flow makeFlow(Flow like, float inFlow) {
+    
+    Flow flow = new Flow(like.baseXSize(), like.baseYSize(), 
+                         like.refineLevel());
+    
+    final float likeWalls[][][] = like.walls(),
+                walls[][][] = flow.walls();
+    for ( int iy = 0 ; iy < like.baseYSize() ; iy++ ) {
+      for ( int ix = 0 ; ix < like.baseXSize() ; ix++ ) {
+        for ( int d = 0 ; d < 4 ; d++ ) {
+          walls[iy][ix][d] = ( likeWalls[iy][ix][d] == Flow.OPEN ) 
+                             ? Flow.OPEN : inFlow;
+        }
+      }
+    }
+    
+    return flow;
+    
+  } // makeFlow()
+  
+  // solve a newly made flow, its walls and source set, to the tolerance
+  // (the solution is refined everywhere)
+  static private FlowBasis solve(Flow flow) {
+    
+    flow.solve();
+    flow.setWarmStart(true);
+    flow.setFixedCycles(kSolveCycles);
+    Flow.SolveStats stats = new Flow.SolveStats();
+    for ( int n = 0 ; n < kMaxSolves ; n++ ) {
+      flow.solve(kTolerance, 0, stats);
+      if ( stats.iterations == 0 || stats.residual <= kTolerance ) break;
+    }
+    
+    return new FlowBasis(flow);
+    
+  } // solve(flow)
+  
+} // class FlowBasis
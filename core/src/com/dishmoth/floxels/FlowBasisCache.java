@@ -0,0 +1,179 @@
+/*
+ *  FlowBasisCache.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+// the flow bases that have been solved for in the current maze
+// (see FlowBasis; the cache must be cleared whenever the walls open or 
+// close, but the in-flow values do not matter)
+// (separately, the in-flow bases for the mazes of upcoming levels can be 
+// solved for in the background, and are kept until they are forgotten,
+// see precomputeMaze())
+public class FlowBasisCache {
+
+  // the in-flow basis for one of the mazes (see Mazes.get())
+  // (the basis is written by the background job, and may only be read
+  // once the job is done)
+  static private class MazeBasis implements TaskRunner.Task {
+    
+    // the maze, and the refinement level of the flows
+    private final MazeData mMaze;
+    private final int      mRefineLevel;
+    
+    // the solution (once the job is done), and the background job
+    private FlowBasis      mBasis;
+    private TaskRunner.Job mJob;
+    
+    // constructor
+    public MazeBasis(MazeData maze, int refineLevel) {
+      mMaze = maze;
+      mRefineLevel = refineLevel;
+      mBasis = null;
+      mJob = null;
+    }
+    
+    // implementation of TaskRunner.Task
+    public void run(int index) {
+      mBasis = FlowBasis.solveInFlow(mMaze, mRefineLevel);
+    }
+    
+  } // class FlowBasisCache.MazeBasis
+  
+  // the basis for a source pattern, being solved for in the background
+  // (the flow is set up on the calling thread, see precomputeSource())
+  static private class SourceBasis implements TaskRunner.Task {
+    
+    // the flow to solve (walls and source set)
+    private final Flow     mFlow;
+    
+    // the solution (once the job is done), and the background job
+    private FlowBasis      mBasis;
+    private TaskRunner.Job mJob;
+    
+    // constructor
+    public SourceBasis(Flow flow) {
+      mFlow = flow;
+      mBasis = null;
+      mJob = null;
+    }
+    
+    // implementation of TaskRunner.Task
+    public void run(int index) {
+      mBasis = FlowBasis.solveSourceFlow(mFlow);
+    }
+    
+  } // class FlowBasisCache.SourceBasis
+  
+  // the bases, each identified by its pattern and position
+  private final HashMap<String,FlowBasis> mBases;
+  
+  // source bases still being solved for, identified as in mBases
+  private final HashMap<String,SourceBasis> mSourceBases;
+  
+  // the in-flow bases for mazes, identified by maze index (see Mazes.get())
+  private final HashMap<Integer,MazeBasis> mMazeBases;
+  
+  // constructor
+  public FlowBasisCache() {
+    
+    mBases = new HashMap<String,FlowBasis>();
+    mSourceBases = new HashMap<String,SourceBasis>();
+    mMazeBases = new HashMap<Integer,MazeBasis>();
+    
+  } // constructor
+  
+  // start solving for the basis of a source pattern in the background
+  // (the key must identify both the pattern and its position; nothing 
+  // happens if the basis is already known or being solved for;
+  // without threads the basis is solved for straight away; as with the
+  // other methods, this must not be called while the flows are being
+  // updated on other threads)
+  public void precomputeSource(String key, Flow flow, 
+                               FlowBasis.Pattern pattern) {
+    
+    if ( mBases.containsKey(key) || mSourceBases.containsKey(key) ) return;
+    
+    SourceBasis sourceBasis = new SourceBasis(FlowBasis.sourceFlow(flow, 
+                                                                   pattern));
+    mSourceBases.put(key, sourceBasis);
+    sourceBasis.mJob = Env.tasks().start(sourceBasis, 1);
+    
+  } // precomputeSource()
+  
+  // the basis for a source pattern, or null if it has not finished solving
+  // (see precomputeSource(); this does not wait or solve)
+  public FlowBasis readySourceBasis(String key) {
+    
+    FlowBasis basis = mBases.get(key);
+    if ( basis != null ) return basis;
+    
+    SourceBasis sourceBasis = mSourceBases.get(key);
+    if ( sourceBasis == null || !sourceBasis.mJob.done() ) return null;
+    mSourceBases.remove(key);
+    mBases.put(key, sourceBasis.mBasis);
+    return sourceBasis.mBasis;
+    
+  } // readySourceBasis()
+  
+  // forget all of the bases (the maze has changed)
+  // (the in-flow bases for particular mazes are kept; any source bases
+  // that are still being solved for are left to finish, and then ignored)
+  public void clear() { 
+    
+    mBases.clear(); 
+    mSourceBases.clear();
+    
+  } // clear()
+  
+  // start solving for the in-flow basis of a maze in the background
+  // (the maze is the one returned by Mazes.get() for the index; nothing
+  // happens if the basis is already known or being solved for; without 
+  // threads the basis is solved for straight away)
+  public void precomputeMaze(int mazeIndex, int refineLevel) {
+    
+    if ( mMazeBases.containsKey(mazeIndex) ) return;
+    
+    MazeBasis mazeBasis = new MazeBasis(Mazes.get(mazeIndex), refineLevel);
+    mMazeBases.put(mazeIndex, mazeBasis);
+    mazeBasis.mJob = Env.tasks().start(mazeBasis, 1);
+    
+  } // precomputeMaze()
+  
+  // the in-flow basis for a maze, or null if it has not finished solving
+  // (see precomputeMaze())
+  public FlowBasis mazeBasis(int mazeIndex) {
+    
+    MazeBasis mazeBasis = mMazeBases.get(mazeIndex);
+    if ( mazeBasis == null || !mazeBasis.mJob.done() ) return null;
+    return mazeBasis.mBasis;
+    
+  } // mazeBasis()
+  
+  // the in-flow basis for a maze, waiting for it to be solved if necessary
+  public FlowBasis waitForMazeBasis(int mazeIndex, int refineLevel) {
+    
+    precomputeMaze(mazeIndex, refineLevel);
+    MazeBasis mazeBasis = mMazeBases.get(mazeIndex);
+    mazeBasis.mJob.finish();
+    return mazeBasis.mBasis;
+    
+  } // waitForMazeBasis()
+  
+  // discard the in-flow bases for mazes before the given index
+  // (any that are still being solved for are left to finish)
+  public void forgetMazesBefore(int mazeIndex) {
+    
+    Iterator<Integer> it = mMazeBases.keySet().iterator();
+    while ( it.hasNext() ) {
+      if ( it.next() < mazeIndex ) it.remove();
+    }
+    
+  } // forgetMazesBefore()
+  
+} // class FlowBasisCache
@@ -0,0 +1,394 @@
+/*
+ *  FlowCoarseGrid.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// correction to the solution on the base grid, on a coarser grid
+// (the cells of the finer grid are merged in 2x2 groups, except that a
+// group split by walls makes a separate cell for each connected piece;
+// cells are coupled by the number of openings between them, so the
+// coarser equations are the finer ones summed over the merged cells)
+// (the source need not balance over a connected region - walls can have
+// an inflow - so the coarsest grid spreads any imbalance evenly over the
+// region's area, as relaxation on its own would do)
+public class FlowCoarseGrid {
+
+  // a grid with no more than this many cells is solved directly
+  static private final int kMaxDirectCells = 64;
+
+  // relaxation steps before and after the coarser grid's correction
+  static private final int kNumSmoothIterations = 2;
+
+  // number of corrections taken from the coarser grid (two for a W-cycle)
+  // (the piecewise-constant corrections lose accuracy with every level, so
+  // a V-cycle slows down on big mazes; the coarser grids have well under
+  // half the cells of the finer ones, so a W-cycle is still linear work)
+  static private final int kNumCoarseCorrections = 2;
+
+  // scaling of the interpolated correction
+  // (the piecewise-constant correction is too smooth to have the right
+  // size, so it is over-relaxed)
+  static private final float kCorrectionFactor = 1.4f;
+
+  // pivots this small (relative to the cell's coupling) are taken as zero
+  // (the equations are singular, since adding a constant to the solution
+  // over a connected region changes nothing)
+  static private final double kPivotTolerance = 1.0e-6;
+
+  // number of cells in the grid
+  private final int mNumCells;
+
+  // position of each cell's 2x2 group (in units of this grid's groups)
+  private final int mCellX[],
+                    mCellY[];
+
+  // couplings between cells (the neighbours of cell k are at positions
+  // mLinkStart[k] to mLinkStart[k+1]-1 in the other arrays)
+  private final int   mLinkStart[],
+                      mLinkCell[];
+  private final float mLinkWeight[];
+
+  // total coupling of each cell
+  private final float mCoupleSum[];
+
+  // number of base grid cells that make up each cell
+  private final float mArea[];
+
+  // current solution on the grid
+  private final float mData[];
+
+  // source term on the grid
+  private final float mSource[];
+
+  // which cell of the coarser grid each cell is merged into (or -1 for a
+  // cell with no couplings, which the coarser grid has no use for)
+  private final int mCoarserCell[];
+
+  // the next grid in the multi-grid hierarchy (or null)
+  private final FlowCoarseGrid mCoarserGrid;
+
+  // factorized equations for the coarsest grid (L*D*L^T, row by row with
+  // D on the diagonal), and working space for the direct solve
+  private final double mFactors[],
+                       mWork[];
+
+  // connected region that each cell of the coarsest grid belongs to, and
+  // the total area and source of each region (working space)
+  private final int    mRegion[];
+  private final double mRegionArea[],
+                       mRegionSource[];
+
+  // build the grid by merging the cells of a finer grid (given its cell
+  // positions, couplings and areas, in the same form as the arrays above),
+  // and record which of this grid's cells each finer cell is part of
+  // (the coarser grids are built too, as many as are needed)
+  public FlowCoarseGrid(int fineCellX[], int fineCellY[],
+                        int fineLinkStart[], int fineLinkCell[],
+                        float fineLinkWeight[], float fineArea[],
+                        int fineToCoarse[]) {
+
+    final int numFine = fineCellX.length;
+
+    // merge connected finer cells within each 2x2 group
+    // (flood fill, with the stack held in the fineToCoarse array itself)
+    final int unassigned = -2,
+              onStack    = -3;
+    for ( int j = 0 ; j < numFine ; j++ ) {
+      final boolean linked = ( fineLinkStart[j+1] > fineLinkStart[j] );
+      fineToCoarse[j] = linked ? unassigned : -1;
+    }
+
+    int numCells = 0;
+    int stack[] = new int[numFine];
+    for ( int j = 0 ; j < numFine ; j++ ) {
+      if ( fineToCoarse[j] != unassigned ) continue;
+      final int gx = ( fineCellX[j] >> 1 ),
+                gy = ( fineCellY[j] >> 1 );
+      int top = 0;
+      stack[top++] = j;
+      fineToCoarse[j] = onStack;
+      while ( top > 0 ) {
+        final int i = stack[--top];
+        fineToCoarse[i] = numCells;
+        for ( int n = fineLinkStart[i] ; n < fineLinkStart[i+1] ; n++ ) {
+          final int m = fineLinkCell[n];
+          if ( fineToCoarse[m] == unassigned &&
+               (fineCellX[m] >> 1) == gx && (fineCellY[m] >> 1) == gy ) {
+            fineToCoarse[m] = onStack;
+            stack[top++] = m;
+          }
+        }
+      }
+      numCells++;
+    }
+    mNumCells = numCells;
+
+    mCellX = new int[mNumCells];
+    mCellY = new int[mNumCells];
+    mArea = new float[mNumCells];
+    for ( int j = 0 ; j < numFine ; j++ ) {
+      final int k = fineToCoarse[j];
+      if ( k < 0 ) continue;
+      mCellX[k] = ( fineCellX[j] >> 1 );
+      mCellY[k] = ( fineCellY[j] >> 1 );
+      mArea[k] += fineArea[j];
+    }
+
+    // sum the couplings between the merged cells
+    // (each cell's links are gathered using a marker for each neighbour)
+    int cellStart[] = new int[mNumCells+1],
+        cellFine[]  = new int[numFine];
+    for ( int j = 0 ; j < numFine ; j++ ) {
+      if ( fineToCoarse[j] >= 0 ) cellStart[fineToCoarse[j]+1]++;
+    }
+    for ( int k = 0 ; k < mNumCells ; k++ ) cellStart[k+1] += cellStart[k];
+    int fill[] = new int[mNumCells];
+    for ( int j = 0 ; j < numFine ; j++ ) {
+      final int k = fineToCoarse[j];
+      if ( k >= 0 ) cellFine[cellStart[k] + fill[k]++] = j;
+    }
+
+    int   linkCell[]   = new int[fineLinkCell.length];
+    float linkWeight[] = new float[fineLinkCell.length];
+    int   marker[]     = fill;
+    for ( int k = 0 ; k < mNumCells ; k++ ) marker[k] = -1;
+
+    mLinkStart = new int[mNumCells+1];
+    mCoupleSum = new float[mNumCells];
+    int numLinks = 0;
+    for ( int k = 0 ; k < mNumCells ; k++ ) {
+      mLinkStart[k] = numLinks;
+      for ( int p = cellStart[k] ; p < cellStart[k+1] ; p++ ) {
+        final int j = cellFine[p];
+        for ( int n = fineLinkStart[j] ; n < fineLinkStart[j+1] ; n++ ) {
+          final int m = fineToCoarse[fineLinkCell[n]];
+          if ( m == k ) continue;
+          if ( marker[m] < mLinkStart[k] ) {
+            marker[m] = numLinks;
+            linkCell[numLinks] = m;
+            linkWeight[numLinks] = 0.0f;
+            numLinks++;
+          }
+          linkWeight[marker[m]] += fineLinkWeight[n];
+          mCoupleSum[k] += fineLinkWeight[n];
+        }
+      }
+    }
+    mLinkStart[mNumCells] = numLinks;
+
+    mLinkCell = new int[numLinks];
+    mLinkWeight = new float[numLinks];
+    System.arraycopy(linkCell, 0, mLinkCell, 0, numLinks);
+    System.arraycopy(linkWeight, 0, mLinkWeight, 0, numLinks);
+
+    mData = new float[mNumCells];
+    mSource = new float[mNumCells];
+
+    if ( mNumCells > kMaxDirectCells ) {
+      mCoarserCell = new int[mNumCells];
+      mCoarserGrid = new FlowCoarseGrid(mCellX, mCellY,
+                                        mLinkStart, mLinkCell, mLinkWeight,
+                                        mArea, mCoarserCell);
+      mFactors = mWork = null;
+      mRegion = null;
+      mRegionArea = mRegionSource = null;
+    } else {
+      mCoarserCell = null;
+      mCoarserGrid = null;
+      mFactors = new double[mNumCells*mNumCells];
+      mWork = new double[mNumCells];
+      factorize();
+      mRegion = new int[mNumCells];
+      final int numRegions = findRegions(stack);
+      mRegionArea = new double[numRegions];
+      mRegionSource = new double[numRegions];
+      for ( int k = 0 ; k < mNumCells ; k++ ) {
+        mRegionArea[mRegion[k]] += mArea[k];
+      }
+    }
+
+  } // constructor
+
+  // number of cells in the grid
+  public int numCells() { return mNumCells; }
+
+  // access to the solution (see solve())
+  public float[] data() { return mData; }
+
+  // access to the source term (to be set before solve())
+  public float[] source() { return mSource; }
+
+  // find the solution for the current source term, starting from zero
+  // (one W-cycle, or a direct solve on the coarsest grid)
+  public void solve() {
+
+    if ( mCoarserGrid == null ) {
+      solveDirect();
+      return;
+    }
+
+    for ( int k = 0 ; k < mNumCells ; k++ ) mData[k] = 0.0f;
+
+    for ( int n = 0 ; n < kNumSmoothIterations ; n++ ) smoothSolution();
+    for ( int n = 0 ; n < kNumCoarseCorrections ; n++ ) {
+      restrictResidual();
+      mCoarserGrid.solve();
+      prolongate();
+    }
+    for ( int n = 0 ; n < kNumSmoothIterations ; n++ ) smoothSolution();
+
+  } // solve()
+
+  // fine-to-coarse summation of the residual
+  private void restrictResidual() {
+
+    final float coarseSource[] = mCoarserGrid.mSource;
+    for ( int k = 0 ; k < coarseSource.length ; k++ ) coarseSource[k] = 0.0f;
+
+    for ( int k = 0 ; k < mNumCells ; k++ ) {
+      final int m = mCoarserCell[k];
+      if ( m >= 0 ) coarseSource[m] += mSource[k] - laplacian(k);
+    }
+
+  } // restrictResidual()
+
+  // coarse-to-fine interpolation (correction added to the solution)
+  private void prolongate() {
+
+    final float coarseData[] = mCoarserGrid.mData;
+
+    for ( int k = 0 ; k < mNumCells ; k++ ) {
+      final int m = mCoarserCell[k];
+      if ( m >= 0 ) mData[k] += kCorrectionFactor*coarseData[m];
+    }
+
+  } // prolongate()
+
+  // value of the (coupled) Laplacian operator applied to the solution
+  private float laplacian(int k) {
+
+    final float phi0 = mData[k];
+    float sum = 0.0f;
+    for ( int n = mLinkStart[k] ; n < mLinkStart[k+1] ; n++ ) {
+      sum += mLinkWeight[n]*( mData[mLinkCell[n]] - phi0 );
+    }
+    return sum;
+
+  } // laplacian()
+
+  // improve the current solution (Gauss-Seidel)
+  private void smoothSolution() {
+
+    for ( int k = 0 ; k < mNumCells ; k++ ) {
+      if ( mCoupleSum[k] == 0.0f ) continue;
+      float sum = 0.0f;
+      for ( int n = mLinkStart[k] ; n < mLinkStart[k+1] ; n++ ) {
+        sum += mLinkWeight[n]*mData[mLinkCell[n]];
+      }
+      mData[k] = ( sum - mSource[k] )/mCoupleSum[k];
+    }
+
+  } // smoothSolution()
+
+  // factorize the equations for the direct solve
+  // (symmetric elimination without pivoting, which is fine since the
+  // matrix is positive semi-definite; a zero pivot comes at the last cell
+  // of each connected region, whose value is then just set to zero)
+  private void factorize() {
+
+    final int num = mNumCells;
+    final double a[] = mFactors;
+
+    for ( int k = 0 ; k < a.length ; k++ ) a[k] = 0.0;
+    for ( int k = 0 ; k < num ; k++ ) {
+      a[k*num + k] = mCoupleSum[k];
+      for ( int n = mLinkStart[k] ; n < mLinkStart[k+1] ; n++ ) {
+        a[k*num + mLinkCell[n]] = -mLinkWeight[n];
+      }
+    }
+
+    for ( int j = 0 ; j < num ; j++ ) {
+      final double pivot = a[j*num + j];
+      if ( pivot <= kPivotTolerance*Math.max(1.0, mCoupleSum[j]) ) {
+        for ( int i = j ; i < num ; i++ ) a[i*num + j] = 0.0;
+        continue;
+      }
+      for ( int i = j+1 ; i < num ; i++ ) {
+        final double factor = a[i*num + j]/pivot;
+        if ( factor == 0.0 ) continue;
+        for ( int k = j+1 ; k <= i ; k++ ) {
+          a[i*num + k] -= factor*a[k*num + j];
+        }
+      }
+      for ( int i = j+1 ; i < num ; i++ ) a[i*num + j] /= pivot;
+    }
+
+  } // factorize()
+
+  // label the connected regions of the grid (returns the number of them)
+  // (the stack array is working space with at least one entry per cell)
+  private int findRegions(int stack[]) {
+
+    for ( int k = 0 ; k < mNumCells ; k++ ) mRegion[k] = -1;
+
+    int numRegions = 0;
+    for ( int k = 0 ; k < mNumCells ; k++ ) {
+      if ( mRegion[k] >= 0 ) continue;
+      int top = 0;
+      stack[top++] = k;
+      mRegion[k] = numRegions;
+      while ( top > 0 ) {
+        final int i = stack[--top];
+        for ( int n = mLinkStart[i] ; n < mLinkStart[i+1] ; n++ ) {
+          final int m = mLinkCell[n];
+          if ( mRegion[m] < 0 ) {
+            mRegion[m] = numRegions;
+            stack[top++] = m;
+          }
+        }
+      }
+      numRegions++;
+    }
+    return numRegions;
+
+  } // findRegions()
+
+  // solve the equations using the factorization
+  // (any imbalance in the source over a region is spread over its area
+  // first, otherwise it would all end up at the region's last cell)
+  private void solveDirect() {
+
+    final int num = mNumCells;
+    final double a[] = mFactors,
+                 x[] = mWork;
+
+    for ( int r = 0 ; r < mRegionSource.length ; r++ ) mRegionSource[r] = 0.0;
+    for ( int k = 0 ; k < num ; k++ ) mRegionSource[mRegion[k]] += mSource[k];
+    for ( int r = 0 ; r < mRegionSource.length ; r++ ) {
+      mRegionSource[r] /= mRegionArea[r];
+    }
+
+    for ( int i = 0 ; i < num ; i++ ) {
+      double value = mArea[i]*mRegionSource[mRegion[i]] - mSource[i];
+      for ( int j = 0 ; j < i ; j++ ) value -= a[i*num + j]*x[j];
+      x[i] = value;
+    }
+
+    for ( int i = 0 ; i < num ; i++ ) {
+      final double pivot = a[i*num + i];
+      x[i] = ( pivot == 0.0 ) ? 0.0 : x[i]/pivot;
+    }
+
+    for ( int i = num-1 ; i >= 0 ; i-- ) {
+      double value = x[i];
+      for ( int j = i+1 ; j < num ; j++ ) value -= a[j*num + i]*x[j];
+      x[i] = value;
+      mData[i] = (float)value;
+    }
+
+  } // solveDirect()
+
+} // class FlowCoarseGrid
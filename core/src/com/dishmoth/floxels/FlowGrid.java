@@ -7,15 +7,77 @@
 package com.dishmoth.floxels;
 
 // solution to Poisson's equation at a particular level of refinement 
+// (the grid can hold several layers, each with its own source, in-flows
+// and solution but sharing the openings, see MultigridSolver; a cell's
+// values for the different layers are next to each other in the arrays,
+// so one sweep over the grid updates every layer)
 public class FlowGrid {
 
   // number of relaxation steps on the grid, depending on refinement
+  // (the coarse value is used on the base grid if there are no grids below)
   static private final int kNumSmoothIterations = 1,
                            kNumCoarseIterations = 20;
 
+  // if true then the base grid is solved using coarser grids below it
+  // (see FlowCoarseGrid, otherwise it just has lots of relaxation steps)
+  static private final boolean kUseCoarseGrids = true;
+  
+  // cycles on the base grid, and the relaxation steps before and after 
+  // the correction from the grids below (see solveBase())
+  static private final int kNumBaseCycles          = 2,
+                           kNumBaseSmoothIterations = 2;
+  
+  // scaling of the correction from the grids below the base grid
+  // (over-relaxed, as in FlowCoarseGrid)
+  static private final float kBaseCorrectionFactor = 1.6f;
+
+  // relaxation steps before restricting the residual (correction scheme)
+  static private final int kNumPreSmoothIterations = 1;
+
+  // scaling of the restricted residual (correction scheme)
+  // (piecewise-constant interpolation makes the coarser grids' operators
+  // twice as strong as they should be, so the residual is halved to give
+  // a correction of the right size; otherwise blocks solved at the coarser
+  // level see an oversized correction next to them, which feeds back and 
+  // grows once the base grid is solved accurately)
+  static private final float kResidualScale = 0.5f;
+
+  // scaling of the interpolated correction (correction scheme)
+  // (over-relaxing speeds things up when every block is refined, but is 
+  // unstable when some blocks are solved at coarser levels)
+  static private final float kCorrectionFactor = 1.0f;
+
+  // smoothing is shared between threads if the grid has this many cells
+  // (each thread takes a few bands of rows, to even out the work)
+  static private final int kMinParallelCells = 128*128,
+                           kBandsPerThread   = 2;
+  
+  // several smoothing steps in a row are done a tile at a time, so that
+  // each tile stays in the cache for all of the steps (see smoothTiles())
+  // (the size of the tiles, in cells; wide bands of rows do best, since
+  // narrow tiles spend longer on their edges, see SmoothingBenchmark)
+  static private final int kSmoothTileXSize = 256,
+                           kSmoothTileYSize = 8;
+  
+  // if true then smoothing uses precomputed stencil coefficients 
+  // (rather than testing for walls at every cell)
+  static private final boolean kUseStencilArrays = true;
+  
   // if true then a full solution is only calculated in specified regions
   static private final boolean kUseDesiredSolutionLevels = true;
   
+  // refined grids with this many cells are stored as a separate tile for 
+  // each base block, and tiles are only allocated where they are needed
+  // (see refreshBlock(), smaller grids are stored in one dense array)
+  static private final int kMinTiledLevel = 2,
+                           kMinTiledCells = 256*256;
+  
+  // number of tiles allocated in one go (tiled storage)
+  static private final int kInitialTiles = 16;
+  
+  // value in the mTileBase array for a block with no tile
+  static private final int kNoTile = -1;
+  
   // the base grid (no refinement)
   private final int mBaseXSize,
                     mBaseYSize;
@@ -29,28 +91,91 @@ public class FlowGrid {
                     mYSize;
   
   // the owner of the grid hierarchy
-  private final Flow mOwner;
+  private final MultigridSolver mOwner;
+  
+  // number of layers being solved for
+  private final int mNumLayers;
   
   // the next grid in the multi-grid hierarchy
   private final FlowGrid mCoarserGrid;
   
+  // the grids below the base grid (only for the base grid, see solveBase())
+  // (rebuilt whenever walls open or close)
+  private FlowCoarseGrid mBelowGrid;
+  
+  // which cell of the grid below each base grid cell is merged into
+  // (indexed as iy*mXSize + ix, or -1 for a cell with no openings)
+  private final int mBelowCell[];
+  
+  // whether the grid is stored as tiles rather than as one dense array
+  private final boolean mTiled;
+  
+  // layout of the data arrays, where a base block's cells start and the
+  // distance between rows (see index())
+  // (a dense grid is stored row by row with a ring of padding cells, while
+  // in a tiled grid each block has its own tile with a ring of padding
+  // cells, which are copied from the neighbouring tiles, see updateHalos())
+  // (positions count cells; the layers' values for cell i are stored at 
+  // i*mNumLayers + layer in the data, source and wall term arrays)
+  private final int mTileBase[];
+  private final int mStride;
+  
+  // size of one tile in the data arrays (tiled storage)
+  private final int mTileArea;
+  
+  // tiles that have been released, ready to be reused (tiled storage)
+  private int mFreeTiles[];
+  private int mNumFreeTiles;
+  
+  // number of tiles that have been handed out (tiled storage)
+  private int mNumTiles;
+  
   // current solution on the grid
-  private final float mData[][];
+  private float mData[];
   
   // source term on the grid
-  private final float mSource[][];
+  private float mSource[];
+  
+  // uniform sink in each base block that balances the in-flows at the
+  // walls of the connected region it belongs to (the owner's array, see
+  // MultigridSolver.findInFlowSinks()) [layer][y][x]
+  private final float mInFlowSink[][][];
+  
+  // the smoothing step as a five-point stencil (see buildStencil())
+  // (new value = sum of coefficients times values, plus the wall term)
+  private float mCoefN[],
+                mCoefS[],
+                mCoefE[],
+                mCoefW[],
+                mCoefC[],
+                mWallTerm[];
+  
+  // which cells (red or black) are being smoothed by mSmoothTask,
+  // and how many bands of rows the grid is split into
+  private int mSmoothColour,
+              mSmoothBands;
+  
+  // job for smoothing bands of rows in parallel (see smoothSolution())
+  private final TaskRunner.Task mSmoothTask = new TaskRunner.Task() {
+    public void run(int index) {
+      smoothRows(mSmoothColour, (index*mYSize)/mSmoothBands, 
+                                ((index+1)*mYSize)/mSmoothBands);
+    }
+  };
   
   // constructor
-  public FlowGrid(Flow owner, int refineLevel) {
+  public FlowGrid(MultigridSolver owner, int refineLevel) {
     
     assert( owner != null );
     assert( refineLevel >= 0 );
     
     mOwner = owner;
+    mNumLayers = owner.numLayers();
     
     float walls[][][] = mOwner.walls();
     mBaseXSize = walls[0].length;
     mBaseYSize = walls.length;
+    mInFlowSink = mOwner.inFlowSinks();
     
     mRefineLevel = refineLevel;
     mRefineFactor = ( 1 << refineLevel );
@@ -58,8 +183,46 @@ public class FlowGrid {
     mXSize = mRefineFactor * mBaseXSize;
     mYSize = mRefineFactor * mBaseYSize;
 
-    mData = new float[mYSize][mXSize];
-    mSource = new float[mYSize][mXSize];
+    mTiled = ( kUseDesiredSolutionLevels && 
+               mRefineLevel >= kMinTiledLevel &&
+               mXSize*mYSize >= kMinTiledCells );
+    
+    mTileBase = new int[mBaseXSize*mBaseYSize];
+    int length;
+    if ( mTiled ) {
+      mStride = mRefineFactor + 2;
+      mTileArea = mStride*mStride;
+      mFreeTiles = new int[kInitialTiles];
+      for ( int k = 0 ; k < mTileBase.length ; k++ ) mTileBase[k] = kNoTile;
+      length = kInitialTiles*mTileArea;
+    } else {
+      mStride = mXSize + 2;
+      mTileArea = 0;
+      mFreeTiles = null;
+      for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+          mTileBase[ky*mBaseXSize + kx] = (mStride + 1)
+                                        + (ky << mRefineLevel)*mStride
+                                        + (kx << mRefineLevel);
+        }
+      }
+      length = (mYSize+2)*mStride;
+    }
+    mNumFreeTiles = mNumTiles = 0;
+    
+    mData = new float[length*mNumLayers];
+    mSource = new float[length*mNumLayers];
+    
+    if ( kUseStencilArrays ) {
+      mCoefN = new float[length];
+      mCoefS = new float[length];
+      mCoefE = new float[length];
+      mCoefW = new float[length];
+      mCoefC = new float[length];
+      mWallTerm = new float[length*mNumLayers];
+    } else {
+      mCoefN = mCoefS = mCoefE = mCoefW = mCoefC = mWallTerm = null;
+    }
 
     if ( mRefineLevel > 0 ) {
       mCoarserGrid = new FlowGrid(mOwner, mRefineLevel-1);
@@ -67,16 +230,30 @@ public class FlowGrid {
       mCoarserGrid = null;
     }
     
+    mBelowGrid = null;
+    if ( mRefineLevel == 0 && kUseCoarseGrids ) {
+      mBelowCell = new int[mXSize*mYSize];
+    } else {
+      mBelowCell = null;
+    }
+    
     reset();
 
   } // constructor
 
   // set the current solution to zero
+  // (a tiled grid releases all of its tiles)
   public void reset() {
     
-    for ( int ky = 0 ; ky < mYSize ; ky++ ) {
-      for ( int kx = 0 ; kx < mXSize ; kx++ ) {
-        mData[ky][kx] = mSource[ky][kx] = 0.0f;
+    for ( int k = 0 ; k < mData.length ; k++ ) {
+      mData[k] = mSource[k] = 0.0f;
+    }
+    
+    if ( mTiled ) {
+      for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+          if ( hasTile(kx, ky) ) releaseTile(kx, ky);
+        }
       }
     }
     
@@ -84,173 +261,1218 @@ public class FlowGrid {
     
   } // reset()
 
-  // access to the solution data
-  public float[][] data() { return mData; }
+  // access to the solution data (see index())
+  // (the array is replaced if a tiled grid needs more space)
+  public float[] data() { return mData; }
+  
+  // access to the source term (see index())
+  public float[] source() { return mSource; }
+  
+  // size of the grid (in cells)
+  public int xSize() { return mXSize; }
+  public int ySize() { return mYSize; }
+  
+  // number of layers being solved for (values per cell in the arrays)
+  public int numLayers() { return mNumLayers; }
+  
+  // position of a cell in the data arrays (the block must have a tile)
+  // (multiplied by the number of layers, plus the layer, to give the 
+  // position of one of the cell's values)
+  public int index(int ix, int iy) { 
+    
+    final int mask = mRefineFactor - 1;
+    return mTileBase[(iy >> mRefineLevel)*mBaseXSize + (ix >> mRefineLevel)]
+           + (iy & mask)*mStride + (ix & mask);
+    
+  } // index()
+  
+  // distance between rows in the data arrays (within a block)
+  public int stride() { return mStride; }
+  
+  // whether a block is stored (always true for a dense grid)
+  public boolean hasTile(int kx, int ky) { 
+    return ( mTileBase[ky*mBaseXSize + kx] != kNoTile ); 
+  } // hasTile()
+  
+  // set the source term for a cell in one layer (allocating a tile if
+  // necessary, unless the value is zero)
+  public void setSource(int ix, int iy, int layer, float value) {
+    
+    if ( mTiled ) {
+      final int kx = ( ix >> mRefineLevel ),
+                ky = ( iy >> mRefineLevel );
+      if ( !hasTile(kx, ky) ) {
+        if ( value == 0.0f ) return;
+        allocateTile(kx, ky);
+      }
+    }
+    mSource[index(ix, iy)*mNumLayers + layer] = value;
+    
+  } // setSource()
+  
+  // release the tiles of blocks that are not needed at this level, apart
+  // from those marked to keep (since they hold source terms) 
+  // (tiled storage; keep[] is indexed by ky*baseXSize + kx)
+  public void releaseSourceTiles(boolean keep[]) {
+    
+    if ( !mTiled ) return;
+    
+    final int maintainedLevel[][] = mOwner.maintainedLevel();
+    for ( int ky = 0, k = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++, k++ ) {
+        if ( hasTile(kx, ky) && !keep[k] &&
+             maintainedLevel[ky][kx] < mRefineLevel ) releaseTile(kx, ky);
+      }
+    }
+    
+  } // releaseSourceTiles()
+  
+  // take a tile from the pool for a block (tiled storage)
+  // (the tile starts with zero values, and its stencil is built)
+  private void allocateTile(int kx, int ky) {
+    
+    assert( mTiled && !hasTile(kx, ky) );
+    
+    final int tile = ( mNumFreeTiles > 0 ) ? mFreeTiles[--mNumFreeTiles]
+                                           : mNumTiles++;
+    if ( mNumTiles*mTileArea*mNumLayers > mData.length ) {
+      growTiles(2*mNumTiles);
+    }
+    
+    final int start = tile*mTileArea,
+              end   = start + mTileArea;
+    for ( int k = start*mNumLayers ; k < end*mNumLayers ; k++ ) {
+      mData[k] = mSource[k] = 0.0f;
+    }
+    mTileBase[ky*mBaseXSize + kx] = start + mStride + 1;
+    
+    if ( kUseStencilArrays ) {
+      for ( int k = start ; k < end ; k++ ) {
+        mCoefN[k] = mCoefS[k] = mCoefE[k] = mCoefW[k] = mCoefC[k] = 0.0f;
+      }
+      for ( int k = start*mNumLayers ; k < end*mNumLayers ; k++ ) {
+        mWallTerm[k] = 0.0f;
+      }
+      buildStencil(kx, ky);
+      buildWallTerms(kx, ky);
+    }
+    
+  } // allocateTile()
+  
+  // return a block's tile to the pool (tiled storage)
+  private void releaseTile(int kx, int ky) {
+    
+    assert( mTiled && hasTile(kx, ky) );
+    
+    final int k = ky*mBaseXSize + kx;
+    mFreeTiles[mNumFreeTiles++] = ( mTileBase[k] - mStride - 1 )/mTileArea;
+    mTileBase[k] = kNoTile;
+    
+  } // releaseTile()
+  
+  // make space for more tiles (tiled storage)
+  private void growTiles(int numTiles) {
+    
+    final int length = numTiles*mTileArea;
+    mData   = grow(mData, length*mNumLayers);
+    mSource = grow(mSource, length*mNumLayers);
+    if ( kUseStencilArrays ) {
+      mCoefN    = grow(mCoefN, length);
+      mCoefS    = grow(mCoefS, length);
+      mCoefE    = grow(mCoefE, length);
+      mCoefW    = grow(mCoefW, length);
+      mCoefC    = grow(mCoefC, length);
+      mWallTerm = grow(mWallTerm, length*mNumLayers);
+    }
+    
+    int freeTiles[] = new int[numTiles];
+    System.arraycopy(mFreeTiles, 0, freeTiles, 0, mNumFreeTiles);
+    mFreeTiles = freeTiles;
+    
+  } // growTiles()
+  
+  // copy an array into a bigger one
+  static private float[] grow(float array[], int length) {
+    
+    float newArray[] = new float[length];
+    System.arraycopy(array, 0, newArray, 0, array.length);
+    return newArray;
+    
+  } // grow()
+  
+  // copy values from neighbouring tiles into the rings of padding cells
+  // (needed before anything looks across the edges of the blocks; 
+  // nothing to do for a dense grid)
+  public void updateHalos() {
+    
+    if ( !mTiled ) return;
+    
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      final int iy0 = ( ky << mRefineLevel );
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        if ( hasTile(kx, ky) ) {
+          copyHalo(kx, ky, iy0, iy0 + mRefineFactor, -1);
+        }
+      }
+    }
+    
+  } // updateHalos()
+  
+  // copy padding cells from neighbouring tiles for the blocks that are 
+  // being smoothed, in a range of rows [iyStart,iyEnd) and of columns
+  // [ixStart,ixEnd), and only for cells where (ix+iy)%2 == parity (the 
+  // other cells may be changing)
+  private void updateHalos(int parity, int iyStart, int iyEnd,
+                           int ixStart, int ixEnd) {
+    
+    assert( mTiled );
+    
+    final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
+    
+    final int kyStart = ( iyStart >> mRefineLevel ),
+              kyEnd   = ( (iyEnd-1) >> mRefineLevel ),
+              kxStart = ( ixStart >> mRefineLevel ),
+              kxEnd   = ( (ixEnd-1) >> mRefineLevel );
+    for ( int ky = kyStart ; ky <= kyEnd ; ky++ ) {
+      final int iy0 = Math.max(iyStart, ky << mRefineLevel),
+                iy1 = Math.min(iyEnd, (ky+1) << mRefineLevel);
+      for ( int kx = kxStart ; kx <= kxEnd ; kx++ ) {
+        if ( desiredSolutionLevel[ky][kx] >= mRefineLevel ) {
+          copyHalo(kx, ky, iy0, iy1, parity);
+        }
+      }
+    }
+    
+  } // updateHalos(parity, iyStart, iyEnd, ixStart, ixEnd)
+  
+  // copy padding cells for one tile from its open neighbours, for a range
+  // of rows [iyStart,iyEnd) of the block (and for cells of one parity, 
+  // unless the parity is negative)
+  private void copyHalo(int kx, int ky, int iyStart, int iyEnd, int parity) {
+    
+    final float walls[] = mOwner.walls()[ky][kx];
+    final int s = mStride;
+    
+    final int iy0 = ( ky << mRefineLevel ),
+              iy1 = iy0 + mRefineFactor-1,
+              ix0 = ( kx << mRefineLevel ),
+              ix1 = ix0 + mRefineFactor-1;
+    final int base = mTileBase[ky*mBaseXSize + kx];
+    
+    final boolean west  = ( walls[Env.WEST] == Flow.OPEN && 
+                            hasTile(kx-1, ky) ),
+                  east  = ( walls[Env.EAST] == Flow.OPEN && 
+                            hasTile(kx+1, ky) ),
+                  north = ( walls[Env.NORTH] == Flow.OPEN && 
+                            hasTile(kx, ky-1) ),
+                  south = ( walls[Env.SOUTH] == Flow.OPEN && 
+                            hasTile(kx, ky+1) );
+    
+    for ( int iy = iyStart ; iy < iyEnd ; iy++ ) {
+      final int i = base + (iy-iy0)*s;
+      if ( west && ( parity < 0 || ((ix0-1+iy) & 1) == parity ) ) {
+        copyValues(i-1, index(ix0-1, iy));
+      }
+      if ( east && ( parity < 0 || ((ix1+1+iy) & 1) == parity ) ) {
+        copyValues(i+mRefineFactor, index(ix1+1, iy));
+      }
+      if ( iy == iy0 && north ) {
+        copyHaloRow(i-s, index(ix0, iy-1), ix0+iy-1, parity);
+      }
+      if ( iy == iy1 && south ) {
+        copyHaloRow(i+s, index(ix0, iy+1), ix0+iy+1, parity);
+      }
+    }
+    
+  } // copyHalo()
   
-  // access to the source term
-  public float[][] source() { return mSource; }
+  // copy a row of padding cells from a neighbouring tile 
+  // (the first cell has ix+iy equal to 'sum', to check the parity)
+  private void copyHaloRow(int to, int from, int sum, int parity) {
+    
+    final int step = ( parity < 0 ) ? 1 : 2;
+    final int start = ( parity < 0 || (sum & 1) == parity ) ? 0 : 1;
+    for ( int n = start ; n < mRefineFactor ; n += step ) {
+      copyValues(to+n, from+n);
+    }
+    
+  } // copyHaloRow()
+  
+  // copy every layer's value from one cell to another
+  private void copyValues(int to, int from) {
+    
+    final int layers = mNumLayers;
+    for ( int n = 0 ; n < layers ; n++ ) {
+      mData[to*layers + n] = mData[from*layers + n];
+    }
+    
+  } // copyValues()
+  
+  // recalculate the smoothing stencil after the walls have been changed
+  // (if only the in-flow values have changed then use buildWallTerms())
+  public void buildStencil() {
+    
+    if ( kUseStencilArrays ) {
+      for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+          if ( hasTile(kx, ky) ) buildStencil(kx, ky);
+        }
+      }
+    }
+    
+    buildWallTerms();
+    if ( mCoarserGrid != null ) mCoarserGrid.buildStencil();
+    if ( mBelowCell != null ) buildBelowGrid();
+    
+  } // buildStencil()
+  
+  // recalculate the smoothing stencil after the openings around some of
+  // the blocks have changed (blocks[ky*mBaseXSize + kx] is true for those
+  // blocks; the wall terms and the grids below the base grid depend on 
+  // every block, so they are rebuilt in full)
+  public void buildStencil(boolean blocks[]) {
+    
+    if ( kUseStencilArrays ) {
+      for ( int ky = 0, k = 0 ; ky < mBaseYSize ; ky++ ) {
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++, k++ ) {
+          if ( blocks[k] && hasTile(kx, ky) ) buildStencil(kx, ky);
+        }
+      }
+    }
+    
+    buildWallTerms();
+    if ( mCoarserGrid != null ) mCoarserGrid.buildStencil(blocks);
+    if ( mBelowCell != null ) buildBelowGrid();
+    
+  } // buildStencil(blocks)
+  
+  // set up the grids below the base grid (which depend on the openings)
+  // (each base grid cell is coupled to the neighbours it opens on to)
+  private void buildBelowGrid() {
+    
+    assert( mRefineLevel == 0 && mBelowCell != null );
+    
+    final float baseWalls[][][] = mOwner.walls();
+    final int num = mXSize*mYSize;
+    
+    final int   cellX[]      = new int[num],
+                cellY[]      = new int[num],
+                linkStart[]  = new int[num+1],
+                linkCell[]   = new int[4*num];
+    final float linkWeight[] = new float[4*num],
+                area[]       = new float[num];
+    
+    int numLinks = 0;
+    for ( int ky = 0, k = 0 ; ky < mYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mXSize ; kx++, k++ ) {
+        final float walls[] = baseWalls[ky][kx];
+        cellX[k] = kx;
+        cellY[k] = ky;
+        linkStart[k] = numLinks;
+        if ( walls[Env.WEST] == Flow.OPEN && kx > 0 ) {
+          linkCell[numLinks++] = k-1;
+        }
+        if ( walls[Env.EAST] == Flow.OPEN && kx < mXSize-1 ) {
+          linkCell[numLinks++] = k+1;
+        }
+        if ( walls[Env.NORTH] == Flow.OPEN && ky > 0 ) {
+          linkCell[numLinks++] = k-mXSize;
+        }
+        if ( walls[Env.SOUTH] == Flow.OPEN && ky < mYSize-1 ) {
+          linkCell[numLinks++] = k+mXSize;
+        }
+      }
+    }
+    linkStart[num] = numLinks;
+    for ( int n = 0 ; n < numLinks ; n++ ) linkWeight[n] = 1.0f;
+    for ( int k = 0 ; k < num ; k++ ) area[k] = 1.0f;
+    
+    mBelowGrid = new FlowCoarseGrid(cellX, cellY, linkStart, linkCell, 
+                                    linkWeight, area, mBelowCell);
+    
+  } // buildBelowGrid()
+  
+  // calculate the smoothing stencil for one block (except the wall terms)
+  private void buildStencil(int kx, int ky) {
+    
+    final float walls[] = mOwner.walls()[ky][kx];
+    
+    final int iy0 = ( ky << mRefineLevel ),
+              iy1 = iy0 + mRefineFactor-1,
+              ix0 = ( kx << mRefineLevel ),
+              ix1 = ix0 + mRefineFactor-1;
+    
+    for ( int iy = iy0 ; iy <= iy1 ; iy++ ) {
+      int i = index(ix0, iy);
+      for ( int ix = ix0 ; ix <= ix1 ; ix++, i++ ) {
+        final boolean wallN = ( iy==iy0 && walls[Env.NORTH] != Flow.OPEN ),
+                      wallS = ( iy==iy1 && walls[Env.SOUTH] != Flow.OPEN ),
+                      wallE = ( ix==ix1 && walls[Env.EAST]  != Flow.OPEN ),
+                      wallW = ( ix==ix0 && walls[Env.WEST]  != Flow.OPEN );
+        mCoefN[i] = ( wallN ? 0.0f : 0.25f );
+        mCoefS[i] = ( wallS ? 0.0f : 0.25f );
+        mCoefE[i] = ( wallE ? 0.0f : 0.25f );
+        mCoefW[i] = ( wallW ? 0.0f : 0.25f );
+        mCoefC[i] = 0.25f*( (wallN ? 1 : 0) + (wallS ? 1 : 0)
+                          + (wallE ? 1 : 0) + (wallW ? 1 : 0) );
+      }
+    }
+    
+  } // buildStencil(kx, ky)
+  
+  // recalculate the in-flow parts of the smoothing stencil
+  // (a wall acts as a ghost cell with value phi0 - delta*inFlow; the 
+  // owner works out the in-flow sinks first)
+  public void buildWallTerms() {
+    
+    if ( kUseStencilArrays ) {
+      for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+          if ( hasTile(kx, ky) ) buildWallTerms(kx, ky);
+        }
+      }
+    }
+    
+    if ( mCoarserGrid != null ) mCoarserGrid.buildWallTerms();
+    
+  } // buildWallTerms()
+  
+  // calculate the in-flow parts of the smoothing stencil for one block
+  private void buildWallTerms(int kx, int ky) {
+    
+    final float delta = 1.0f/mRefineFactor;
+    
+    final int iy0 = ( ky << mRefineLevel ),
+              iy1 = iy0 + mRefineFactor-1,
+              ix0 = ( kx << mRefineLevel ),
+              ix1 = ix0 + mRefineFactor-1;
+    
+    for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+      final float walls[] = mOwner.walls(layer)[ky][kx];
+      
+      final float sinkTerm = 0.25f*delta*delta*mInFlowSink[layer][ky][kx];
+      for ( int iy = iy0 ; iy <= iy1 ; iy++ ) {
+        int i = index(ix0, iy)*mNumLayers + layer;
+        for ( int ix = ix0 ; ix <= ix1 ; ix++, i += mNumLayers ) {
+          mWallTerm[i] = sinkTerm;
+        }
+      }
+  
+      if ( walls[Env.NORTH] != Flow.OPEN ) {
+        addWallTerm(index(ix0, iy0), 1, layer, walls[Env.NORTH], delta);
+      }
+      if ( walls[Env.SOUTH] != Flow.OPEN ) {
+        addWallTerm(index(ix0, iy1), 1, layer, walls[Env.SOUTH], delta);
+      }
+      if ( walls[Env.EAST] != Flow.OPEN ) {
+        addWallTerm(index(ix1, iy0), mStride, layer, walls[Env.EAST], delta);
+      }
+      if ( walls[Env.WEST] != Flow.OPEN ) {
+        addWallTerm(index(ix0, iy0), mStride, layer, walls[Env.WEST], delta);
+      }
+    }
+    
+  } // buildWallTerms(kx, ky)
+  
+  // add an in-flow to the stencil along one edge of a block (one layer)
+  private void addWallTerm(int start, int step, int layer, 
+                           float inFlow, float delta) {
+    
+    final float term = -0.25f*delta*inFlow;
+    for ( int n = 0, i = start ; n < mRefineFactor ; n++, i += step ) {
+      mWallTerm[i*mNumLayers + layer] += term;
+    }
+    
+  } // addWallTerm()
   
   // advance by one step (multi-grid method)
+  // (each level solves the problem afresh, overwriting the finer solution)
   public void solve() {
 
     if ( mCoarserGrid != null ) {
       restrict();
       mCoarserGrid.solve();
       prolongate();
-      for ( int n = 0 ; n < kNumSmoothIterations ; n++ ) smoothSolution();
+      smoothSolution(kNumSmoothIterations);
     } else {
-      for ( int n = 0 ; n < kNumCoarseIterations ; n++ ) smoothSolution();
-      normalizeSolution();
+      solveBase();
     }
     
   } // solve()
 
+  // improve the current solution by one V-cycle (correction scheme)
+  // (the residual is restricted, the coarser grid solves for the correction,
+  // which is then interpolated and added to the solution; the coarser grids
+  // keep the full solution rather than just the correction, so blocks that
+  // are not refined carry their solution over from the previous tick too)
+  public void solveCorrection() {
+    
+    if ( mCoarserGrid != null ) {
+      smoothSolution(kNumPreSmoothIterations);
+      restrictResidual();
+      mCoarserGrid.solveCorrection();
+      prolongateCorrection();
+      smoothSolution(kNumSmoothIterations);
+    } else {
+      solveBase();
+    }
+    
+  } // solveCorrection()
+  
+  // improve the solution on the base grid 
+  // (cycles of relaxation with a correction calculated on the grids below,
+  // so the work grows in proportion to the size of the base grid)
+  private void solveBase() {
+    
+    assert( mRefineLevel == 0 );
+    
+    if ( mBelowCell != null ) {
+      for ( int cycle = 0 ; cycle < kNumBaseCycles ; cycle++ ) {
+        smoothSolution(kNumBaseSmoothIterations);
+        for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+          restrictBelow(layer);
+          mBelowGrid.solve();
+          prolongateBelow(layer);
+        }
+        smoothSolution(kNumBaseSmoothIterations);
+      }
+    } else {
+      smoothSolution(kNumCoarseIterations);
+    }
+    
+    normalizeSolution();
+    
+  } // solveBase()
+  
+  // sum the residual over groups of cells for the grid below the base grid
+  // (for one layer)
+  private void restrictBelow(int layer) {
+    
+    final float baseWalls[][][] = mOwner.walls(layer);
+    final float belowSource[] = mBelowGrid.source();
+    for ( int k = 0 ; k < belowSource.length ; k++ ) belowSource[k] = 0.0f;
+    
+    for ( int ky = 0, k = 0 ; ky < mYSize ; ky++ ) {
+      for ( int kx = 0, i = index(0, ky) ; kx < mXSize ; kx++, i++, k++ ) {
+        if ( mBelowCell[k] < 0 ) continue;
+        final float residual = mSource[i*mNumLayers + layer] 
+                             - laplacian(i, layer, kx, ky, kx, kx, ky, ky, 
+                                         baseWalls[ky][kx], 1.0f);
+        belowSource[mBelowCell[k]] += residual;
+      }
+    }
+    
+  } // restrictBelow()
+  
+  // add the correction from the grid below the base grid (for one layer)
+  private void prolongateBelow(int layer) {
+    
+    final float belowData[] = mBelowGrid.data();
+    
+    for ( int ky = 0, k = 0 ; ky < mYSize ; ky++ ) {
+      for ( int kx = 0, i = index(0, ky) ; kx < mXSize ; kx++, i++, k++ ) {
+        if ( mBelowCell[k] < 0 ) continue;
+        mData[i*mNumLayers + layer] 
+                          += kBaseCorrectionFactor*belowData[mBelowCell[k]];
+      }
+    }
+    
+  } // prolongateBelow()
+  
   // fine-to-coarse interpolation (source data)
+  // (blocks that are not solved at this level are skipped, and their 
+  // source is taken straight from the top grid at the level they need)
   private void restrict() {
     
     assert( mCoarserGrid != null );
     
-    float coarseSource[][] = mCoarserGrid.source();
+    final FlowKernel kernel = Env.flowKernel();
+    final float coarseSource[] = mCoarserGrid.source();
+    final int layers = mNumLayers,
+              s = mStride*layers;
 
-    for ( int iy = 0, ky = 0 ; iy < mYSize ; iy+=2, ky++ ) {
-      for ( int ix = 0, kx = 0 ; ix < mXSize ; ix+=2, kx++ ) {
-        coarseSource[ky][kx] 
-                    = 0.25f*( mSource[iy][ix] + mSource[iy][ix+1] 
-                            + mSource[iy+1][ix] + mSource[iy+1][ix+1] );
-      }
-    }
+    final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
+    
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        
+        if ( kUseDesiredSolutionLevels &&
+             desiredSolutionLevel[ky][kx] < mRefineLevel ) {
+          if ( desiredSolutionLevel[ky][kx] == mRefineLevel-1 ) {
+            mCoarserGrid.restrictFromTop(kx, ky);
+          }
+          continue;
+        }
+        
+        final int iy0 = ( ky << mRefineLevel ),
+                  iy1 = iy0 + mRefineFactor-1,
+                  ix0 = ( kx << mRefineLevel );
+        
+        for ( int iy = iy0 ; iy <= iy1 ; iy+=2 ) {
+          kernel.restrictRow(mSource, index(ix0, iy)*layers, s,
+                             coarseSource, 
+                             mCoarserGrid.index(ix0>>1, iy>>1)*layers,
+                             mRefineFactor/2, layers);
+        }
+        
+      } // for kx
+    } // for ky
         
   } // restrict()
   
   // coarse-to-fine interpolation (solution data)
+  // (blocks that are not solved at this level are skipped, unless they
+  // border one that is, when they take values from their own level)
   private void prolongate() {
     
     assert( mCoarserGrid != null );
     
-    float coarseData[][] = mCoarserGrid.data();
+    final FlowKernel kernel = Env.flowKernel();
+    final float coarseData[] = mCoarserGrid.data();
+    final int layers = mNumLayers,
+              s = mStride*layers;
+    
+    final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
+    
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        
+        if ( kUseDesiredSolutionLevels &&
+             desiredSolutionLevel[ky][kx] < mRefineLevel ) {
+          if ( bordersSolvedBlock(kx, ky) ) {
+            injectFrom(gridAtLevel(desiredSolutionLevel[ky][kx]), kx, ky);
+          }
+          continue;
+        }
+        
+        final int iy0 = ( ky << mRefineLevel ),
+                  iy1 = iy0 + mRefineFactor-1,
+                  ix0 = ( kx << mRefineLevel );
+        
+        for ( int iy = iy0 ; iy <= iy1 ; iy+=2 ) {
+          kernel.prolongateRow(coarseData, 
+                               mCoarserGrid.index(ix0>>1, iy>>1)*layers,
+                               mData, index(ix0, iy)*layers, s,
+                               mRefineFactor/2, layers);
+        }
+        
+      } // for kx
+    } // for ky
+    
+  } // prolongate()
+  
+  // whether a block opens on to a block that is solved at this level
+  // (in which case the smoothing stencil needs its values)
+  private boolean bordersSolvedBlock(int kx, int ky) {
+    
+    final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
+    final float walls[] = mOwner.walls()[ky][kx];
+    
+    return ( ( walls[Env.NORTH] == Flow.OPEN && 
+               desiredSolutionLevel[ky-1][kx] >= mRefineLevel ) ||
+             ( walls[Env.SOUTH] == Flow.OPEN && 
+               desiredSolutionLevel[ky+1][kx] >= mRefineLevel ) ||
+             ( walls[Env.EAST] == Flow.OPEN && 
+               desiredSolutionLevel[ky][kx+1] >= mRefineLevel ) ||
+             ( walls[Env.WEST] == Flow.OPEN && 
+               desiredSolutionLevel[ky][kx-1] >= mRefineLevel ) );
+    
+  } // bordersSolvedBlock()
+  
+  // change the finest level at which a block's solution is kept up to date
+  // (values on the grids above the old level are copied from that level; 
+  // tiles are allocated where needed, and released on grids above the new 
+  // level, except on the top grid, where they may hold source terms, see
+  // releaseSourceTiles())
+  public void refreshBlock(int kx, int ky, int fromLevel, int toLevel) {
+    
+    if ( !kUseDesiredSolutionLevels ) return;
     
-    for ( int iy = 0, ky = 0 ; iy < mYSize ; iy+=2, ky++ ) {
-      for ( int ix = 0, kx = 0 ; ix < mXSize ; ix+=2, kx++ ) {
-        mData[iy][ix] = mData[iy][ix+1] 
-          = mData[iy+1][ix] = mData[iy+1][ix+1] = coarseData[ky][kx];
+    if ( mRefineLevel <= toLevel ) {
+      if ( mTiled && !hasTile(kx, ky) ) allocateTile(kx, ky);
+      if ( mRefineLevel > fromLevel ) {
+        injectFrom(gridAtLevel(fromLevel), kx, ky);
       }
+    } else if ( mTiled && hasTile(kx, ky) && 
+                mRefineLevel < mOwner.refineLevel() ) {
+      releaseTile(kx, ky);
     }
     
-  } // prolongate()
+    if ( mCoarserGrid != null ) {
+      mCoarserGrid.refreshBlock(kx, ky, fromLevel, toLevel);
+    }
+    
+  } // refreshBlock()
+  
+  // the grid at a particular level in the hierarchy (this one or coarser)
+  private FlowGrid gridAtLevel(int level) {
+    
+    assert( level >= 0 && level <= mRefineLevel );
+    FlowGrid grid = this;
+    while ( grid.mRefineLevel > level ) grid = grid.mCoarserGrid;
+    return grid;
+    
+  } // gridAtLevel()
+  
+  // set the solution for a block by copying values from a coarser grid
+  private void injectFrom(FlowGrid coarseGrid, int kx, int ky) {
+    
+    final int shift = mRefineLevel - coarseGrid.mRefineLevel;
+    final float coarseData[] = coarseGrid.data();
+    
+    final int iy0 = ( ky << mRefineLevel ),
+              iy1 = iy0 + mRefineFactor-1,
+              ix0 = ( kx << mRefineLevel ),
+              ix1 = ix0 + mRefineFactor-1;
+    
+    final int layers = mNumLayers;
+    for ( int iy = iy0 ; iy <= iy1 ; iy++ ) {
+      int i = index(ix0, iy)*layers;
+      for ( int ix = ix0 ; ix <= ix1 ; ix++ ) {
+        final int k = coarseGrid.index(ix >> shift, iy >> shift)*layers;
+        for ( int n = 0 ; n < layers ; n++, i++ ) mData[i] = coarseData[k+n];
+      }
+    }
+    
+  } // injectFrom()
+  
+  // set the source for a block by averaging over the top grid's source
+  // (which is zero if the top grid has no tile for the block)
+  private void restrictFromTop(int kx, int ky) {
+    
+    final FlowGrid topGrid = mOwner.topGrid();
+    final float topSource[] = topGrid.source();
+    final int topStride = topGrid.stride();
+    final boolean zero = !topGrid.hasTile(kx, ky);
+    
+    final int shift = mOwner.refineLevel() - mRefineLevel;
+    final int size = ( 1 << shift );
+    final float scale = 1.0f/(size*size);
+    
+    final int iy0 = ( ky << mRefineLevel ),
+              iy1 = iy0 + mRefineFactor-1,
+              ix0 = ( kx << mRefineLevel ),
+              ix1 = ix0 + mRefineFactor-1;
+    
+    final int layers = mNumLayers;
+    for ( int iy = iy0 ; iy <= iy1 ; iy++ ) {
+      int i = index(ix0, iy)*layers;
+      for ( int ix = ix0 ; ix <= ix1 ; ix++ ) {
+        final int top = ( zero ? 0 : topGrid.index(ix << shift, iy << shift) );
+        for ( int n = 0 ; n < layers ; n++, i++ ) {
+          if ( zero ) {
+            mSource[i] = 0.0f;
+            continue;
+          }
+          float sum = 0.0f;
+          for ( int jy = 0, j = top ; jy < size ; jy++, j += topStride ) {
+            for ( int jx = 0 ; jx < size ; jx++ ) {
+              sum += topSource[(j+jx)*layers + n];
+            }
+          }
+          mSource[i] = scale*sum;
+        }
+      }
+    }
+    
+  } // restrictFromTop()
+  
+  // fine-to-coarse interpolation (residual and solution data)
+  // (the coarser grid's source becomes the restricted residual, scaled,
+  // plus the operator applied to the restricted solution, so its solution 
+  // is the restricted solution plus the correction; blocks that are not 
+  // solved at this level get their source from the top grid, as in 
+  // restrict())
+  private void restrictResidual() {
+    
+    assert( mCoarserGrid != null );
+    
+    final float delta = 1.0f/mRefineFactor;
+    final int layers = mNumLayers;
+    
+    final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
+    
+    final float coarseData[] = mCoarserGrid.data(),
+                coarseSource[] = mCoarserGrid.source();
+    
+    updateHalos();
+    
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        
+        final int iy0 = ( ky << mRefineLevel ),
+                  iy1 = iy0 + mRefineFactor-1,
+                  ix0 = ( kx << mRefineLevel ),
+                  ix1 = ix0 + mRefineFactor-1;
+        
+        if ( kUseDesiredSolutionLevels &&
+             desiredSolutionLevel[ky][kx] < mRefineLevel ) {
+          if ( desiredSolutionLevel[ky][kx] == mRefineLevel-1 ) {
+            mCoarserGrid.restrictFromTop(kx, ky);
+          }
+          continue;
+        }
+
+        for ( int layer = 0 ; layer < layers ; layer++ ) {
+          final float walls[] = mOwner.walls(layer)[ky][kx];
+          for ( int iy = iy0 ; iy <= iy1 ; iy+=2 ) {
+            int k = mCoarserGrid.index(ix0>>1, iy>>1)*layers + layer;
+            for ( int ix = ix0 ; ix <= ix1 ; ix+=2, k+=layers ) {
+              float sum = 0.0f,
+                    residual = 0.0f;
+              for ( int jy = iy ; jy <= iy+1 ; jy++ ) {
+                for ( int jx = ix ; jx <= ix+1 ; jx++ ) {
+                  final int j = index(jx, jy);
+                  sum += mData[j*layers + layer];
+                  residual += mSource[j*layers + layer] 
+                              - laplacian(j, layer, jx, jy, 
+                                          ix0, ix1, iy0, iy1, walls, delta);
+                }
+              }
+              coarseData[k] = 0.25f*sum;
+              coarseSource[k] = 0.25f*kResidualScale*residual;
+            }
+          }
+        }
+        
+      } // for kx
+    } // for ky
+    
+    mCoarserGrid.addLaplacian(mRefineLevel);
+    
+  } // restrictResidual()
+  
+  // add the operator applied to the solution to the source term
+  // (only in blocks which are solved at the specified finer level)
+  private void addLaplacian(int fineLevel) {
+    
+    final float delta = 1.0f/mRefineFactor;
+    
+    final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
+
+    updateHalos();
+    
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        
+        if ( kUseDesiredSolutionLevels &&
+             desiredSolutionLevel[ky][kx] < fineLevel ) continue;
+        
+        final int iy0 = ( ky << mRefineLevel ),
+                  iy1 = iy0 + mRefineFactor-1,
+                  ix0 = ( kx << mRefineLevel ),
+                  ix1 = ix0 + mRefineFactor-1;
+        
+        for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+          final float walls[] = mOwner.walls(layer)[ky][kx];
+          for ( int iy = iy0 ; iy <= iy1 ; iy++ ) {
+            int i = index(ix0, iy);
+            for ( int ix = ix0 ; ix <= ix1 ; ix++, i++ ) {
+              mSource[i*mNumLayers + layer] 
+                      += laplacian(i, layer, ix, iy, ix0, ix1, iy0, iy1, 
+                                   walls, delta);
+            }
+          }
+        }
+        
+      } // for kx
+    } // for ky
+    
+  } // addLaplacian()
+  
+  // coarse-to-fine interpolation (correction added to the solution data)
+  // (blocks that are not solved at this level are skipped, as in prolongate())
+  private void prolongateCorrection() {
+    
+    assert( mCoarserGrid != null );
+    
+    final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
+    
+    final FlowKernel kernel = Env.flowKernel();
+    final float coarseData[] = mCoarserGrid.data();
+    final int layers = mNumLayers,
+              s = mStride*layers;
+    
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        
+        final int iy0 = ( ky << mRefineLevel ),
+                  iy1 = iy0 + mRefineFactor-1,
+                  ix0 = ( kx << mRefineLevel );
+        
+        if ( kUseDesiredSolutionLevels &&
+             desiredSolutionLevel[ky][kx] < mRefineLevel ) {
+          if ( bordersSolvedBlock(kx, ky) ) {
+            injectFrom(gridAtLevel(desiredSolutionLevel[ky][kx]), kx, ky);
+          }
+          continue;
+        }
+        
+        for ( int iy = iy0 ; iy <= iy1 ; iy+=2 ) {
+          kernel.correctRow(coarseData, 
+                            mCoarserGrid.index(ix0>>1, iy>>1)*layers,
+                            mData, index(ix0, iy)*layers, s,
+                            mRefineFactor/2, layers, kCorrectionFactor);
+        }
+        
+      } // for kx
+    } // for ky
+    
+  } // prolongateCorrection()
+  
+  // size of the residual (root-mean-square, after removing the mean)
+  // (only measured in blocks which are solved at this level; the largest
+  // value over the layers is returned)
+  public float residual() {
+    
+    final float delta = 1.0f/mRefineFactor;
+    
+    final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
+
+    float maxResidual = 0.0f;
+    
+    updateHalos();
+    
+    for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+      final float baseWalls[][][] = mOwner.walls(layer);
+      
+      double sum = 0.0,
+             sumSq = 0.0;
+      int num = 0;
+      
+      for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+          
+          if ( kUseDesiredSolutionLevels &&
+               desiredSolutionLevel[ky][kx] < mRefineLevel ) continue;
+          
+          final float walls[] = baseWalls[ky][kx];
+          
+          final int iy0 = ( ky << mRefineLevel ),
+                    iy1 = iy0 + mRefineFactor-1,
+                    ix0 = ( kx << mRefineLevel ),
+                    ix1 = ix0 + mRefineFactor-1;
+          
+          for ( int iy = iy0 ; iy <= iy1 ; iy++ ) {
+            int i = index(ix0, iy);
+            for ( int ix = ix0 ; ix <= ix1 ; ix++, i++ ) {
+              final float r = mSource[i*mNumLayers + layer] 
+                            - laplacian(i, layer, ix, iy, ix0, ix1, iy0, iy1, 
+                                        walls, delta);
+              sum += r;
+              sumSq += r*r;
+            }
+          }
+          num += mRefineFactor*mRefineFactor;
+          
+        } // for kx
+      } // for ky
+      
+      if ( num == 0 ) continue;
+      final double mean = sum/num;
+      final float residual 
+            = (float)Math.sqrt( Math.max(0.0, sumSq/num - mean*mean) );
+      maxResidual = Math.max(maxResidual, residual);
+    } // for layer
+    
+    return maxResidual;
+    
+  } // residual()
+  
+  // value of the (discrete) Laplacian operator applied to the solution
+  // (the position (index i) is inside the block with the given range/walls,
+  // and the walls are the ones for the layer)
+  private float laplacian(int i, int layer, int ix, int iy, 
+                          int ix0, int ix1, int iy0, int iy1, 
+                          float walls[], float delta) {
+    
+    final int j = i*mNumLayers + layer,
+              e = mNumLayers,
+              s = mStride*mNumLayers;
+    final float phi0 = mData[j];
+    final float phiN = ( iy==iy0 && walls[Env.NORTH] != Flow.OPEN ) 
+                       ? ( phi0 - delta*walls[Env.NORTH] )
+                       : mData[j-s];
+    final float phiS = ( iy==iy1 && walls[Env.SOUTH] != Flow.OPEN ) 
+                       ? ( phi0 - delta*walls[Env.SOUTH] )
+                       : mData[j+s];
+    final float phiE = ( ix==ix1 && walls[Env.EAST] != Flow.OPEN ) 
+                       ? ( phi0 - delta*walls[Env.EAST] )
+                       : mData[j+e];
+    final float phiW = ( ix==ix0 && walls[Env.WEST] != Flow.OPEN ) 
+                       ? ( phi0 - delta*walls[Env.WEST] )
+                       : mData[j-e];
+    return ( phiN + phiS + phiE + phiW - 4.0f*phi0 )/(delta*delta)
+           + mInFlowSink[layer][iy >> mRefineLevel][ix >> mRefineLevel];
+    
+  } // laplacian()
   
   // improve the current solution
+  // (red-black ordering, so the cells of one colour can be updated in any 
+  // order, and the rows are shared between threads on a large grid)
   public void smoothSolution() {
     
-    if ( mRefineLevel == 0 ) smoothSolutionBase();
-    else                     smoothSolutionRefined();
+    final TaskRunner tasks = Env.tasks();
+    final int numBands = Math.min( kBandsPerThread*tasks.numThreads(), 
+                                   mYSize );
+    final boolean parallel = ( tasks.numThreads() > 1 && 
+                               mXSize*mYSize >= kMinParallelCells );
+    
+    for ( int colour = 0 ; colour <= 1 ; colour++ ) {
+      if ( parallel ) {
+        mSmoothColour = colour;
+        mSmoothBands = numBands;
+        tasks.run(mSmoothTask, numBands);
+      } else {
+        smoothRows(colour, 0, mYSize);
+      }
+    }
     
   } // smoothSolution()
   
-  // improve the current solution (for an unrefined grid)
-  private void smoothSolutionBase() {
+  // improve the current solution by several smoothing steps
+  // (the steps are done a tile at a time, unless the grid is big enough 
+  // for the rows of each step to be shared between threads)
+  public void smoothSolution(int numSteps) {
+    
+    final boolean parallel = ( Env.tasks().numThreads() > 1 && 
+                               mXSize*mYSize >= kMinParallelCells );
+    if ( numSteps > 1 && kUseStencilArrays && !parallel ) {
+      smoothTiles(numSteps, kSmoothTileXSize, kSmoothTileYSize);
+    } else {
+      for ( int n = 0 ; n < numSteps ; n++ ) smoothSolution();
+    }
+    
+  } // smoothSolution(numSteps)
+  
+  // several smoothing steps, applied to one tile of the grid after another
+  // (the result is the same as for separate steps: each step is a red 
+  // half-step then a black one, and the tiles are skewed so that half-step 
+  // h covers cells with ix+h and iy+h inside the tile, which means that 
+  // every cell's neighbours are at the right half-step when it is updated, 
+  // given that the tiles are done row by row, and the half-steps in order)
+  public void smoothTiles(int numSteps, int tileXSize, int tileYSize) {
+    
+    assert( kUseStencilArrays );
+    assert( tileXSize > 0 && tileYSize > 0 );
+    
+    final int numHalfSteps = 2*numSteps;
+    final int numTilesX = (mXSize + numHalfSteps - 1 + tileXSize-1)/tileXSize,
+              numTilesY = (mYSize + numHalfSteps - 1 + tileYSize-1)/tileYSize;
+    
+    for ( int ty = 0 ; ty < numTilesY ; ty++ ) {
+      for ( int tx = 0 ; tx < numTilesX ; tx++ ) {
+        for ( int h = 0 ; h < numHalfSteps ; h++ ) {
+          final int iy0 = Math.max(0, ty*tileYSize - h),
+                    iy1 = Math.min(mYSize, (ty+1)*tileYSize - h),
+                    ix0 = Math.max(0, tx*tileXSize - h),
+                    ix1 = Math.min(mXSize, (tx+1)*tileXSize - h);
+          if ( iy0 >= iy1 || ix0 >= ix1 ) continue;
+          final int colour = ( h & 1 );
+          if ( mTiled ) updateHalos(1-colour, iy0, iy1, ix0, ix1);
+          smoothRowsStencil(colour, iy0, iy1, ix0, ix1);
+        }
+      }
+    }
+    
+  } // smoothTiles()
+  
+  // smooth the solution for cells of one colour in a range of rows [iy0,iy1)
+  // (a tiled grid first copies the neighbouring cells of the other colour,
+  // which are not changing, into its padding cells)
+  private void smoothRows(int colour, int iy0, int iy1) {
+    
+    if ( mTiled ) updateHalos(1-colour, iy0, iy1, 0, mXSize);
+    
+    if      ( kUseStencilArrays ) smoothRowsStencil(colour, iy0, iy1, 
+                                                    0, mXSize);
+    else if ( mRefineLevel == 0 ) smoothRowsBase(colour, iy0, iy1);
+    else                          smoothRowsRefined(colour, iy0, iy1);
+    
+  } // smoothRows()
+  
+  // smooth a range of rows, and a range of columns [ixLo,ixHi) within 
+  // them (using the precomputed stencil)
+  // (consecutive blocks that need smoothing are handled in a single run,
+  // unless the grid is tiled; the stencil is shared by the layers, so
+  // each cell's coefficients are loaded once for all of them)
+  private void smoothRowsStencil(int colour, int iyStart, int iyEnd,
+                                 int ixLo, int ixHi) {
+
+    final float sourceFactor = 1.0f/(4.0f*mRefineFactor*mRefineFactor);
+    
+    final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
+    
+    final FlowKernel kernel = Env.flowKernel();
+    final float data[]     = mData,
+                source[]   = mSource,
+                coefN[]    = mCoefN,
+                coefS[]    = mCoefS,
+                coefE[]    = mCoefE,
+                coefW[]    = mCoefW,
+                coefC[]    = mCoefC,
+                wallTerm[] = mWallTerm;
+    final int layers = mNumLayers,
+              s = mStride*layers;
+    
+    final int kxLast = ( (ixHi-1) >> mRefineLevel );
+    
+    for ( int iy = iyStart ; iy < iyEnd ; iy++ ) {
+      final int ky = ( iy >> mRefineLevel );
+      final int levels[] = desiredSolutionLevel[ky];
+      
+      int kx = ( ixLo >> mRefineLevel );
+      while ( kx <= kxLast ) {
+        if ( kUseDesiredSolutionLevels && mRefineLevel > 0 &&
+             levels[kx] < mRefineLevel ) {
+          kx++;
+          continue;
+        }
+        
+        int kxEnd = kx + 1;
+        while ( kxEnd <= kxLast && !mTiled &&
+                ( !kUseDesiredSolutionLevels || mRefineLevel == 0 ||
+                  levels[kxEnd] >= mRefineLevel ) ) kxEnd++;
+        
+        final int ixStart = Math.max(ixLo, kx << mRefineLevel),
+                  ixEnd   = Math.min(ixHi, kxEnd << mRefineLevel),
+                  ixFirst = ixStart + ((colour+iy+ixStart)%2);
+        kx = kxEnd;
+        if ( ixFirst >= ixEnd ) continue;
+        
+        final int iFirst = index(ixFirst, iy),
+                  iLast  = index(ixEnd-1, iy);
+        if ( layers == 1 ) {
+          kernel.smoothRow(data, source, coefN, coefS, coefE, coefW, coefC,
+                           wallTerm, sourceFactor, iFirst, iLast, s);
+        } else {
+          kernel.smoothRowLayers(data, source, coefN, coefS, coefE, coefW,
+                                 coefC, wallTerm, sourceFactor, 
+                                 iFirst, iLast, s, layers);
+        }
+      }
+    } // for iy
+    
+  } // smoothRowsStencil()
+  
+  // smooth a range of rows (for an unrefined grid)
+  private void smoothRowsBase(int colour, int ky0, int ky1) {
 
     assert( mRefineLevel == 0 );
     
     final float delta = 1.0f;
     final float sourceFactor = delta*delta/4.0f;
     
-    final float baseWalls[][][] = mOwner.walls();
+    final int e = mNumLayers,
+              s = mStride*mNumLayers;
     
-    for ( int stagger = 0 ; stagger <= 1 ; stagger++ ) {
-      for ( int ky = 0 ; ky < mYSize ; ky++ ) {
-
-        final int kx0 = ((stagger+ky) % 2);
-        for ( int kx = kx0 ; kx < mXSize ; kx+=2 ) {
+    for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+      final float baseWalls[][][] = mOwner.walls(layer);
+      
+      for ( int ky = ky0 ; ky < ky1 ; ky++ ) {
+  
+        final int kx0 = ((colour+ky) % 2);
+        for ( int kx = kx0, i = index(kx0, ky)*e + layer ; kx < mXSize ; 
+              kx+=2, i+=2*e ) {
           final float walls[] = baseWalls[ky][kx];
           
-          final float phi0 = mData[ky][kx];
+          final float phi0 = mData[i];
           final float phiN = ( walls[Env.NORTH] == Flow.OPEN ) 
-                             ? mData[ky-1][kx]
+                             ? mData[i-s]
                              : ( phi0 - walls[Env.NORTH] );
           final float phiS = ( walls[Env.SOUTH] == Flow.OPEN ) 
-                             ? mData[ky+1][kx]
+                             ? mData[i+s]
                              : ( phi0 - walls[Env.SOUTH] );
           final float phiE = ( walls[Env.EAST] == Flow.OPEN ) 
-                             ? mData[ky][kx+1]
+                             ? mData[i+e]
                              : ( phi0 - walls[Env.EAST] );
           final float phiW = ( walls[Env.WEST] == Flow.OPEN ) 
-                             ? mData[ky][kx-1]
+                             ? mData[i-e]
                              : ( phi0 - walls[Env.WEST] );
- 
-          mData[ky][kx] = 0.25f*( phiN + phiS + phiE + phiW )
-                          - sourceFactor*mSource[ky][kx];
+  
+          mData[i] = 0.25f*( phiN + phiS + phiE + phiW )
+                     - sourceFactor*( mSource[i] 
+                                      - mInFlowSink[layer][ky][kx] );
         }
       }
     }
     
-  } // smoothSolutionBase()
+  } // smoothRowsBase()
   
-  // improve the current solution (for a refined grid)
-  private void smoothSolutionRefined() {
+  // smooth a range of rows (for a refined grid)
+  private void smoothRowsRefined(int colour, int iyStart, int iyEnd) {
 
     assert( mRefineLevel > 0 );
     
     final float delta = 1.0f/mRefineFactor;
     final float sourceFactor = delta*delta/4.0f;
     
-    final float baseWalls[][][] = mOwner.walls();
     final int desiredSolutionLevel[][] = mOwner.desiredSolutionLevel();
     
-    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
-      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
-        
-        if ( kUseDesiredSolutionLevels &&
-             desiredSolutionLevel[ky][kx] < mRefineLevel ) continue;
-
-        final float walls[] = baseWalls[ky][kx];
-        
+    final int e = mNumLayers,
+              s = mStride*mNumLayers;
+    
+    for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+      final float baseWalls[][][] = mOwner.walls(layer);
+      
+      for ( int iy = iyStart ; iy < iyEnd ; iy++ ) {
+        final int ky = ( iy >> mRefineLevel );
         final int iy0 = ( ky << mRefineLevel ),
-                  iy1 = iy0 + mRefineFactor-1,
-                  ix0 = ( kx << mRefineLevel ),
-                  ix1 = ix0 + mRefineFactor-1;
+                  iy1 = iy0 + mRefineFactor-1;
         
-        for ( int stagger = 0 ; stagger <= 1 ; stagger++ ) {
-          for ( int iy = iy0 ; iy <= iy1 ; iy++ ) {
-            for ( int ix = ix0 + ((stagger+iy)%2) ; ix <= ix1 ; ix+=2 ) {
-              final float phi0 = mData[iy][ix];
-              final float phiN = ( iy==iy0 && walls[Env.NORTH] != Flow.OPEN ) 
-                                 ? ( phi0 - delta*walls[Env.NORTH] )
-                                 : mData[iy-1][ix];
-              final float phiS = ( iy==iy1 && walls[Env.SOUTH] != Flow.OPEN ) 
-                                 ? ( phi0 - delta*walls[Env.SOUTH] )
-                                 : mData[iy+1][ix];
-              final float phiE = ( ix==ix1 && walls[Env.EAST] != Flow.OPEN ) 
-                                 ? ( phi0 - delta*walls[Env.EAST] )
-                                 : mData[iy][ix+1];
-              final float phiW = ( ix==ix0 && walls[Env.WEST] != Flow.OPEN ) 
-                                 ? ( phi0 - delta*walls[Env.WEST] )
-                                 : mData[iy][ix-1];
-              mData[iy][ix] = 0.25f*( phiN + phiS + phiE + phiW )
-                              - sourceFactor*mSource[iy][ix];
-            }
-          }
-        }
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
           
-      } // for kx
-    } // for ky
+          if ( kUseDesiredSolutionLevels &&
+               desiredSolutionLevel[ky][kx] < mRefineLevel ) continue;
+  
+          final float walls[] = baseWalls[ky][kx];
+          final float sink = mInFlowSink[layer][ky][kx];
+          
+          final int ix0 = ( kx << mRefineLevel ),
+                    ix1 = ix0 + mRefineFactor-1;
+          
+          final int ixStart = ix0 + ((colour+iy)%2);
+          for ( int ix = ixStart, i = index(ixStart, iy)*e + layer ; 
+                ix <= ix1 ; ix+=2, i+=2*e ) {
+            final float phi0 = mData[i];
+            final float phiN = ( iy==iy0 && walls[Env.NORTH] != Flow.OPEN ) 
+                               ? ( phi0 - delta*walls[Env.NORTH] )
+                               : mData[i-s];
+            final float phiS = ( iy==iy1 && walls[Env.SOUTH] != Flow.OPEN ) 
+                               ? ( phi0 - delta*walls[Env.SOUTH] )
+                               : mData[i+s];
+            final float phiE = ( ix==ix1 && walls[Env.EAST] != Flow.OPEN ) 
+                               ? ( phi0 - delta*walls[Env.EAST] )
+                               : mData[i+e];
+            final float phiW = ( ix==ix0 && walls[Env.WEST] != Flow.OPEN ) 
+                               ? ( phi0 - delta*walls[Env.WEST] )
+                               : mData[i-e];
+            mData[i] = 0.25f*( phiN + phiS + phiE + phiW )
+                       - sourceFactor*( mSource[i] - sink );
+          }
+            
+        } // for kx
+      } // for iy
+    } // for layer
     
-  } // smoothSolutionRefined()
+  } // smoothRowsRefined()
 
-  // adjust the solution so its mean is close to zero
+  // adjust the solution so its mean is close to zero (in each layer)
   // (adding a constant does not affect the gradient)
   private void normalizeSolution() {
     
-    float sum = 0.0f;
-    for ( int ky = 0 ; ky < mYSize ; ky++ ) {
-      for ( int kx = 0 ; kx < mXSize ; kx++ ) {
-        sum += mData[ky][kx]; 
-      }
-    }
+    final FlowKernel kernel = Env.flowKernel();
+    final int layers = mNumLayers;
     
-    final float mean = sum/(mYSize*mXSize);
-    for ( int ky = 0 ; ky < mYSize ; ky++ ) {
-      for ( int kx = 0 ; kx < mXSize ; kx++ ) {
-        mData[ky][kx] -= mean; 
+    for ( int layer = 0 ; layer < layers ; layer++ ) {
+      float sum = 0.0f;
+      for ( int ky = 0 ; ky < mYSize ; ky++ ) {
+        sum += kernel.sum(mData, index(0, ky)*layers + layer, mXSize, layers);
+      }
+      
+      final float mean = sum/(mYSize*mXSize);
+      for ( int ky = 0 ; ky < mYSize ; ky++ ) {
+        kernel.add(mData, index(0, ky)*layers + layer, mXSize, layers, -mean);
       }
     }
     
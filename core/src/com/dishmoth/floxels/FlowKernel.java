@@ -0,0 +1,157 @@
+/*
+ *  FlowKernel.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// the inner loops of the flow solver, over whole row segments of a grid
+// (this version is plain Java that runs on every platform; a platform can
+// supply a faster version, see Env.setFlowKernel())
+// (the methods must be safe to call from several threads at once)
+public class FlowKernel {
+
+  // constructor
+  public FlowKernel() {}
+
+  // description for debug messages
+  public String name() { return "scalar"; }
+
+  // one red-black smoothing step for the cells first, first+2, ..., last
+  // (single-layer grids; the neighbouring cells are at i-1, i+1, i-stride
+  // and i+stride, see FlowGrid.buildStencil())
+  public void smoothRow(float data[], float source[],
+                        float coefN[], float coefS[], float coefE[],
+                        float coefW[], float coefC[], float wallTerm[],
+                        float sourceFactor, int first, int last, int stride) {
+
+    final int s = stride;
+    for ( int i = first ; i <= last ; i+=2 ) {
+      data[i] = coefN[i]*data[i-s] + coefS[i]*data[i+s]
+              + coefE[i]*data[i+1] + coefW[i]*data[i-1]
+              + coefC[i]*data[i] + wallTerm[i]
+              - sourceFactor*source[i];
+    }
+
+  } // smoothRow()
+
+  // one red-black smoothing step for the cells first, first+2, ..., last
+  // of a grid whose values are interleaved in several layers
+  // (the cells' coefficients are at i, and their values at i*layers to 
+  // i*layers+layers-1; stride is the distance between rows of values)
+  public void smoothRowLayers(float data[], float source[],
+                              float coefN[], float coefS[], float coefE[],
+                              float coefW[], float coefC[], float wallTerm[],
+                              float sourceFactor, int first, int last, 
+                              int stride, int layers) {
+
+    final int s = stride;
+    if ( layers == 2 ) {
+      for ( int i = first ; i <= last ; i+=2 ) {
+        final float cN = coefN[i], cS = coefS[i], cE = coefE[i],
+                    cW = coefW[i], cC = coefC[i];
+        final int j = 2*i;
+        data[j] = cN*data[j-s] + cS*data[j+s]
+                + cE*data[j+2] + cW*data[j-2]
+                + cC*data[j] + wallTerm[j] 
+                - sourceFactor*source[j];
+        data[j+1] = cN*data[j+1-s] + cS*data[j+1+s]
+                  + cE*data[j+3] + cW*data[j-1]
+                  + cC*data[j+1] + wallTerm[j+1] 
+                  - sourceFactor*source[j+1];
+      }
+    } else {
+      for ( int i = first ; i <= last ; i+=2 ) {
+        final float cN = coefN[i], cS = coefS[i], cE = coefE[i],
+                    cW = coefW[i], cC = coefC[i];
+        for ( int j = i*layers, jEnd = j+layers ; j < jEnd ; j++ ) {
+          data[j] = cN*data[j-s] + cS*data[j+s]
+                  + cE*data[j+layers] + cW*data[j-layers]
+                  + cC*data[j] + wallTerm[j] 
+                  - sourceFactor*source[j];
+        }
+      }
+    }
+
+  } // smoothRowLayers()
+
+  // average pairs of fine rows down to one coarse row
+  // (num coarse cells starting at coarseStart, each from the 2x2 fine
+  // cells at fineStart, with the next fine row at fineStart+fineStride;
+  // values are interleaved in the given number of layers)
+  public void restrictRow(float fine[], int fineStart, int fineStride,
+                          float coarse[], int coarseStart,
+                          int num, int layers) {
+
+    final int e = layers,
+              s = fineStride;
+    int i = fineStart,
+        k = coarseStart;
+    for ( int n = 0 ; n < num ; n++, i += layers ) {
+      for ( int layer = 0 ; layer < layers ; layer++, i++, k++ ) {
+        coarse[k] = 0.25f*( fine[i]   + fine[i+e]
+                          + fine[i+s] + fine[i+s+e] );
+      }
+    }
+
+  } // restrictRow()
+
+  // copy one coarse row to pairs of fine rows (see restrictRow())
+  public void prolongateRow(float coarse[], int coarseStart,
+                            float fine[], int fineStart, int fineStride,
+                            int num, int layers) {
+
+    final int e = layers,
+              s = fineStride;
+    int i = fineStart,
+        k = coarseStart;
+    for ( int n = 0 ; n < num ; n++, i += layers ) {
+      for ( int layer = 0 ; layer < layers ; layer++, i++, k++ ) {
+        fine[i] = fine[i+e] = fine[i+s] = fine[i+s+e] = coarse[k];
+      }
+    }
+
+  } // prolongateRow()
+
+  // shift each 2x2 group of fine cells by a fraction of the difference
+  // between the coarse cell and the group's mean (see restrictRow())
+  public void correctRow(float coarse[], int coarseStart,
+                         float fine[], int fineStart, int fineStride,
+                         int num, int layers, float factor) {
+
+    final int e = layers,
+              s = fineStride;
+    int i = fineStart,
+        k = coarseStart;
+    for ( int n = 0 ; n < num ; n++, i += layers ) {
+      for ( int layer = 0 ; layer < layers ; layer++, i++, k++ ) {
+        final float mean = 0.25f*( fine[i]   + fine[i+e]
+                                 + fine[i+s] + fine[i+s+e] );
+        final float correction = factor*( coarse[k] - mean );
+        fine[i]     += correction;
+        fine[i+e]   += correction;
+        fine[i+s]   += correction;
+        fine[i+s+e] += correction;
+      }
+    }
+
+  } // correctRow()
+
+  // sum of num values, starting at the given position, at the given step
+  public float sum(float data[], int start, int num, int step) {
+
+    float sum = 0.0f;
+    for ( int n = 0, i = start ; n < num ; n++, i += step ) sum += data[i];
+    return sum;
+
+  } // sum()
+
+  // add a value to num values (as in sum())
+  public void add(float data[], int start, int num, int step, float value) {
+
+    for ( int n = 0, i = start ; n < num ; n++, i += step ) data[i] += value;
+
+  } // add()
+
+} // class FlowKernel
@@ -0,0 +1,268 @@
+/*
+ *  FlowSet.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// flows for several populations in the same maze, solved together
+// (the flows share one MultigridSolver, each as a layer of its grids, so
+// a single sweep updates every flow; the walls of the flows must open in
+// the same places, but their in-flows and sources can differ)
+// (alternatively the flows can be solved on a schedule, each with its own
+// solver, see setSolvePeriods())
+public class FlowSet {
+
+  // the flows (one for each population)
+  private final Flow mFlows[];
+
+  // the shared solver
+  private final MultigridSolver mSolver;
+
+  // precomputed solutions for static sources, shared by the flows
+  private final FlowBasisCache mBasisCache;
+
+  // how many solves each flow waits between updates, or null if every
+  // flow is solved every time (see setSolvePeriods())
+  private int mSolvePeriods[];
+
+  // number of solves so far (for the schedule)
+  private int mSolveCount;
+
+  // which flows are updated by the current solve
+  private final boolean mSolving[];
+
+  // a solve running in the background, or null (see startSolve())
+  private TaskRunner.Job mPendingSolve;
+
+  // settings for the background solve (see startSolve())
+  private float mSolveTolerance;
+  private long  mSolveNanos;
+
+  // job for running the solver in the background
+  private final TaskRunner.Task mSolveTask = new TaskRunner.Task() {
+    public void run(int index) {
+      if ( mSolvePeriods == null ) {
+        mFlows[0].improveSolution(mSolveTolerance, mSolveNanos, null);
+        for ( Flow flow : mFlows ) flow.updateVelocities();
+      } else {
+        for ( int k = 0 ; k < mFlows.length ; k++ ) {
+          if ( !mSolving[k] ) continue;
+          mFlows[k].improveSolution(mSolveTolerance, mSolveNanos, null);
+          mFlows[k].updateVelocities();
+        }
+      }
+    }
+  };
+
+  // constructor
+  public FlowSet(int numFlows, int baseXSize, int baseYSize, int refineLevel) {
+
+    assert( numFlows > 0 );
+
+    mFlows = new Flow[numFlows];
+    for ( int k = 0 ; k < numFlows ; k++ ) {
+      mFlows[k] = new Flow(baseXSize, baseYSize, refineLevel, false);
+    }
+
+    mSolver = new MultigridSolver(mFlows);
+    for ( int k = 0 ; k < numFlows ; k++ ) {
+      mFlows[k].setSolver(mSolver.layer(k));
+    }
+
+    mBasisCache = new FlowBasisCache();
+    for ( Flow flow : mFlows ) flow.setBasisCache(mBasisCache);
+
+    mSolvePeriods = null;
+    mSolveCount = 0;
+    mSolving = new boolean[numFlows];
+    mPendingSolve = null;
+
+  } // constructor
+
+  // number of flows
+  public int numFlows() { return mFlows.length; }
+
+  // access to one of the flows
+  public Flow flow(int index) { return mFlows[index]; }
+
+  // access to all of the flows 
+  // (the caller may reorder the array, as Floxels.switchFloxelTypes() 
+  // does, but not change what it holds; each flow keeps its own layer of
+  // the shared solver, while the schedule of setSolvePeriods() goes by 
+  // position in the array)
+  public Flow[] flows() { return mFlows; }
+
+  // the precomputed solutions for static sources (see FlowBasis)
+  public FlowBasisCache basisCache() { return mBasisCache; }
+
+  // choose between improving and rebuilding the solutions (see solve())
+  public void setWarmStart(boolean warm) {
+
+    for ( Flow flow : mFlows ) flow.setWarmStart(warm);
+
+  } // setWarmStart()
+
+  // run a fixed number of cycles in each solve rather than following the
+  // time budget (zero to use the budget, see Flow.setFixedCycles())
+  public void setFixedCycles(int cycles) {
+
+    for ( Flow flow : mFlows ) flow.setFixedCycles(cycles);
+
+  } // setFixedCycles()
+
+  // clear the current solutions
+  public void reset() {
+
+    finishSolve();
+    for ( Flow flow : mFlows ) flow.reset();
+
+  } // reset()
+
+  // choose between solving in step with the caller (the default) and
+  // solving in the background while the last solutions are being used
+  // (see startSolve())
+  public void setPipelined(boolean pipelined) {
+
+    finishSolve();
+    for ( Flow flow : mFlows ) flow.setPipelined(pipelined);
+
+  } // setPipelined()
+
+  // whether the flows are solved in the background
+  public boolean pipelined() { return mFlows[0].pipelined(); }
+
+  // solve the flows on a schedule rather than all at every solve
+  // (flow k is updated on every period[k]-th solve, and the flows take
+  // turns, so with periods of two each solve updates just one of them;
+  // in between, the flows' velocities are extrapolated from their last
+  // two solutions; each flow gets a solver of its own, so the solutions
+  // start again and the source terms need to be added again; periods of
+  // null return to solving every flow together every time)
+  // (the periods go with the positions in the flows() array, so if the 
+  // caller reorders the flows then the periods stay with the positions)
+  public void setSolvePeriods(int periods[]) {
+
+    assert( periods == null || periods.length == mFlows.length );
+    finishSolve();
+
+    mSolvePeriods = ( periods != null ) ? periods.clone() : null;
+    for ( int k = 0 ; k < mFlows.length ; k++ ) {
+      assert( periods == null || periods[k] > 0 );
+      Flow flow = mFlows[k];
+      flow.setSolver( ( periods != null ) 
+                      ? new MultigridSolver(flow).layer(0) 
+                      : mSolver.layer(flow) );
+    }
+    mSolveCount = 0;
+
+  } // setSolvePeriods()
+
+  // decide which flows the next solve updates
+  private void chooseFlowsToSolve() {
+
+    for ( int k = 0 ; k < mFlows.length ; k++ ) {
+      mSolving[k] = ( mSolvePeriods == null ||
+                      (mSolveCount + k) % mSolvePeriods[k] == 0 );
+    }
+
+  } // chooseFlowsToSolve()
+
+  // after a solve, extrapolate the velocities of the flows it skipped
+  private void extrapolateSkippedFlows() {
+
+    for ( int k = 0 ; k < mFlows.length ; k++ ) {
+      if ( !mSolving[k] ) mFlows[k].extrapolateVelocities();
+    }
+    mSolveCount++;
+
+  } // extrapolateSkippedFlows()
+
+  // produce solutions for all of the flows (one cycle of the solver)
+  public void solve() {
+
+    assert( mPendingSolve == null );
+    if ( mSolvePeriods != null ) {
+      chooseFlowsToSolve();
+      for ( int k = 0 ; k < mFlows.length ; k++ ) {
+        if ( mSolving[k] ) mFlows[k].solve();
+      }
+      extrapolateSkippedFlows();
+      return;
+    }
+
+    for ( Flow flow : mFlows ) flow.checkWalls();
+
+    final PoissonSolver solver = mSolver.layer(0);
+    if ( mFlows[0].warmStart() ) {
+      solver.prepare();
+      solver.improve();
+    } else {
+      solver.solve();
+    }
+
+    for ( Flow flow : mFlows ) flow.updateVelocities();
+
+  } // solve()
+
+  // improve the solutions until the residual is below the tolerance for
+  // every flow, or until the time budget runs out (see Flow.solve())
+  // (with a schedule, each flow that is updated gets the whole budget, and
+  // the stats are for the last of them)
+  public void solve(float tolerance, long maxNanos, Flow.SolveStats stats) {
+
+    assert( mPendingSolve == null );
+    if ( mSolvePeriods != null ) {
+      chooseFlowsToSolve();
+      for ( int k = 0 ; k < mFlows.length ; k++ ) {
+        if ( mSolving[k] ) mFlows[k].solve(tolerance, maxNanos, stats);
+      }
+      extrapolateSkippedFlows();
+      return;
+    }
+
+    // (the first flow's solver runs the cycles, which improve every layer)
+    for ( Flow flow : mFlows ) flow.checkWalls();
+    mFlows[0].improveSolution(tolerance, maxNanos, stats);
+    for ( Flow flow : mFlows ) flow.updateVelocities();
+
+  } // solve(tolerance, maxNanos, stats)
+
+  // begin improving the solutions in the background (as in solve() with a
+  // tolerance) from the current walls, sources and solution levels
+  // (pipelined mode only; nothing but the desired solution levels may
+  // change until finishSolve() is called, and the flows' velocities stay
+  // as they were until then)
+  public void startSolve(float tolerance, long maxNanos) {
+
+    assert( pipelined() );
+    finishSolve();
+
+    chooseFlowsToSolve();
+    for ( int k = 0 ; k < mFlows.length ; k++ ) {
+      if ( !mSolving[k] ) continue;
+      mFlows[k].checkWalls();
+      mFlows[k].copyDesiredSolutionLevels();
+    }
+    mSolveTolerance = tolerance;
+    mSolveNanos = maxNanos;
+    mPendingSolve = Env.tasks().start(mSolveTask, 1);
+
+  } // startSolve()
+
+  // wait for the background solve to complete, then switch the flows over
+  // to its velocities (does nothing if there is no solve running)
+  public void finishSolve() {
+
+    if ( mPendingSolve == null ) return;
+    mPendingSolve.finish();
+    mPendingSolve = null;
+    for ( int k = 0 ; k < mFlows.length ; k++ ) {
+      if ( mSolving[k] ) mFlows[k].swapVelocities();
+    }
+    extrapolateSkippedFlows();
+
+  } // finishSolve()
+
+} // class FlowSet
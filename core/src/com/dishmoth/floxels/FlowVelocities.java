@@ -0,0 +1,182 @@
+/*
+ *  FlowVelocities.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// velocities for the cells of a flow's top grid, stored only for some
+// base blocks (each stored block has a tile from a pool, with the cells
+// row by row; see Flow.updateVelocities())
+class FlowVelocities {
+
+  // number of tiles allocated in one go
+  static private final int kInitialTiles = 16;
+
+  // value in the mTileBase array for a block with no tile
+  static private final int kNoTile = -1;
+
+  // the base grid (no refinement)
+  private final int mBaseXSize,
+                    mBaseYSize;
+
+  // refinement factor and level for the top grid
+  private final int mRefineFactor,
+                    mRefineLevel;
+
+  // number of cells in a tile
+  private final int mTileArea;
+
+  // where each base block's cells start in the velocity arrays (indexed
+  // as ky*mBaseXSize + kx, or kNoTile if the block is not stored)
+  private final int mTileBase[];
+
+  // tiles that have been released, ready to be reused
+  private int mFreeTiles[];
+  private int mNumFreeTiles;
+
+  // number of tiles that have been handed out
+  private int mNumTiles;
+
+  // velocity components for the cells of the tiles
+  private float mVelX[],
+                mVelY[];
+
+  // constructor (no blocks are stored to begin with)
+  public FlowVelocities(int baseXSize, int baseYSize, int refineLevel) {
+
+    mBaseXSize = baseXSize;
+    mBaseYSize = baseYSize;
+    mRefineLevel = refineLevel;
+    mRefineFactor = ( 1 << refineLevel );
+    mTileArea = mRefineFactor*mRefineFactor;
+
+    mTileBase = new int[mBaseXSize*mBaseYSize];
+    for ( int k = 0 ; k < mTileBase.length ; k++ ) mTileBase[k] = kNoTile;
+
+    final int numTiles = Math.min(kInitialTiles, mTileBase.length);
+    mFreeTiles = new int[numTiles];
+    mNumFreeTiles = mNumTiles = 0;
+    mVelX = new float[numTiles*mTileArea];
+    mVelY = new float[numTiles*mTileArea];
+
+  } // constructor
+
+  // access to the velocity arrays (see tileBase() and index())
+  public float[] velX() { return mVelX; }
+  public float[] velY() { return mVelY; }
+
+  // whether a base block is stored
+  public boolean hasTile(int kx, int ky) {
+
+    return ( mTileBase[ky*mBaseXSize + kx] != kNoTile );
+
+  } // hasTile()
+
+  // position of a block's first cell in the velocity arrays (the rows of
+  // the block follow on, mRefineFactor cells each), or -1 if not stored
+  public int tileBase(int kx, int ky) { return mTileBase[ky*mBaseXSize + kx]; }
+
+  // position of a top grid cell in the velocity arrays (or -1 if its
+  // block is not stored)
+  public int index(int ix, int iy) {
+
+    final int base = mTileBase[(iy >> mRefineLevel)*mBaseXSize
+                               + (ix >> mRefineLevel)];
+    if ( base == kNoTile ) return kNoTile;
+
+    final int mask = mRefineFactor - 1;
+    return base + ((iy & mask) << mRefineLevel) + (ix & mask);
+
+  } // index()
+
+  // make sure that a block is stored or not, as required
+  // (a new tile's values are left as they are, to be filled in)
+  public void setStored(int kx, int ky, boolean stored) {
+
+    if ( stored && !hasTile(kx, ky) ) allocateTile(kx, ky);
+    if ( !stored && hasTile(kx, ky) ) releaseTile(kx, ky);
+
+  } // setStored()
+
+  // copy a block's values from another set of velocities, storing the
+  // block here if necessary
+  public void copyTile(FlowVelocities from, int kx, int ky) {
+
+    assert( from.hasTile(kx, ky) );
+
+    setStored(kx, ky, true);
+    final int fromBase = from.tileBase(kx, ky),
+              toBase = tileBase(kx, ky);
+    System.arraycopy(from.mVelX, fromBase, mVelX, toBase, mTileArea);
+    System.arraycopy(from.mVelY, fromBase, mVelY, toBase, mTileArea);
+
+  } // copyTile()
+
+  // set all of the stored velocities to zero
+  public void clear() {
+
+    final int length = mNumTiles*mTileArea;
+    for ( int k = 0 ; k < length ; k++ ) mVelX[k] = mVelY[k] = 0.0f;
+
+  } // clear()
+
+  // copy the velocities, row by row over the whole top grid (zero in
+  // blocks that are not stored)
+  public void copyTo(float velX[], float velY[]) {
+
+    final int xSize = mBaseXSize*mRefineFactor;
+    for ( int iy = 0 ; iy < mBaseYSize*mRefineFactor ; iy++ ) {
+      for ( int ix = 0, j = iy*xSize ; ix < xSize ; ix++, j++ ) {
+        final int i = index(ix, iy);
+        velX[j] = ( i == kNoTile ? 0.0f : mVelX[i] );
+        velY[j] = ( i == kNoTile ? 0.0f : mVelY[i] );
+      }
+    }
+
+  } // copyTo()
+
+  // take a tile from the pool for a block
+  private void allocateTile(int kx, int ky) {
+
+    final int tile = ( mNumFreeTiles > 0 ) ? mFreeTiles[--mNumFreeTiles]
+                                           : mNumTiles++;
+    if ( mNumTiles*mTileArea > mVelX.length ) growTiles(2*mNumTiles);
+
+    mTileBase[ky*mBaseXSize + kx] = tile*mTileArea;
+
+  } // allocateTile()
+
+  // return a block's tile to the pool
+  private void releaseTile(int kx, int ky) {
+
+    final int k = ky*mBaseXSize + kx;
+    mFreeTiles[mNumFreeTiles++] = mTileBase[k]/mTileArea;
+    mTileBase[k] = kNoTile;
+
+  } // releaseTile()
+
+  // make space for more tiles
+  private void growTiles(int numTiles) {
+
+    final int length = numTiles*mTileArea;
+    mVelX = grow(mVelX, length);
+    mVelY = grow(mVelY, length);
+
+    int freeTiles[] = new int[numTiles];
+    System.arraycopy(mFreeTiles, 0, freeTiles, 0, mNumFreeTiles);
+    mFreeTiles = freeTiles;
+
+  } // growTiles()
+
+  // copy an array into a bigger one
+  static private float[] grow(float array[], int length) {
+
+    float newArray[] = new float[length];
+    System.arraycopy(array, 0, newArray, 0, array.length);
+    return newArray;
+
+  } // grow()
+
+} // class FlowVelocities
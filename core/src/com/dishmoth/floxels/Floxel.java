@@ -7,11 +7,11 @@
 package com.dishmoth.floxels;
 
 // basic particle details
+// (the floxels in the game are kept in a FloxelStore, with the same details
+// in separate arrays, while this class describes a single floxel, such as
+// those drawn by the Cursor)
 public final class Floxel {
 
-  // number of different populations
-  public static final int NUM_TYPES = 2;
-  
   // number of different shades within a colour scheme
   public static final int NUM_SHADES = 16;
   
@@ -23,7 +23,7 @@ public final class Floxel {
   public static final int STUN_FACE = 6;
   public static final int SPLAT_FACE = 7;
   
-  // different types of behaviour
+  // different types of behaviour (see also FloxelStore.UNUSED, etc.)
   public enum State { UNUSED, NORMAL, SPLATTED, RECLAIMED, STUNNED };
   
   // current mode of behaviour
@@ -42,7 +42,7 @@ public final class Floxel {
   // if true then the floxel is on top of another of the same type
   public boolean mNeedsNudge = false;
   
-  // which population the floxel belongs to (0 to NUM_TYPES-1)
+  // which population the floxel belongs to (see Floxels.numFloxelTypes())
   public byte mType = 0;
 
   // brightness of the floxel (0 to NUM_SHADES-1)
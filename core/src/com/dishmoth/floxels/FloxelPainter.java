@@ -282,17 +282,25 @@ public class FloxelPainter {
   // display a floxel
   void draw(SpriteBatch batch, Floxel floxel, int colour) {
 
+    draw(batch, floxel.mX, floxel.mY, floxel.mShade, floxel.mFace, colour);
+    
+  } // draw()
+  
+  // display a floxel given its details (see FloxelStore)
+  void draw(SpriteBatch batch, float xPos, float yPos, 
+            int shade, int face, int colour) {
+
     final float xScale = Env.gameWidth() / (float)Env.numTilesX(),
                 yScale = Env.gameHeight() / (float)Env.numTilesY();
 
-    int x = (int)(floxel.mX * xScale) + Env.gameOffsetX(),
-        y = (int)(floxel.mY * yScale) + Env.gameOffsetY();
+    int x = (int)(xPos * xScale) + Env.gameOffsetX(),
+        y = (int)(yPos * yScale) + Env.gameOffsetY();
       
-    if ( floxel.mFace < Floxel.NUM_NORMAL_FACES ) {
+    if ( face < Floxel.NUM_NORMAL_FACES ) {
       
       final int index = ( colour*Floxel.NUM_SHADES 
-                          + floxel.mShade )*Floxel.NUM_NORMAL_FACES
-                        + floxel.mFace;
+                          + shade )*Floxel.NUM_NORMAL_FACES
+                        + face;
   
       final int iu = index % mFacesPerRow,
                 iv = index / mFacesPerRow;
@@ -307,7 +315,7 @@ public class FloxelPainter {
       
     } else {
 
-      assert( floxel.mFace == Floxel.SPLAT_FACE );
+      assert( face == Floxel.SPLAT_FACE );
       
       final float u0 = mTextureSplatU + colour*mTextureSplatShiftU,
                   u1 = u0 + mTextureSplatSizeU,
@@ -321,6 +329,6 @@ public class FloxelPainter {
       
     }
     
-  } // draw()
+  } // draw(details)
   
 } // class FloxelPainter
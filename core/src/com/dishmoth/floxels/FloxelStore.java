@@ -0,0 +1,175 @@
+/*
+ *  FloxelStore.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import java.util.Arrays;
+
+// the details of a fixed number of particles, kept field by field
+// (a structure of arrays: floxel k is described by mX[k], mY[k], etc.,
+// with the same meanings as in the Floxel class, so the passes over the
+// floxels in Floxels read through dense primitive arrays)
+// (the slots in use are listed in order in active(), and the unused slots
+// are kept on a stack, so passes over the floxels and new floxels cost
+// nothing for the unused slots)
+public final class FloxelStore {
+
+  // the floxels' states (matching the order of Floxel.State)
+  public static final byte UNUSED    = 0,
+                           NORMAL    = 1,
+                           SPLATTED  = 2,
+                           RECLAIMED = 3,
+                           STUNNED   = 4;
+
+  // number of floxels
+  private final int mSize;
+
+  // current mode of behaviour (UNUSED, NORMAL, etc.)
+  public final byte mState[];
+
+  // position (in base grid units)
+  public final float mX[],
+                     mY[];
+
+  // timer counting down depending on current state (0 if not in use)
+  public final short mTimer[];
+
+  // score rating for the floxel's current cluster (0 to maxClusterScore())
+  public final byte mCluster[];
+
+  // if true then the floxel is on top of another of the same type
+  public final boolean mNeedsNudge[];
+
+  // which population the floxel belongs to (see Floxels.numFloxelTypes())
+  public final byte mType[];
+
+  // brightness of the floxel (0 to NUM_SHADES-1)
+  public final byte mShade[];
+
+  // which face the floxel is showing (0 to NUM_FACES-1)
+  public final byte mFace[];
+
+  // the slots in use (in the order that they started being used, apart 
+  // from changes by moveToEnd())
+  private final int mActive[];
+  private int       mNumActive;
+
+  // stack of the unused slots
+  private final int mFree[];
+  private int       mNumFree;
+
+  // whether any slots in the active list have been freed (see compact())
+  private boolean mNeedsCompact;
+
+  // constructor (all of the floxels are unused)
+  public FloxelStore(int size) {
+
+    assert( size > 0 );
+    mSize = size;
+
+    mState      = new byte[size];
+    mX          = new float[size];
+    mY          = new float[size];
+    mTimer      = new short[size];
+    mCluster    = new byte[size];
+    mNeedsNudge = new boolean[size];
+    mType       = new byte[size];
+    mShade      = new byte[size];
+    mFace       = new byte[size];
+
+    mActive = new int[size];
+    mNumActive = 0;
+    
+    mFree = new int[size];
+    for ( int k = 0 ; k < size ; k++ ) mFree[k] = size-1-k;
+    mNumFree = size;
+
+    mNeedsCompact = false;
+
+  } // constructor
+
+  // number of floxels
+  public int size() { return mSize; }
+
+  // number of slots in the active list (see active())
+  public int numActive() { return mNumActive; }
+
+  // number of unused slots available
+  public int numFree() { return mNumFree; }
+
+  // the slots in use, as the first numActive() entries of the array
+  // (the array should not be changed; slots freed since the last call to
+  // compact() are still listed, with state UNUSED)
+  public int[] active() { return mActive; }
+
+  // take an unused slot and add it to the end of the active list
+  // (the slot's state is set to NORMAL, and its other details are left
+  // for the caller to set)
+  public int allocate() {
+
+    assert( mNumFree > 0 );
+    if ( mNeedsCompact ) compact();
+
+    final int index = mFree[--mNumFree];
+    assert( mState[index] == UNUSED );
+    mState[index] = NORMAL;
+    mActive[mNumActive++] = index;
+    return index;
+
+  } // allocate()
+
+  // mark a slot as unused and return it to the stack
+  // (it stays in the active list until compact() is called, so this can be
+  // done during a pass over the list)
+  public void free(int index) {
+
+    assert( mState[index] != UNUSED );
+    mState[index] = UNUSED;
+    mFree[mNumFree++] = index;
+    mNeedsCompact = true;
+
+  } // free()
+
+  // remove the freed slots from the active list, keeping the order of the
+  // others
+  public void compact() {
+
+    if ( !mNeedsCompact ) return;
+
+    int num = 0;
+    for ( int k = 0 ; k < mNumActive ; k++ ) {
+      final int index = mActive[k];
+      if ( mState[index] != UNUSED ) mActive[num++] = index;
+    }
+    mNumActive = num;
+    mNeedsCompact = false;
+
+  } // compact()
+
+  // move some entries to the end of the active list, keeping the order of
+  // the others (the positions are in the list, and are sorted in place)
+  public void moveToEnd(int positions[], int num) {
+
+    assert( !mNeedsCompact );
+    assert( num <= mNumActive );
+    Arrays.sort(positions, 0, num);
+
+    int moved[] = new int[num];
+    int numKept = 0,
+        numMoved = 0;
+    for ( int k = 0 ; k < mNumActive ; k++ ) {
+      if ( numMoved < num && positions[numMoved] == k ) {
+        moved[numMoved++] = mActive[k];
+      } else {
+        mActive[numKept++] = mActive[k];
+      }
+    }
+    assert( numMoved == num && numKept + num == mNumActive );
+    System.arraycopy(moved, 0, mActive, numKept, num);
+
+  } // moveToEnd()
+
+} // class FloxelStore
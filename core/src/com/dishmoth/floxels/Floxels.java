@@ -22,12 +22,8 @@ public class Floxels extends Sprite {
   // how sprite is displayed relative to others
   static private final int kScreenLayer = 50; 
 
-  // maximum number of particles supported
-  static private final int kNumFloxels = 1000;
-  
-  // details of how particles are launched or deleted
-  static private final int kReleaseStep = 3,
-                           kReclaimStep = 4;
+  // details of how particles are deleted
+  static private final int kReclaimStep = 4;
 
   // time range between marking a floxel as reclaimed and it vanishing
   static private final float kMinReclaimTime = 0.5f,
@@ -72,6 +68,9 @@ public class Floxels extends Sprite {
   // how floxels are summoned to the cursor
   static private final float kSummonSpeed = 70.0f;
   
+  // mixes the chunk number into the seed of each chunk's random numbers
+  static private final long kChunkSeedMix = 0x9E3779B97F4A7C15L;
+  
   // the flow field
   private Flow mFlows[];
 
@@ -94,24 +93,58 @@ public class Floxels extends Sprite {
   private final int mGridXSize,
                     mGridYSize;
   
-  // the particles
-  private Floxel mFloxels[];
+  // maximum number of particles supported
+  private final int mNumFloxels;
+  
+  // the particles (see FloxelStore)
+  private final FloxelStore mFloxels;
 
   // total number of floxels in each cell of the base grid
   private int mFloxelCounts[][][];
   
-  // utility for determining how large clusters of floxels are
-  private Clusters mClusters;
+  // utility for determining how large clusters of floxels are (one for
+  // each population, so that they can all be filled in a single pass)
+  private Clusters mClusters[];
 
   // workspace for detecting collisions between different types of floxels
-  private int mKillGrid[][];
+  // (the strongest floxel's strength in each cell, and its type)
+  private int  mKillGrid[][];
+  private byte mKillType[][];
+  
+  // random offset of the kill grid for the current tick
+  private float mKillOffsetX,
+                mKillOffsetY;
   
   // spare velocity object 
   private Flow.Vel mVelObj = new Flow.Vel();
+  
+  // number of chunks that the floxels are split into for moving in 
+  // parallel, or zero if they are moved in turn (see setMoveChunks())
+  private int mNumMoveChunks;
+  
+  // workspace for each chunk of the moves (random numbers, a spare 
+  // velocity object, and the slots of floxels that have been reclaimed)
+  private Random   mChunkRandoms[];
+  private Flow.Vel mChunkVels[];
+  private int      mChunkFreed[][];
+  private int      mChunkNumFreed[];
+  
+  // job for moving the floxels in chunks
+  private final TaskRunner.Task mMoveTask = new TaskRunner.Task() {
+    public void run(int index) { moveChunk(index); }
+  };
     
   // random modifications to the floxel faces 
-  private int mFaceChangeIndex,
-              mFaceChangeTailIndex;
+  // (positions in the active list of the next faces to change and of the
+  // next blinks to end, plus the fraction of a change carried over)
+  private int   mFaceChangeIndex,
+                mFaceChangeTailIndex;
+  private float mFaceChangeCarry;
+  
+  // number of faces changed in each of the last few ticks (so that blinks
+  // end after the same time however many floxels there are)
+  private final int mFaceChangeHistory[];
+  private int       mFaceChangeTick;
 
   // capture point to which floxels are pulled (unless type is -1)
   private int   mPullType;
@@ -125,20 +158,27 @@ public class Floxels extends Sprite {
   // if true, floxels don't recover from being stunned (when quitting the game)
   private boolean mPlayDead;
   
-  // constructor
+  // constructor (supporting the number of floxels set in Env)
   public Floxels(Flow flows[]) {
     
+    this(flows, Env.maxFloxels());
+    
+  } // constructor
+  
+  // constructor (supporting the given number of floxels)
+  public Floxels(Flow flows[], int maxFloxels) {
+    
     super(kScreenLayer);
     
+    assert( maxFloxels > 0 );
+    
     mFlows = flows;
 
     mGridXSize = mFlows[0].baseXSize();
     mGridYSize = mFlows[0].baseYSize();
     
-    mFloxels = new Floxel[kNumFloxels];
-    for ( int k = 0 ; k < kNumFloxels ; k++ ) {
-      if ( mFloxels[k] == null ) mFloxels[k] = new Floxel();
-    }
+    mNumFloxels = maxFloxels;
+    mFloxels = new FloxelStore(mNumFloxels);
 
     mNumFloxelTypes = mFlows.length;
 
@@ -156,14 +196,22 @@ public class Floxels extends Sprite {
     
     mFloxelCounts = new int[mNumFloxelTypes][mGridYSize][mGridXSize];
     
-    mClusters = new Clusters(mFlows[0], 2, kNumFloxels);
+    mClusters = new Clusters[mNumFloxelTypes];
+    for ( int type = 0 ; type < mNumFloxelTypes ; type++ ) {
+      mClusters[type] = new Clusters(mFlows[0], 2, mNumFloxels);
+    }
     
     mKillGrid = new int[mGridYSize*kKillGridSubdivide+1]
                        [mGridXSize*kKillGridSubdivide+1];
+    mKillType = new byte[mGridYSize*kKillGridSubdivide+1]
+                        [mGridXSize*kKillGridSubdivide+1];
 
-    mFaceChangeIndex = 0;
-    mFaceChangeTailIndex = -Math.round( kNumFloxels * kBlinkTimeSeconds 
-                                        / kFaceChangeSeconds );
+    mFaceChangeIndex = mFaceChangeTailIndex = 0;
+    mFaceChangeCarry = 0.0f;
+    mFaceChangeHistory 
+          = new int[Math.max(1, Math.round(kBlinkTimeSeconds
+                                           * Env.TICKS_PER_SEC))];
+    mFaceChangeTick = 0;
 
     mPullType = -1;
     mPullXPos = mPullYPos = mPullRadius = 0.0f;
@@ -171,10 +219,18 @@ public class Floxels extends Sprite {
     
     mPlayDead = false;
     
+    setMoveChunks(0);
+    
   } // constructor
 
   // the total number of floxels supported
-  public int maxFloxels() { return kNumFloxels; }
+  public int maxFloxels() { return mNumFloxels; }
+
+  // number of floxel populations
+  public int numFloxelTypes() { return mNumFloxelTypes; }
+
+  // the flow that a type of floxel follows
+  public Flow flow(int type) { return mFlows[type]; }
 
   // current number of floxels of a particular type
   public int numFloxels(int type) { 
@@ -184,6 +240,17 @@ public class Floxels extends Sprite {
     
   } // numFloxels()
 
+  // current number of floxels not of a particular type
+  private int numOtherFloxels(int type) {
+
+    int num = 0;
+    for ( int k = 0 ; k < mNumFloxelTypes ; k++ ) {
+      if ( k != type ) num += mNumActiveFloxels[k];
+    }
+    return num;
+
+  } // numOtherFloxels()
+
   // colours of the different floxel types 
   public int floxelColour(int type) {
     
@@ -204,6 +271,29 @@ public class Floxels extends Sprite {
   // whether the floxels recover from being stunned
   public void setPlayDead(boolean dead) { mPlayDead = dead; }
   
+  // move the floxels in parallel, split into a number of chunks (or in
+  // turn if the number is zero, the default)
+  // (each chunk has its own random numbers, seeded from Env's random 
+  // numbers every tick, so the results depend on the number of chunks but
+  // not on the number of threads; with zero chunks Env's random numbers
+  // are used directly)
+  public void setMoveChunks(int num) {
+    
+    assert( num >= 0 );
+    mNumMoveChunks = num;
+    
+    mChunkRandoms = new Random[num];
+    mChunkVels = new Flow.Vel[num];
+    mChunkFreed = new int[num][];
+    mChunkNumFreed = new int[num];
+    for ( int k = 0 ; k < num ; k++ ) {
+      mChunkRandoms[k] = new Random();
+      mChunkVels[k] = new Flow.Vel();
+      mChunkFreed[k] = new int[16];
+    }
+    
+  } // setMoveChunks()
+  
   // access (read-only) to the floxel count per grid square
   public int[][] countFloxels(int type) { 
     
@@ -241,7 +331,8 @@ public class Floxels extends Sprite {
     
     int numActive = 0;
     for ( int n : mNumActiveFloxels ) numActive += n;
-    assert( numActive + num <= kNumFloxels );
+    assert( numActive + num <= mNumFloxels );
+    assert( num <= mFloxels.numFree() );
 
     final float margin = 0.001f;
     radius = Math.max(radius, 2*margin); 
@@ -252,14 +343,8 @@ public class Floxels extends Sprite {
                 dy1 = Math.min(+radius, mGridYSize-margin-y);
     assert( dx1 > dx0 && dy1 > dy0 );
     
-    int index = Env.randomInt(kNumFloxels);
     while ( num > 0 ) {
-      while ( mFloxels[index].mState != Floxel.State.UNUSED ) {
-        index += kReleaseStep;
-        if ( index >= kNumFloxels ) {
-          index = (index+1) % kReleaseStep;
-        }
-      }
+      final int index = mFloxels.allocate();
       
       float dx, dy;
       do {
@@ -269,16 +354,15 @@ public class Floxels extends Sprite {
                 dx < dx0 || dx > dx1 || 
                 dy < dy0 || dy > dy1 );
       
-      Floxel floxel = mFloxels[index];
-      floxel.mState = Floxel.State.NORMAL;
-      floxel.mX = x + dx; 
-      floxel.mY = y + dy;
-      floxel.mTimer = 0;
-      floxel.mCluster = (byte)Env.randomInt( Clusters.maxClusterScore()+1 );
-      floxel.mNeedsNudge = false;
-      floxel.mType = (byte)type;
-      floxel.mShade = (byte)Env.randomInt( Floxel.NUM_SHADES );
-      floxel.mFace = (byte)Env.randomInt( Floxel.NUM_EXPRESSIONS );
+      mFloxels.mX[index] = x + dx; 
+      mFloxels.mY[index] = y + dy;
+      mFloxels.mTimer[index] = 0;
+      mFloxels.mCluster[index] 
+                    = (byte)Env.randomInt( Clusters.maxClusterScore()+1 );
+      mFloxels.mNeedsNudge[index] = false;
+      mFloxels.mType[index] = (byte)type;
+      mFloxels.mShade[index] = (byte)Env.randomInt( Floxel.NUM_SHADES );
+      mFloxels.mFace[index] = (byte)Env.randomInt( Floxel.NUM_EXPRESSIONS );
       
       mNumActiveFloxels[type]++;
       num--;
@@ -300,22 +384,27 @@ public class Floxels extends Sprite {
     int minClusterScore = 10;
     int numSteps = 0;
     
-    int index = Env.randomInt(kNumFloxels);
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    int pos = Env.randomInt(numActive);
     while ( num > 0 ) {
-      while ( ( mFloxels[index].mState != Floxel.State.NORMAL &&
-                mFloxels[index].mState != Floxel.State.STUNNED ) ||
-              mFloxels[index].mType != type ||
-              mFloxels[index].mCluster < minClusterScore ) {
-        index += kReclaimStep;
-        if ( index >= kNumFloxels ) {
-          index = (index+1) % kReclaimStep;
+      int index = active[pos];
+      while ( ( mFloxels.mState[index] != FloxelStore.NORMAL &&
+                mFloxels.mState[index] != FloxelStore.STUNNED ) ||
+              mFloxels.mType[index] != type ||
+              mFloxels.mCluster[index] < minClusterScore ) {
+        pos += kReclaimStep;
+        if ( pos >= numActive ) {
+          pos = (pos+1) % kReclaimStep;
+          while ( pos >= numActive ) pos = (pos+1) % kReclaimStep;
         }
-        if ( ++numSteps == kNumFloxels ) minClusterScore = -100;
-        assert( numSteps <= 2*kNumFloxels );
+        index = active[pos];
+        if ( ++numSteps == numActive ) minClusterScore = -100;
+        assert( numSteps <= 2*numActive );
       }      
 
-      mFloxels[index].mState = Floxel.State.RECLAIMED;
-      mFloxels[index].mTimer = (byte)Env.randomInt(minTime, maxTime);
+      mFloxels.mState[index] = FloxelStore.RECLAIMED;
+      mFloxels.mTimer[index] = (byte)Env.randomInt(minTime, maxTime);
       num--;
     }
     
@@ -334,20 +423,27 @@ public class Floxels extends Sprite {
 
     int num = 0;
     
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState != Floxel.State.NORMAL &&
-           floxel.mState != Floxel.State.SPLATTED &&
-           floxel.mState != Floxel.State.STUNNED ) continue;
-      if ( type >= 0 && floxel.mType != type ) continue;
-      final float dx = floxel.mX - x,
-                  dy = floxel.mY - y;
+    final byte state[] = mFloxels.mState,
+               types[] = mFloxels.mType,
+               cluster[] = mFloxels.mCluster;
+    final float xPos[] = mFloxels.mX,
+                yPos[] = mFloxels.mY;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      if ( state[k] != FloxelStore.NORMAL &&
+           state[k] != FloxelStore.SPLATTED &&
+           state[k] != FloxelStore.STUNNED ) continue;
+      if ( type >= 0 && types[k] != type ) continue;
+      final float dx = xPos[k] - x,
+                  dy = yPos[k] - y;
       final float d2 = dx*dx + dy*dy;
       if ( d2 >= r2A && d2 < r2B ) {
-        floxel.mState = Floxel.State.STUNNED;
-        floxel.mTimer = (short)kStunTimeMax;
-        floxel.mCluster = mPlayDead ? (byte)Env.randomInt( floxel.mCluster+1 )
-                                    : 0;
-        floxel.mFace = (byte)Floxel.STUN_FACE;
+        state[k] = FloxelStore.STUNNED;
+        mFloxels.mTimer[k] = (short)kStunTimeMax;
+        cluster[k] = mPlayDead ? (byte)Env.randomInt( cluster[k]+1 ) : 0;
+        mFloxels.mFace[k] = (byte)Floxel.STUN_FACE;
         num += 1;
       }
     }
@@ -378,76 +474,77 @@ public class Floxels extends Sprite {
     mPullRadius = pullRadius;
     
     int numCaptured = 0;
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState != Floxel.State.NORMAL &&
-           floxel.mState != Floxel.State.STUNNED ) continue;
-      if ( type >= 0 && floxel.mType != type ) continue;
-      final float dx = floxel.mX - x,
-                  dy = floxel.mY - y;
+    final byte state[] = mFloxels.mState,
+               types[] = mFloxels.mType;
+    final float xPos[] = mFloxels.mX,
+                yPos[] = mFloxels.mY;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      if ( state[k] != FloxelStore.NORMAL &&
+           state[k] != FloxelStore.STUNNED ) continue;
+      if ( type >= 0 && types[k] != type ) continue;
+      final float dx = xPos[k] - x,
+                  dy = yPos[k] - y;
       if ( dx*dx + dy*dy < captureRadius*captureRadius ) {
-        floxel.mState = Floxel.State.UNUSED;
+        mFloxels.free(k);
         numCaptured += 1;
         mNumActiveFloxels[type] -= 1;
       }
     }
+    mFloxels.compact();
     return numCaptured;
     
   } // captureFloxels()
   
-  // convert some of the majority population and call them to the cursor
+  // convert some of the other populations and call them to the cursor
   // (move them to the end of the list so they are drawn over everything else)
   public void summonFloxels(int num, int type) {
     
-    final int otherType = 1-type;
-    
+    assert( type >= 0 && type < mNumFloxelTypes );
     assert( num > 0 );
-    assert( num <= mNumActiveFloxels[otherType] );
+    assert( num <= numOtherFloxels(type) );
     
     final int splatTime = Math.round( Env.TICKS_PER_SEC*kSplatTime );
 
     final int step = Env.randomInt(1,100);
     int offset = 0;
     
-    int index = offset;
-    int endIndex = kNumFloxels;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    int pos = offset;
 
+    int summoned[] = new int[num];
     int numGot = 0;
+    final byte state[] = mFloxels.mState,
+               types[] = mFloxels.mType;
     while ( numGot < num ) {
-      Floxel floxel = mFloxels[index];
-      if ( floxel.mState != Floxel.State.UNUSED && 
-           floxel.mType == otherType ) {
-        floxel.mState = Floxel.State.SPLATTED;
-        floxel.mTimer = (byte)splatTime;
-        floxel.mFace = (byte)Floxel.SPLAT_FACE;
-        floxel.mCluster = (byte)Clusters.maxClusterScore();
-        floxel.mNeedsNudge = false;
-        floxel.mType = (byte)type;
-        floxel.mShade = (byte)0;
-        
-        do {
-          endIndex -= 1;
-          assert( endIndex >= 0 );
-        } while ( mFloxels[endIndex].mState != Floxel.State.UNUSED &&
-                  mFloxels[endIndex].mType == (byte)type &&
-                  endIndex > index );
-        
-        mFloxels[index] = mFloxels[endIndex];
-        mFloxels[endIndex] = floxel;
-
-        numGot += 1;
-      } else {
-        index += step;
+      final int index = active[pos];
+      assert( state[index] != FloxelStore.UNUSED );
+      if ( types[index] != type ) {
+        mNumActiveFloxels[types[index]] -= 1;
+        state[index] = FloxelStore.SPLATTED;
+        mFloxels.mTimer[index] = (byte)splatTime;
+        mFloxels.mFace[index] = (byte)Floxel.SPLAT_FACE;
+        mFloxels.mCluster[index] = (byte)Clusters.maxClusterScore();
+        mFloxels.mNeedsNudge[index] = false;
+        types[index] = (byte)type;
+        mFloxels.mShade[index] = (byte)0;
+        summoned[numGot++] = pos;
       }
       
-      if ( index >= endIndex ) {
+      pos += step;
+      while ( pos >= numActive && numGot < num ) {
         offset += 1;
         assert( offset < step );
-        index = offset;
+        pos = offset;
       }
     }
     
+    mFloxels.moveToEnd(summoned, num);
+    
     mNumActiveFloxels[type] += num;
-    mNumActiveFloxels[otherType] -= num;
     
     mSummonFloxels = true;
     
@@ -464,22 +561,40 @@ public class Floxels extends Sprite {
       oldNumFloxels[type] = mNumActiveFloxels[type];
     }
     
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    
     if ( mSummonFloxels ) {
       if ( mPullType == -1 ) {
-        for ( Floxel floxel : mFloxels ) {
-          if ( floxel.mState == Floxel.State.NORMAL ) floxel.mTimer = 0;
+        for ( int n = 0 ; n < numActive ; n++ ) {
+          final int k = active[n];
+          if ( mFloxels.mState[k] == FloxelStore.NORMAL ) {
+            mFloxels.mTimer[k] = 0;
+          }
         }
         mSummonFloxels = false;
       }
     }
     
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState == Floxel.State.UNUSED ) continue;
-      advanceFloxel(floxel);
+    // (the tick makes four passes over the floxels: moving them, marking
+    // the kill grid, fighting and counting, then scoring the clusters;
+    // the kill grid's offset is random and comes after the moves in the
+    // random sequence, so the first two passes cannot be combined)
+    
+    if ( mNumMoveChunks == 0 ) {
+      final Random random = Env.random();
+      for ( int n = 0 ; n < numActive ; n++ ) {
+        final int k = active[n];
+        if ( !advanceFloxel(k, random, mVelObj) ) freeFloxel(k);
+      }
+    } else {
+      moveFloxelsInChunks();
     }
+    mFloxels.compact();
 
-    fightFloxels();
-    countFloxels();
+    final boolean fighting = !( mSummonFloxels || mPlayDead );
+    if ( fighting ) markKillGrid();
+    fightAndCountFloxels(fighting);
     setDesiredSolutionLevels();
     makeClusters();
     updateFaces();
@@ -495,12 +610,67 @@ public class Floxels extends Sprite {
     
   } // Sprite.advance()
 
-  // update position for a floxel
-  private void advanceFloxel(Floxel floxel) {
+  // move the floxels in parallel, one task for each chunk
+  // (floxels that finish being reclaimed are only removed after all of
+  // the chunks are done, in the same order as if they were moved in turn)
+  private void moveFloxelsInChunks() {
+    
+    final long seed = Env.random().nextLong();
+    for ( int c = 0 ; c < mNumMoveChunks ; c++ ) {
+      mChunkRandoms[c].setSeed( seed ^ ((c+1)*kChunkSeedMix) );
+      mChunkNumFreed[c] = 0;
+    }
+    
+    Env.tasks().run(mMoveTask, mNumMoveChunks);
+    
+    for ( int c = 0 ; c < mNumMoveChunks ; c++ ) {
+      for ( int n = 0 ; n < mChunkNumFreed[c] ; n++ ) {
+        freeFloxel(mChunkFreed[c][n]);
+      }
+    }
+    
+  } // moveFloxelsInChunks()
+  
+  // move one chunk of the floxels (a run of the active list)
+  private void moveChunk(int chunk) {
+    
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    final int start = (int)( (long)numActive*chunk/mNumMoveChunks ),
+              end   = (int)( (long)numActive*(chunk+1)/mNumMoveChunks );
+    
+    final Random   random = mChunkRandoms[chunk];
+    final Flow.Vel vel    = mChunkVels[chunk];
+    for ( int n = start ; n < end ; n++ ) {
+      final int k = active[n];
+      if ( advanceFloxel(k, random, vel) ) continue;
+      if ( mChunkNumFreed[chunk] == mChunkFreed[chunk].length ) {
+        mChunkFreed[chunk] = Arrays.copyOf(mChunkFreed[chunk], 
+                                           2*mChunkFreed[chunk].length);
+      }
+      mChunkFreed[chunk][mChunkNumFreed[chunk]++] = k;
+    }
+    
+  } // moveChunk()
+  
+  // remove a floxel that has finished being reclaimed
+  private void freeFloxel(int index) {
+    
+    mNumActiveFloxels[mFloxels.mType[index]]--;
+    mFloxels.free(index);
+    
+  } // freeFloxel()
+  
+  // update position for a floxel (using the given random numbers and
+  // spare velocity object), returning false if it has finished being
+  // reclaimed and should be removed
+  // (nothing is changed apart from the floxel itself, so floxels can be
+  // moved at the same time, see moveChunk())
+  private boolean advanceFloxel(int index, Random random, Flow.Vel vel) {
 
     final float dt = Env.TICK_TIME;
     
-    final int type = floxel.mType;
+    final int type = mFloxels.mType[index];
 
     int flowType = type;
     if ( mSummonFloxels && type == mPullType ) flowType = 1-mPullType;
@@ -508,70 +678,74 @@ public class Floxels extends Sprite {
     
     // special behaviour for certain floxel states
 
+    final byte  state[] = mFloxels.mState;
+    final short timer[] = mFloxels.mTimer;
+    
     float slowdown = 1.0f;
-    switch ( floxel.mState ) {
-      case UNUSED: {
+    switch ( state[index] ) {
+      case FloxelStore.UNUSED: {
         assert(false);
       } break;
             
-      case SPLATTED: {
-        assert( floxel.mTimer > 0 );
-        if ( --floxel.mTimer == 0 ) {
-          floxel.mState = Floxel.State.NORMAL;
-          floxel.mFace = (byte)Env.randomInt(Floxel.NUM_EXPRESSIONS);
+      case FloxelStore.SPLATTED: {
+        assert( timer[index] > 0 );
+        if ( --timer[index] == 0 ) {
+          state[index] = FloxelStore.NORMAL;
+          mFloxels.mFace[index] = (byte)random.nextInt(Floxel.NUM_EXPRESSIONS);
         }
       } break;
       
-      case STUNNED: {
-        assert( floxel.mTimer > 0 );
-        floxel.mTimer--;
-        if ( floxel.mTimer == 0 ) {
-          floxel.mState = Floxel.State.NORMAL;
-        } else if ( floxel.mTimer < kStunTimeWake ) {
-          slowdown = 1.0f - floxel.mTimer/(float)kStunTimeWake;
-        } else if ( floxel.mTimer == kStunTimeWake ) {
+      case FloxelStore.STUNNED: {
+        assert( timer[index] > 0 );
+        timer[index]--;
+        if ( timer[index] == 0 ) {
+          state[index] = FloxelStore.NORMAL;
+        } else if ( timer[index] < kStunTimeWake ) {
+          slowdown = 1.0f - timer[index]/(float)kStunTimeWake;
+        } else if ( timer[index] == kStunTimeWake ) {
           if ( mPlayDead ) {
-            floxel.mTimer += 1;
+            timer[index] += 1;
           } else {
-            floxel.mFace = (byte)Env.randomInt(Floxel.NUM_EXPRESSIONS);
+            mFloxels.mFace[index] 
+                          = (byte)random.nextInt(Floxel.NUM_EXPRESSIONS);
           }
           slowdown = 0.0f;
-        } else if ( floxel.mTimer < kStunTimeMax-kStunTimeHalt ) {
+        } else if ( timer[index] < kStunTimeMax-kStunTimeHalt ) {
           slowdown = 0.0f;
-        } else if ( floxel.mTimer == kStunTimeMax-kStunTimeHalt ) {
-          floxel.mTimer -= Env.randomInt(kStunTimeMax-kStunTimeMin);
+        } else if ( timer[index] == kStunTimeMax-kStunTimeHalt ) {
+          timer[index] -= random.nextInt(kStunTimeMax-kStunTimeMin);
           slowdown = 0.0f;
-          assert( floxel.mTimer > kStunTimeWake );
+          assert( timer[index] > kStunTimeWake );
         } else {
           final int t0 = kStunTimeMax - kStunTimeHalt;
-          slowdown = (floxel.mTimer - t0)/(float)(kStunTimeMax - t0 - 1);
+          slowdown = (timer[index] - t0)/(float)(kStunTimeMax - t0 - 1);
         }
         assert( slowdown >= 0.0f && slowdown <= 1.0f );
       } break;
       
-      case RECLAIMED: {
-        assert( floxel.mTimer > 0 );
-        if ( --floxel.mTimer == 0 ) {
-          floxel.mState = Floxel.State.UNUSED;
-          mNumActiveFloxels[type]--;
-          return;
+      case FloxelStore.RECLAIMED: {
+        assert( timer[index] > 0 );
+        if ( --timer[index] == 0 ) {
+          return false;
         }
       } break;
 
-      case NORMAL: {
-        if ( !mSummonFloxels ) assert( floxel.mTimer == 0 );
+      case FloxelStore.NORMAL: {
+        if ( !mSummonFloxels ) assert( timer[index] == 0 );
       } break;
     }
 
-    if ( slowdown == 0.0f ) return;
+    if ( slowdown == 0.0f ) return true;
     
     // determine the floxel's velocity
     
-    flow.getVelocity(floxel.mX, floxel.mY, mVelObj);
+    float x = mFloxels.mX[index],
+          y = mFloxels.mY[index];
+    flow.getVelocity(x, y, vel);
 
     float velocityFactor = mVelocityFactors[type] * slowdown;
-    float vx = velocityFactor * mVelObj.x,
-          vy = velocityFactor * mVelObj.y;
+    float vx = velocityFactor * vel.x,
+          vy = velocityFactor * vel.y;
     vx = Math.max(-kMaxSpeed, Math.min(+kMaxSpeed, vx));
     vy = Math.max(-kMaxSpeed, Math.min(+kMaxSpeed, vy));
 
@@ -580,27 +754,27 @@ public class Floxels extends Sprite {
 
     // don't let floxels pile up on each other
     
-    if ( floxel.mNeedsNudge ) {
-      dx += kNudgeDistance*( Env.randomBoolean() ? +1 : -1 );
-      dy += kNudgeDistance*( Env.randomBoolean() ? +1 : -1 );
+    if ( mFloxels.mNeedsNudge[index] ) {
+      dx += kNudgeDistance*( random.nextBoolean() ? +1 : -1 );
+      dy += kNudgeDistance*( random.nextBoolean() ? +1 : -1 );
     }
 
     // check whether the floxel is being pulled to the cursor
     
     boolean ignoreWalls = false;
     
-    if ( floxel.mType == mPullType ) {
-      float px = mPullXPos - floxel.mX,
-            py = mPullYPos - floxel.mY;
+    if ( type == mPullType ) {
+      float px = mPullXPos - x,
+            py = mPullYPos - y;
       float p2 = px*px + py*py;
       if ( mSummonFloxels || p2 <= mPullRadius*mPullRadius ) {
         float speed = kMaxSpeed;
         if ( mSummonFloxels ) {
-          if ( floxel.mState == Floxel.State.SPLATTED ) {
+          if ( state[index] == FloxelStore.SPLATTED ) {
             speed = 0.0f;
           } else {
-            floxel.mTimer += 1;
-            float summonDt = floxel.mTimer*Env.TICK_TIME; 
+            timer[index] += 1;
+            float summonDt = timer[index]*Env.TICK_TIME; 
             speed = summonDt*summonDt*kSummonSpeed;
           }
         }
@@ -619,8 +793,6 @@ public class Floxels extends Sprite {
     
     // update the floxel's position, avoiding maze walls
     
-    float x = floxel.mX,
-          y = floxel.mY;
     float walls[] = flow.walls()[(int)y][(int)x];
 
     if ( ignoreWalls || 
@@ -641,78 +813,100 @@ public class Floxels extends Sprite {
     assert( x >= 0 && x < mGridXSize );
     assert( y >= 0 && y < mGridYSize );
     
-    floxel.mX = x;
-    floxel.mY = y;
+    mFloxels.mX[index] = x;
+    mFloxels.mY[index] = y;
+    return true;
     
   } // advanceFloxel()
 
-  // convert floxels if they collide with stronger ones of the other type
-  private void fightFloxels() {
-    
-    if ( mSummonFloxels || mPlayDead ) return;
-    
-    assert( mNumFloxelTypes == 2 );
+  // record the strongest floxel in each cell of the kill grid
+  private void markKillGrid() {
     
     for ( int ky = 0 ; ky < mKillGrid.length ; ky++ ) {
       Arrays.fill(mKillGrid[ky], 0);
     }
 
-    final float offsetX = 0.99f*Env.randomFloat(),
-                offsetY = 0.99f*Env.randomFloat();
-    
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState != Floxel.State.NORMAL ) continue;
-      final int kx = (int)(floxel.mX*kKillGridSubdivide + offsetX),
-                ky = (int)(floxel.mY*kKillGridSubdivide + offsetY);
-      final int strength = floxel.mCluster + 1;
-      if ( strength > Math.abs(mKillGrid[ky][kx]) ) {
-        mKillGrid[ky][kx] = ( floxel.mType == 0 ? +strength : -strength );
+    mKillOffsetX = 0.99f*Env.randomFloat();
+    mKillOffsetY = 0.99f*Env.randomFloat();
+    
+    final byte state[] = mFloxels.mState,
+               types[] = mFloxels.mType,
+               cluster[] = mFloxels.mCluster;
+    final float xPos[] = mFloxels.mX,
+                yPos[] = mFloxels.mY;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      if ( state[k] != FloxelStore.NORMAL ) continue;
+      final int kx = (int)(xPos[k]*kKillGridSubdivide + mKillOffsetX),
+                ky = (int)(yPos[k]*kKillGridSubdivide + mKillOffsetY);
+      final int strength = cluster[k] + 1;
+      if ( strength > mKillGrid[ky][kx] ) {
+        mKillGrid[ky][kx] = strength;
+        mKillType[ky][kx] = types[k];
       }
     }
     
-    final int splatTime = Math.round( Env.TICKS_PER_SEC*kSplatTime );
-    
-    int killCount[] = new int[mNumFloxelTypes];
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState != Floxel.State.NORMAL &&
-           floxel.mState != Floxel.State.STUNNED ) continue;
-      final int kx = (int)(floxel.mX*kKillGridSubdivide + offsetX),
-                ky = (int)(floxel.mY*kKillGridSubdivide + offsetY);
-      final int attackStrength = Math.abs(mKillGrid[ky][kx]) - 1,
-                attackType     = ( (mKillGrid[ky][kx] > 0) ? 0 : 1 );
-      if ( floxel.mType != attackType && floxel.mCluster <= attackStrength ) {
-        floxel.mState = Floxel.State.SPLATTED;
-        floxel.mTimer = (byte)splatTime;
-        floxel.mCluster = 0;
-        floxel.mType = (byte)attackType;
-        floxel.mShade = 0;
-        floxel.mFace = (byte)Floxel.SPLAT_FACE;
-        killCount[1-attackType] += 1;
-      }
-    }
-    Env.sounds().playDeathSounds(killCount);
+  } // markKillGrid()
   
-  } // fightFloxels()
-  
-  // census of the floxel populations
-  private void countFloxels() {
+  // convert floxels if they collide with stronger ones of another type
+  // (if fighting, using the kill grid), then take a census of the 
+  // populations and add the floxels to the clusters
+  private void fightAndCountFloxels(boolean fighting) {
     
     for ( int type = 0 ; type < mNumFloxelTypes ; type++ ) {
       for ( int ky = 0 ; ky < mGridYSize ; ky++ ) {
         Arrays.fill(mFloxelCounts[type][ky], 0);
       }
       mNumActiveFloxels[type] = 0;
+      mClusters[type].reset();
     }
     
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState == Floxel.State.UNUSED ) continue;
-      final int kx = (int)floxel.mX,
-                ky = (int)floxel.mY;
-      mFloxelCounts[floxel.mType][ky][kx] += 1;
-      mNumActiveFloxels[floxel.mType] += 1;
+    final int splatTime = Math.round( Env.TICKS_PER_SEC*kSplatTime );
+    
+    final byte state[] = mFloxels.mState,
+               types[] = mFloxels.mType,
+               cluster[] = mFloxels.mCluster;
+    final float xPos[] = mFloxels.mX,
+                yPos[] = mFloxels.mY;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    
+    int killCount[] = new int[mNumFloxelTypes];
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      
+      if ( fighting && ( state[k] == FloxelStore.NORMAL ||
+                         state[k] == FloxelStore.STUNNED ) ) {
+        final int kx = (int)(xPos[k]*kKillGridSubdivide + mKillOffsetX),
+                  ky = (int)(yPos[k]*kKillGridSubdivide + mKillOffsetY);
+        final int attackStrength = mKillGrid[ky][kx] - 1,
+                  attackType     = mKillType[ky][kx];
+        if ( types[k] != attackType && cluster[k] <= attackStrength ) {
+          killCount[types[k]] += 1;
+          state[k] = FloxelStore.SPLATTED;
+          mFloxels.mTimer[k] = (byte)splatTime;
+          cluster[k] = 0;
+          types[k] = (byte)attackType;
+          mFloxels.mShade[k] = 0;
+          mFloxels.mFace[k] = (byte)Floxel.SPLAT_FACE;
+        }
+      }
+      
+      final int type = types[k];
+      mFloxelCounts[type][(int)yPos[k]][(int)xPos[k]] += 1;
+      mNumActiveFloxels[type] += 1;
+      
+      if ( state[k] == FloxelStore.NORMAL ) {
+        mClusters[type].addPoint(xPos[k], yPos[k]);
+      }
     }
     
-  } // countFloxels()
+    if ( fighting ) Env.sounds().playDeathSounds(killCount);
+  
+  } // fightAndCountFloxels()
   
   // we only need a high-quality solution in the blocks where the floxels are
   public void setDesiredSolutionLevels() {
@@ -734,34 +928,31 @@ public class Floxels extends Sprite {
   } // setDesiredSolutionLevels()
   
   // assign a cluster size rating to each floxel, and update its shade
+  // (the floxels have already been added to the clusters)
   private void makeClusters() {
     
-    for ( int type = 0 ; type < mNumFloxelTypes ; type++ ) {
+    for ( Clusters clusters : mClusters ) clusters.makeClusters();
     
-      mClusters.reset();
-  
-      for ( Floxel floxel : mFloxels ) {
-        if ( floxel.mState != Floxel.State.NORMAL || 
-             floxel.mType != type ) continue;
-        mClusters.addPoint(floxel.mX, floxel.mY);
-      }
+    final byte state[] = mFloxels.mState,
+               types[] = mFloxels.mType,
+               cluster[] = mFloxels.mCluster;
+    final float xPos[] = mFloxels.mX,
+                yPos[] = mFloxels.mY;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
     
-      mClusters.makeClusters();
-    
-      for ( Floxel floxel : mFloxels ) {
-        if ( floxel.mState == Floxel.State.UNUSED ||
-             floxel.mType != type ) continue;
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
 
-        if ( floxel.mState == Floxel.State.NORMAL ) { 
-          final int n = mClusters.getClusterScore(floxel.mX, floxel.mY);
-          if      ( n > floxel.mCluster ) floxel.mCluster++;
-          else if ( n < floxel.mCluster ) floxel.mCluster--;
-        }
-        
-        floxel.mShade = (byte)( (floxel.mCluster * (Floxel.NUM_SHADES-1))
-                                / Clusters.maxClusterScore() );
+      if ( state[k] == FloxelStore.NORMAL ) { 
+        final int score = mClusters[types[k]].getClusterScore(xPos[k], 
+                                                              yPos[k]);
+        if      ( score > cluster[k] ) cluster[k]++;
+        else if ( score < cluster[k] ) cluster[k]--;
       }
       
+      mFloxels.mShade[k] = (byte)( (cluster[k] * (Floxel.NUM_SHADES-1))
+                                   / Clusters.maxClusterScore() );
     }
 
   } // makeClusters()
@@ -775,119 +966,181 @@ public class Floxels extends Sprite {
     int newFace = Env.randomInt(numFaces);
     float blink = Env.randomFloat() + kBlinkFraction;
 
-    final int numChanges = Math.round( (kNumFloxels/kFaceChangeSeconds)
-                                       / Env.TICKS_PER_SEC );
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    
+    mFaceChangeCarry += (numActive/kFaceChangeSeconds) / Env.TICKS_PER_SEC;
+    final int numChanges = (int)mFaceChangeCarry;
+    mFaceChangeCarry -= numChanges;
+
+    final int numBlinkEnds = mFaceChangeHistory[mFaceChangeTick];
+    mFaceChangeHistory[mFaceChangeTick] = numChanges;
+    mFaceChangeTick = (mFaceChangeTick+1) % mFaceChangeHistory.length;
+    
+    if ( numActive == 0 ) return;
 
     // change the expressions of some faces, starting some blinking
+    final byte state[] = mFloxels.mState,
+               face[] = mFloxels.mFace;
     for ( int k = 0 ; k < numChanges ; k++ ) {
-      Floxel floxel = mFloxels[mFaceChangeIndex];
-      if ( floxel.mState == Floxel.State.NORMAL ) {
-        assert( floxel.mFace != Floxel.SPLAT_FACE && 
-                floxel.mFace != Floxel.STUN_FACE );
+      mFaceChangeIndex = wrapFacePosition(mFaceChangeIndex, numActive);
+      final int index = active[mFaceChangeIndex];
+      if ( state[index] == FloxelStore.NORMAL ) {
+        assert( face[index] != Floxel.SPLAT_FACE && 
+                face[index] != Floxel.STUN_FACE );
         if ( blink >= 1.0f ) {
-          floxel.mFace = (byte)blinkFace;
+          face[index] = (byte)blinkFace;
           blink -= 1.0f;
         } else {
-          floxel.mFace = (byte)newFace;
+          face[index] = (byte)newFace;
           newFace = (newFace+1) % numFaces;
         }
         blink += kBlinkFraction;
       }
       mFaceChangeIndex += kFaceChangeStep;
-      if ( mFaceChangeIndex >= kNumFloxels ) {
-        mFaceChangeIndex = (mFaceChangeIndex+1) % kFaceChangeStep;
-      }
     }
 
     // convert blinks back to ordinary faces after a while
-    for ( int k = 0 ; k < numChanges ; k++ ) {
-      if ( mFaceChangeTailIndex < 0 ) {
-        mFaceChangeTailIndex++;
-      } else {
-        Floxel floxel = mFloxels[mFaceChangeTailIndex];
-        if ( floxel.mState == Floxel.State.NORMAL && 
-             floxel.mFace == blinkFace ) {
-          floxel.mFace = (byte)newFace;
-          newFace = (newFace+1) % numFaces;
-        }
-        mFaceChangeTailIndex += kFaceChangeStep;
-        if ( mFaceChangeTailIndex >= kNumFloxels ) {
-          mFaceChangeTailIndex = (mFaceChangeTailIndex+1) % kFaceChangeStep;
-        }
+    for ( int k = 0 ; k < numBlinkEnds ; k++ ) {
+      mFaceChangeTailIndex = wrapFacePosition(mFaceChangeTailIndex, 
+                                              numActive);
+      final int index = active[mFaceChangeTailIndex];
+      if ( state[index] == FloxelStore.NORMAL && 
+           face[index] == blinkFace ) {
+        face[index] = (byte)newFace;
+        newFace = (newFace+1) % numFaces;
       }
+      mFaceChangeTailIndex += kFaceChangeStep;
     }
 
   } // updateFaces()
 
+  // bring a face-changing position back into the active list
+  // (positions step through the list kFaceChangeStep at a time, then start
+  // again one further on)
+  static private int wrapFacePosition(int pos, int numActive) {
+    
+    assert( numActive > 0 );
+    while ( pos >= numActive ) pos = (pos+1) % kFaceChangeStep;
+    return pos;
+    
+  } // wrapFacePosition()
+
   // add source terms to make the floxels flock together
+  // (all of the types are done together, in two passes over the floxels)
   public void defineFlockingSources() {
     
+    for ( Flow flow : mFlows ) flow.clearSource();
+    addFlockingSources(-1);
+    
+  } // defineFlockingSources()
+  
+  // add source terms to make the floxels of one type flock together
+  // (only the type's own flow is changed, so the types can be done together)
+  public void defineFlockingSources(int type) {
+    
+    assert( type >= 0 && type < mNumFloxelTypes );
+    mFlows[type].clearSource();
+    addFlockingSources(type);
+    
+  } // defineFlockingSources(type)
+  
+  // add the flocking source terms for one type, or for every type (-1), 
+  // to flows that have been cleared
+  // (each floxel only affects its own type's flow, so for any one flow 
+  // the terms are added in the same order either way)
+  private void addFlockingSources(int onlyType) {
+    
     final int refinement = mFlows[0].refineFactor();
 
-    // set all source terms to zero initially
-    for ( int type = 0 ; type < mFlows.length ; type++ ) {
-      mFlows[type].clearSource();
-    }
-
     // attractive terms are applied in the general vicinity of the floxels 
+    final byte state[] = mFloxels.mState,
+               types[] = mFloxels.mType;
+    final float xPos[] = mFloxels.mX,
+                yPos[] = mFloxels.mY;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
     final int subdivide = 2,
               subSize   = refinement/subdivide;
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState == Floxel.State.UNUSED ) continue;
-      float source[][] = mFlows[floxel.mType].source();
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      if ( onlyType >= 0 && types[k] != onlyType ) continue;
     
-      final int kx = subSize*(int)(floxel.mX*subdivide),
-                ky = subSize*(int)(floxel.mY*subdivide);
+      final Flow flow = mFlows[types[k]];
+      assert( flow.refineFactor() == refinement );
+      final int kx = subSize*(int)(xPos[k]*subdivide),
+                ky = subSize*(int)(yPos[k]*subdivide);
 
-      if ( source[ky][kx] == 0.0f ) {
+      if ( flow.source(kx, ky) == 0.0f ) {
         for ( int dy = 0 ; dy < subSize ; dy++ ) {
           for ( int dx = 0 ; dx < subSize ; dx++ ) {
-            source[ky+dy][kx+dx] = -kFlockAttractionStrength;
+            flow.addToSource(kx+dx, ky+dy, -kFlockAttractionStrength);
           }
         }
       }
     }
     
     // repulsive terms are applied at the precise positions of the floxels
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState == Floxel.State.UNUSED ) continue;
-      float source[][] = mFlows[floxel.mType].source();
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      if ( onlyType >= 0 && types[k] != onlyType ) continue;
 
-      final int kx = (int)(floxel.mX*refinement),
-                ky = (int)(floxel.mY*refinement);
+      final Flow flow = mFlows[types[k]];
+      final int kx = (int)(xPos[k]*refinement),
+                ky = (int)(yPos[k]*refinement);
 
-      if ( floxel.mState == Floxel.State.RECLAIMED ) {
-        source[ky][kx] -= kFlockRepulsionStrength;
+      if ( state[k] == FloxelStore.RECLAIMED ) {
+        flow.addToSource(kx, ky, -kFlockRepulsionStrength);
       } else {
-        floxel.mNeedsNudge = (source[ky][kx] > 0.0f);
-        source[ky][kx] += kFlockRepulsionStrength;
+        mFloxels.mNeedsNudge[k] = (flow.source(kx, ky) > 0.0f);
+        flow.addToSource(kx, ky, kFlockRepulsionStrength);
       }
     }
     
-    //int numCoincidences = 0;
-    //for ( Floxel floxel : mFloxels ) {
-    //  if ( floxel.mActive && floxel.mNeedsNudge ) numCoincidences+=1;
-    //}
-    //System.out.println(numCoincidences);
-    
-  } // defineFlockingSources()
+  } // addFlockingSources()
   
   // contributions to the source terms to effect hunting and fleeing  
+  // (all of the types are done together, in one pass over the floxels)
   public void addHuntingSources() {
     
-    final int refinement = mFlows[0].refineFactor();
-
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState == Floxel.State.UNUSED ) continue;
+    addHuntingSourcesTo(-1);
+    
+  } // addHuntingSources()
+  
+  // contributions to one type's source terms from floxels of other types
+  public void addHuntingSources(int type) {
+    
+    assert( type >= 0 && type < mNumFloxelTypes );
+    addHuntingSourcesTo(type);
+    
+  } // addHuntingSources(type)
 
-      final int kx = (int)(floxel.mX * refinement),
-                ky = (int)(floxel.mY * refinement);
+  // add the hunting source terms to one type's flow, or to every flow (-1)
+  // (each floxel affects the flows of all the other types, and for any one
+  // flow the terms are added in the same order either way)
+  private void addHuntingSourcesTo(int onlyType) {
+    
+    final int refinement = mFlows[0].refineFactor();
 
-      float strength = mHuntingStrengths[floxel.mType];
-      if ( floxel.mState == Floxel.State.SPLATTED ) {
+    final byte state[] = mFloxels.mState,
+               types[] = mFloxels.mType,
+               cluster[] = mFloxels.mCluster;
+    final float xPos[] = mFloxels.mX,
+                yPos[] = mFloxels.mY;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      if ( types[k] == onlyType ) continue;
+
+      final int kx = (int)(xPos[k] * refinement),
+                ky = (int)(yPos[k] * refinement);
+
+      float strength = mHuntingStrengths[types[k]];
+      if ( state[k] == FloxelStore.SPLATTED ) {
         strength = Math.max(strength, kSplatRepulsionStrength);
-      } else if ( floxel.mCluster < kSmallClusterScore ) {
-        final float f = floxel.mCluster/(float)kSmallClusterScore; 
+      } else if ( cluster[k] < kSmallClusterScore ) {
+        final float f = cluster[k]/(float)kSmallClusterScore; 
         if ( strength < 0.0f ) {
           strength *= 1.0f + kSmallClusterHuntBoost*(1.0f - f);
         } else {
@@ -895,19 +1148,29 @@ public class Floxels extends Sprite {
         }
       }
 
-      final int otherType = 1 - floxel.mType;
-      mFlows[otherType].source()[ky][kx] += strength;
+      if ( onlyType >= 0 ) {
+        mFlows[onlyType].addToSource(kx, ky, strength);
+      } else {
+        for ( int type = 0 ; type < mNumFloxelTypes ; type++ ) {
+          if ( type != types[k] ) mFlows[type].addToSource(kx, ky, strength);
+        }
+      }
     }
     
-  } // addHuntingSources()
+  } // addHuntingSourcesTo()
 
-  // interchange the types of the floxels
+  // interchange the types of the floxels (the first two types swap over,
+  // any others are unchanged)
   public void switchFloxelTypes() {
     
-    assert( mNumFloxelTypes == 2 );
+    assert( mNumFloxelTypes >= 2 );
     
-    for ( Floxel floxel : mFloxels ) {
-      floxel.mType = (byte)(1 - floxel.mType);
+    final byte types[] = mFloxels.mType;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      if ( types[k] < 2 ) types[k] = (byte)(1 - types[k]);
     }
     
     int numTemp = mNumActiveFloxels[0];
@@ -938,17 +1201,30 @@ public class Floxels extends Sprite {
     
     FloxelPainter painter = Env.painter().floxelPainter();
     
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState == Floxel.State.UNUSED ||
-           floxel.mState == Floxel.State.SPLATTED ) continue;
-      painter.draw(batch, floxel, mTypeColours[floxel.mType]);
+    final byte state[] = mFloxels.mState;
+    final int active[] = mFloxels.active(),
+              numActive = mFloxels.numActive();
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      if ( state[k] == FloxelStore.SPLATTED ) continue;
+      drawFloxel(batch, painter, k);
     }
     
-    for ( Floxel floxel : mFloxels ) {
-      if ( floxel.mState != Floxel.State.SPLATTED ) continue;
-      painter.draw(batch, floxel, mTypeColours[floxel.mType]);
+    for ( int n = 0 ; n < numActive ; n++ ) {
+      final int k = active[n];
+      if ( state[k] != FloxelStore.SPLATTED ) continue;
+      drawFloxel(batch, painter, k);
     }
     
   } // Sprite.draw()
   
+  // display one of the floxels
+  private void drawFloxel(SpriteBatch batch, FloxelPainter painter, int k) {
+    
+    painter.draw(batch, mFloxels.mX[k], mFloxels.mY[k], 
+                 mFloxels.mShade[k], mFloxels.mFace[k],
+                 mTypeColours[mFloxels.mType[k]]);
+    
+  } // drawFloxel()
+  
 } // class Floxels
@@ -11,10 +11,17 @@ import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.OrthographicCamera;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.utils.TimeUtils;
 
 // main application class
 public class FloxelsGame implements ApplicationListener {
 
+  // sprites drawn in one batch (enough for every floxel plus the other 
+  // sprites, but no more than SpriteBatch allows; beyond that the batch
+  // is drawn in several goes)
+  static private final int kBatchSpare   = 500,
+                           kMaxBatchSize = 8191;
+  
   // camera controlling screen coordinates
   private OrthographicCamera mCamera;
 
@@ -33,6 +40,37 @@ public class FloxelsGame implements ApplicationListener {
   // debug timing measurements
   private TimingStats mTimingStats;
   
+  // how jobs are shared between threads (if at all)
+  private final TaskRunner mTaskRunner;
+  
+  // inner loops of the flow solver
+  private final FlowKernel mFlowKernel;
+  
+  // constructor (jobs run on the main thread)
+  public FloxelsGame() { 
+    
+    this(new SerialTaskRunner()); 
+    
+  } // constructor
+  
+  // constructor (jobs are shared out by the task runner)
+  public FloxelsGame(TaskRunner taskRunner) {
+    
+    this(taskRunner, new FlowKernel());
+    
+  } // constructor
+  
+  // constructor (jobs are shared out by the task runner, and the flow 
+  // solver uses the given kernel)
+  public FloxelsGame(TaskRunner taskRunner, FlowKernel flowKernel) {
+    
+    assert( taskRunner != null );
+    assert( flowKernel != null );
+    mTaskRunner = taskRunner;
+    mFlowKernel = flowKernel;
+    
+  } // constructor
+  
   // Called when the application is first created.
 	public void create() {
 
@@ -43,6 +81,10 @@ public class FloxelsGame implements ApplicationListener {
 	  
     Env.initialize();
     Env.sounds().initialize();
+    Env.setTaskRunner(mTaskRunner);
+    Env.debug("Threads: " + mTaskRunner.numThreads());
+    Env.setFlowKernel(mFlowKernel);
+    Env.debug("Flow kernel: " + mFlowKernel.name());
 
     Gdx.input.setCatchBackKey(true);
 
@@ -53,7 +95,8 @@ public class FloxelsGame implements ApplicationListener {
     mCamera.translate(width/2.0f, height/2.0f);
     mCamera.update();
     
-    mSpriteBatch = new SpriteBatch(1500);
+    mSpriteBatch = new SpriteBatch(Math.min(Env.maxFloxels() + kBatchSpare,
+                                            kMaxBatchSize));
     mSpriteBatch.setProjectionMatrix(mCamera.combined);
 
     chooseTileDimensions(width, height);
@@ -153,6 +196,7 @@ public class FloxelsGame implements ApplicationListener {
     final float tick = Env.TICK_TIME;
     final float maxStep = tick;
     
+    final long startTime = TimeUtils.nanoTime();
     mTimeSince += Math.min(deltaTime, maxStep);
     while ( mTimeSince > 0.99f*tick ) {
       update();
@@ -160,7 +204,11 @@ public class FloxelsGame implements ApplicationListener {
       mTimeSince = Math.max(0.0f, mTimeSince);
     }
     
+    final long drawTime = TimeUtils.nanoTime();
     draw();
+    mTimingStats.addFrameWork(drawTime - startTime, 
+                              TimeUtils.nanoTime() - drawTime,
+                              mSpriteBatch.renderCalls);
         
   } // ApplicationListener.render()
 
@@ -46,6 +46,49 @@ public class FloxelsStory extends Story {
                              kFleeStrengthResign   = 0.5f;
   static private final int   kFleeResignNum        = 10;
 
+  // if true then the flows improve on the previous solution every tick
+  // (otherwise the solution is rebuilt from the coarsest grid each time)
+  static private final boolean kWarmStartFlows = true;
+  
+  // residual at which the flows are considered solved, and the most time 
+  // (nanoseconds) that each flow can spend getting there (warm start only)
+  static private final float kFlowTolerance  = 0.5f;
+  static private final long  kFlowSolveNanos = 4000000L;
+  
+  // most cycles for each flow in a solve when the flows are not pipelined
+  // (in place of the time limit, so that the game is deterministic; the
+  // tolerance is nearly always met within a cycle or two)
+  static private final int kFlowSolveCycles = 2;
+  
+  // if true then the flows for the two types are updated side by side 
+  // (on separate threads if the platform has them)
+  static private final boolean kConcurrentFlows = true;
+  
+  // if true then the flows are solved in the background while the floxels 
+  // move, so the floxels follow flows that are a tick out of date 
+  // (only with warm starts and several threads; otherwise each tick's flows
+  // are solved before the floxels move, which is deterministic)
+  static private final boolean kPipelinedFlows = true;
+  
+  // if true then, without threads to share the work, each type's flow is 
+  // only solved every few ticks (the periods, indexed by type, keep the 
+  // player's flow up-to-date while the majority's lags, see FlowSet)
+  static private final boolean kStaggeredFlows = true;
+  static private final int     kFlowSolvePeriods[] = { 2, 1 };
+  
+  // with threads, and room for at least the given number of floxels, the
+  // floxels are moved in parallel in this many chunks (the number is fixed
+  // so that the results don't depend on the number of threads)
+  static private final int kParallelMoveFloxels = 5000,
+                           kMoveChunks          = 8;
+  
+  // if true then the solver only sees the variations in the in-flows, 
+  // while the flow for the default in-flow is solved once per maze
+  // (see Flow.setStaticInFlow()), in the background ahead of the level
+  // (only when there are threads: without them the solve for each maze
+  // would stall the game, see staticInFlow())
+  static private final boolean kStaticInFlow = true;
+  
   // seconds until various events occur
   static private final float kIntroDelay          = 0.5f,
                              kRestartDelay        = 2.0f,
@@ -55,6 +98,7 @@ public class FloxelsStory extends Story {
   
   // references to some specific objects
   private Background   mBackground;
+  private FlowSet      mFlowSet;
   private Flow         mFlows[];
   private Floxels      mFloxels;
   private Maze         mMaze;
@@ -64,6 +108,22 @@ public class FloxelsStory extends Story {
   private FrameRate    mFrameRate;
   private ColourScheme mColourScheme;
   
+  // objects adding to the flows' source terms (during updateFlows())
+  private LinkedList<Sprite> mFlowSprites;
+  
+  // whether the floxels' source terms are added by each type's task, or
+  // all together beforehand (during updateFlows())
+  private boolean mFlowFloxelSources;
+  
+  // the flows' current solution for the default in-flow (see kStaticInFlow;
+  // null if there is none)
+  private FlowBasis mInFlowBasis;
+  
+  // job for updating each type's flow (see updateFlows())
+  private final TaskRunner.Task mFlowTask = new TaskRunner.Task() {
+    public void run(int index) { updateFlow(index, mFlowSprites); }
+  };
+  
   // player's current level (0, 1, 2, ...)
   private int mLevel;
   
@@ -104,6 +164,9 @@ public class FloxelsStory extends Story {
 
     Story newStory = null;
     
+    // collect the flows solved in the background during the last tick
+    if ( mFlowSet != null ) mFlowSet.finishSolve();
+    
     // process the story event list
     for ( Iterator<StoryEvent> it = storyEvents.iterator() ; it.hasNext() ; ) {
       StoryEvent event = it.next();
@@ -124,6 +187,7 @@ public class FloxelsStory extends Story {
         fadeText(spriteManager);
         addInstructions(spriteManager, Maze.changeTime());
         mMaze.changeToNext();
+        precomputeInFlows();
         it.remove();
       } // LaunchCursor.EventComplete
       
@@ -143,12 +207,14 @@ public class FloxelsStory extends Story {
       } // Floxels.EventPopulationDestroyed
 
       if ( event instanceof Maze.EventMazeChanged ) {
-        for ( Flow flow : mFlows ) prepareFlow(flow, mMaze.data());
+        changeFlowWalls(mMaze.data(),
+                        ((Maze.EventMazeChanged)event).mDeltas);
         it.remove();
       } // Maze.EventMazeChanged
       
     } // for each story event
 
+    updateInFlowBasis(false);
     updateHuntFactors();
     updateFlows(spriteManager);
     
@@ -281,6 +347,20 @@ public class FloxelsStory extends Story {
   // bring the flow fields up-to-date 
   private void updateFlows(SpriteManager spriteManager) {
 
+    if ( kConcurrentFlows ) {
+      for ( VentControl v : mVentControls ) v.advance();
+      mFlowFloxelSources = ( Env.tasks().numThreads() > 1 );
+      if ( !mFlowFloxelSources ) {
+        mFloxels.defineFlockingSources();
+        mFloxels.addHuntingSources();
+      }
+      mFlowSprites = spriteManager.list();
+      Env.tasks().run(mFlowTask, kNumTypes);
+      mFlowSprites = null;
+      solveFlows();
+      return;
+    }
+    
     mFloxels.defineFlockingSources();
     mFloxels.addHuntingSources();
 
@@ -289,17 +369,51 @@ public class FloxelsStory extends Story {
         SourceTerm st = (SourceTerm)s;
         for ( int type = 0 ; type < kNumTypes ; type++ ) {
           Flow flow = mFlows[type];
-          st.addToSource(type, flow.source(), flow.refineFactor());
+          st.addToSource(type, flow);
         }
       }
     }
 
     for ( VentControl v : mVentControls ) v.advance();
     
-    for ( Flow flow : mFlows ) flow.solve();
+    solveFlows();
     
   } // updateFlows()
 
+  // build the source terms for one type's flow
+  // (the types share nothing, so they can be updated at the same time;
+  // with only one thread the floxels' terms have already been added for 
+  // all of the types together, which takes fewer passes over the floxels)
+  private void updateFlow(int type, LinkedList<Sprite> sprites) {
+    
+    if ( mFlowFloxelSources ) {
+      mFloxels.defineFlockingSources(type);
+      mFloxels.addHuntingSources(type);
+    }
+
+    Flow flow = mFlows[type];
+    for ( Sprite s : sprites ) {
+      if ( s instanceof SourceTerm ) {
+        ((SourceTerm)s).addToSource(type, flow);
+      }
+    }
+    
+  } // updateFlow()
+  
+  // find the velocity fields for all of the flows (in one sweep)
+  // (in pipelined mode the solve only starts here, see advance())
+  private void solveFlows() {
+    
+    if ( mFlowSet.pipelined() ) {
+      mFlowSet.startSolve(kFlowTolerance, kFlowSolveNanos);
+    } else if ( kWarmStartFlows ) {
+      mFlowSet.solve(kFlowTolerance, kFlowSolveNanos, null);
+    } else {
+      mFlowSet.solve();
+    }
+    
+  } // solveFlows()
+
   // tweak the difficulty for the level
   private void setLevelDifficulty() {
 
@@ -369,15 +483,27 @@ public class FloxelsStory extends Story {
     mFrameRate = new FrameRate();
     spriteManager.addSprite(mFrameRate);
     
-    mFlows = new Flow[kNumTypes];
-    for ( int k = 0 ; k < mFlows.length ; k++ ) {
-      mFlows[k] = new Flow(Env.numTilesX(), Env.numTilesY(), 4);
-      prepareFlow(mFlows[k], mMaze.data());
-      mFlows[k].reset();
-      mFlows[k].solve();
+    mFlowSet = new FlowSet(kNumTypes, Env.numTilesX(), Env.numTilesY(), 4);
+    mFlowSet.setWarmStart(kWarmStartFlows);
+    if ( kStaggeredFlows && Env.tasks().numThreads() == 1 ) {
+      mFlowSet.setSolvePeriods(kFlowSolvePeriods);
     }
+    mFlows = mFlowSet.flows();
+    prepareFlows(mMaze.data());
+    mInFlowBasis = null;
+    updateInFlowBasis(true);
+    precomputeInFlows();
+    mFlowSet.reset();
+    mFlowSet.solve();
+    mFlowSet.setPipelined( kPipelinedFlows && kWarmStartFlows &&
+                           Env.tasks().numThreads() > 1 );
+    if ( !mFlowSet.pipelined() ) mFlowSet.setFixedCycles(kFlowSolveCycles);
     
     mFloxels = new Floxels(mFlows);
+    if ( Env.tasks().numThreads() > 1 &&
+         mFloxels.maxFloxels() >= kParallelMoveFloxels ) {
+      mFloxels.setMoveChunks(kMoveChunks);
+    }
     spriteManager.addSprite(mFloxels);
 
     for ( int type = 0 ; type < kNumTypes ; type++ ) {
@@ -400,26 +526,92 @@ public class FloxelsStory extends Story {
     
   } // prepareNewSprites()
   
-  // build a flow consistent with the maze
-  private void prepareFlow(Flow flow, MazeData maze) {
-
+  // build the flows consistent with the maze
+  private void prepareFlows(MazeData maze) {
+    
+    for ( Flow flow : mFlows ) prepareFlow(flow, maze);
+    mFlowSet.basisCache().clear();
+    
+  } // prepareFlows()
+  
+  // switch the flows to the in-flow basis of the current maze, if it has 
+  // been solved for, or else wait for it if the flows have no basis yet
+  // (while the maze changes, and until the new basis is ready, the basis
+  // for the previous maze stands in, which is only slightly wrong near
+  // the walls that move)
+  private void updateInFlowBasis(boolean wait) {
+    
+    if ( !staticInFlow() ) return;
+    
+    FlowBasisCache cache = mFlowSet.basisCache();
+    FlowBasis basis = cache.mazeBasis(mMaze.index());
+    if ( basis == null && ( wait || mInFlowBasis == null ) ) {
+      basis = cache.waitForMazeBasis(mMaze.index(), mFlows[0].refineLevel());
+    }
+    if ( basis == null || basis == mInFlowBasis ) return;
+    
+    mInFlowBasis = basis;
+    for ( Flow flow : mFlows ) {
+      flow.setStaticInFlow(VentControl.inFlowDefault(), basis);
+    }
+    
+  } // updateInFlowBasis()
+  
+  // whether the flows use a precomputed basis for the default in-flow
+  // (see kStaticInFlow)
+  private boolean staticInFlow() {
+    
+    return ( kStaticInFlow && Env.tasks().numThreads() > 1 );
+    
+  } // staticInFlow()
+  
+  // begin solving for the in-flow bases of the current maze (or the one
+  // being changed to) and of the maze after that, so that the next basis
+  // is solved for during the title screen or the level before
+  private void precomputeInFlows() {
+    
+    if ( !staticInFlow() ) return;
+    
+    FlowBasisCache cache = mFlowSet.basisCache();
+    final int index = mMaze.index(),
+              refineLevel = mFlows[0].refineLevel();
+    cache.forgetMazesBefore(index);
+    cache.precomputeMaze(index, refineLevel);
+    cache.precomputeMaze(index+1, refineLevel);
+    
+  } // precomputeInFlows()
+  
+  // bring the flows up to date after some changes to the maze
+  // (only the walls of the tiles on either side of each change are set, 
+  // so the solver only rebuilds the stencils for those blocks)
+  private void changeFlowWalls(MazeData maze,
+                               LinkedList<MazeData.Delta> deltas) {
+    
     final int nx = Env.numTilesX(),
               ny = Env.numTilesY();
-    
     final float inFlow = VentControl.inFlowDefault(); 
-
-    float flowWalls[][][] = flow.walls();
-    assert( flowWalls.length == ny && flowWalls[0].length == nx );
-
-    for ( int iy = 0 ; iy < ny ; iy++ ) {
-      for ( int ix = 0 ; ix < nx ; ix++ ) {
-        float walls[] = flowWalls[iy][ix];
-        walls[Env.NORTH] = ( maze.horizWall(ix, iy)   ? inFlow : Flow.OPEN );
-        walls[Env.SOUTH] = ( maze.horizWall(ix, iy+1) ? inFlow : Flow.OPEN );
-        walls[Env.WEST]  = ( maze.vertWall(ix, iy)    ? inFlow : Flow.OPEN );
-        walls[Env.EAST]  = ( maze.vertWall(ix+1, iy)  ? inFlow : Flow.OPEN );
+    
+    for ( MazeData.Delta delta : deltas ) {
+      final int ix = delta.mXPos,
+                iy = delta.mYPos;
+      for ( Flow flow : mFlows ) {
+        if ( delta.mHoriz ) {
+          if ( iy > 0 )  flow.setWalls(maze, ix, iy-1, inFlow);
+          if ( iy < ny ) flow.setWalls(maze, ix, iy, inFlow);
+        } else {
+          if ( ix > 0 )  flow.setWalls(maze, ix-1, iy, inFlow);
+          if ( ix < nx ) flow.setWalls(maze, ix, iy, inFlow);
+        }
       }
     }
+    if ( !deltas.isEmpty() ) mFlowSet.basisCache().clear();
+    
+  } // changeFlowWalls()
+  
+  // build a flow consistent with the maze
+  private void prepareFlow(Flow flow, MazeData maze) {
+
+    flow.setWalls(maze, VentControl.inFlowDefault());
     
   } // prepareFlow()
   
@@ -466,6 +658,7 @@ public class FloxelsStory extends Story {
     growPopulation(spriteManager);
     
     mMaze.changeToNext();
+    precomputeInFlows();
 
     Env.sounds().play(Sounds.SUCCESS, 15);
     
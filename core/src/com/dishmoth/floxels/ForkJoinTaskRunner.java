@@ -0,0 +1,100 @@
+/*
+ *  ForkJoinTaskRunner.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// runs the parts of a job in parallel using a shared fork/join pool
+// (not available for the html version, see FloxelsGame.gwt.xml)
+public class ForkJoinTaskRunner implements TaskRunner {
+
+  // the worker threads
+  private final ForkJoinPool mPool;
+  
+  // constructor (one thread per processor)
+  public ForkJoinTaskRunner() {
+    
+    this( Runtime.getRuntime().availableProcessors() );
+    
+  } // constructor
+  
+  // constructor
+  public ForkJoinTaskRunner(int numThreads) {
+    
+    assert( numThreads > 0 );
+    mPool = new ForkJoinPool(numThreads);
+    
+  } // constructor
+
+  // implementation of TaskRunner
+  public int numThreads() { return mPool.getParallelism(); }
+  
+  // implementation of TaskRunner
+  // (if called from within a job then the parts are forked in the same pool)
+  public void run(Task task, int num) {
+    
+    if ( num <= 0 ) return;
+    if ( num == 1 ) {
+      task.run(0);
+      return;
+    }
+    
+    Part part = new Part(task, 0, num);
+    if ( ForkJoinTask.inForkJoinPool() ) part.invoke();
+    else                                 mPool.invoke(part);
+    
+  } // TaskRunner.run()
+  
+  // implementation of TaskRunner (the parts run in the shared pool)
+  public Job start(Task task, int num) {
+    
+    final Part part = ( num > 0 ) ? new Part(task, 0, num) : null;
+    if ( part != null ) mPool.execute(part);
+    return new Job() {
+      public boolean done() { return ( part == null || part.isDone() ); }
+      public void finish() { if ( part != null ) part.join(); }
+    };
+    
+  } // TaskRunner.start()
+  
+  // a range of parts of the job, split in half until there is just one
+  static private class Part extends RecursiveAction {
+    
+    private static final long serialVersionUID = 1L;
+
+    // the job, and the range of parts [start,end)
+    private final Task mTask;
+    private final int  mStart,
+                       mEnd;
+    
+    // constructor
+    public Part(Task task, int start, int end) {
+      
+      mTask = task;
+      mStart = start;
+      mEnd = end;
+      
+    } // constructor
+    
+    // run the parts, or share them out
+    @Override
+    protected void compute() {
+      
+      if ( mEnd - mStart == 1 ) {
+        mTask.run(mStart);
+      } else {
+        final int mid = (mStart + mEnd) >>> 1;
+        invokeAll(new Part(mTask, mStart, mid), new Part(mTask, mid, mEnd));
+      }
+      
+    } // RecursiveAction.compute()
+    
+  } // class ForkJoinTaskRunner.Part
+  
+} // class ForkJoinTaskRunner
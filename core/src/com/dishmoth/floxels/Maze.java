@@ -14,7 +14,10 @@ import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 public class Maze extends Sprite {
 
   // story event: the maze walls have changed
+  // (listing the changes that have been made since the last event)
   public static class EventMazeChanged extends StoryEvent {
+    public LinkedList<MazeData.Delta> mDeltas;
+    EventMazeChanged(LinkedList<MazeData.Delta> d) { mDeltas = d; }
   } // Maze.EventMazeChanged
   
   // how this sprite is drawn relative to others
@@ -64,6 +67,10 @@ public class Maze extends Sprite {
   // access to the maze data
   public MazeData data() { return mMazeData; }
   
+  // index of the current maze, or of the maze being changed to
+  // (see Mazes.get())
+  public int index() { return mMazeNum; }
+  
   // start the transformation to the next maze
   public void changeToNext() {
   
@@ -94,13 +101,16 @@ public class Maze extends Sprite {
       
       if ( mChangeTimer < kChangeMorphDelay ) {
         int numLeft = Math.round( mNumDeltas*mChangeTimer/kChangeMorphDelay );
+        LinkedList<MazeData.Delta> applied = new LinkedList<MazeData.Delta>();
         while ( mDeltas.size() > numLeft ) {
-          mMazeData.applyDifference(mDeltas.pop());
+          MazeData.Delta delta = mDeltas.pop();
+          mMazeData.applyDifference(delta);
+          applied.add(delta);
         }
         if ( mChangeTimer + Env.TICK_TIME >= kChangeMorphDelay ) {
           Env.sounds().play(Sounds.MAZE_MORPH);
         }
-        newStoryEvents.add( new EventMazeChanged() );
+        newStoryEvents.add( new EventMazeChanged(applied) );
       }
 
     }
@@ -273,6 +273,25 @@ public class Mazes {
 
         };
 
+  // number of different mazes for the current tile layout (see get())
+  // (higher indices repeat the same mazes, flipped)
+  static public int numMazes() {
+
+    if ( Env.numTilesX() == 10 && Env.numTilesY() == 10 ) {
+      return kMazeData10x10.length;
+    } else if ( Env.numTilesX() == 9 && Env.numTilesY() == 11 ) {
+      return kMazeData11x9.length;
+    } else if ( Env.numTilesX() == 11 && Env.numTilesY() == 9 ) {
+      return kMazeData11x9.length;
+    } else if ( Env.numTilesX() == 8 && Env.numTilesY() == 12 ) {
+      return kMazeData12x8.length;
+    } else if ( Env.numTilesX() == 12 && Env.numTilesY() == 8 ) {
+      return kMazeData12x8.length;
+    }
+    return 0;
+
+  } // numMazes()
+  
   // return a maze object for the specified index
   static public MazeData get(int index) {
 
@@ -0,0 +1,747 @@
+/*
+ *  MultigridSolver.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import java.util.Arrays;
+
+// solves for the potentials of several flows on one hierarchy of grids
+// (see FlowGrid; the flows must have the same size and the same openings
+// in their walls, but each has its own in-flows and source, and each is a
+// layer of the grids, so one sweep over the grids solves them all; the
+// solution is only refined as far as any of the flows' desired solution
+// levels ask for, and the top grid only stores the blocks it needs)
+public class MultigridSolver {
+
+  // number of tiles for staging source terms allocated at first (for each
+  // layer, see mSources)
+  static private final int kInitialSourceTiles = 16;
+
+  // the solver as seen by one of the flows (see layer())
+  // (the methods that solve act on every layer, see FlowSet)
+  public class Layer implements PoissonSolver {
+
+    // which layer of the grids this is
+    private final int mLayer;
+
+    // constructor
+    private Layer(int layer) { mLayer = layer; }
+
+    // the walls have changed (the stencils are rebuilt at the next solve)
+    public void wallsChanged(boolean openingsChanged) {
+
+      if ( openingsChanged ) mOpeningsChanged = true;
+      else                   mInFlowsChanged = true;
+
+    } // wallsChanged()
+
+    // bring the stencils up to date after some openings have changed
+    public void openingsChanged(boolean blocks[]) {
+      MultigridSolver.this.openingsChanged(blocks);
+    } // openingsChanged()
+
+    // clear the current solution (for every layer)
+    public void reset() { MultigridSolver.this.reset(); }
+
+    // set the layer's source term to zero
+    public void clearSource() { MultigridSolver.this.clearSource(mLayer); }
+
+    // increase the layer's source term for a top grid cell
+    public void addToSource(int ix, int iy, float value) {
+      MultigridSolver.this.addToSource(mLayer, ix, iy, value);
+    } // addToSource()
+
+    // the layer's source term for a top grid cell
+    public float source(int ix, int iy) {
+      return MultigridSolver.this.source(mLayer, ix, iy);
+    } // source()
+
+    // the layer's potential for a top grid cell (zero if not stored)
+    public float data(int ix, int iy) {
+
+      if ( !mTopGrid.hasTile(ix >> mRefineLevel, iy >> mRefineLevel) ) {
+        return 0.0f;
+      }
+      return mTopGrid.data()[index(ix, iy)];
+
+    } // data()
+
+    // get ready for improve() and residual() (for every layer)
+    public void prepare() { MultigridSolver.this.prepare(); }
+
+    // produce a solution from scratch (for every layer)
+    public void solve() { MultigridSolver.this.solve(); }
+
+    // improve the current solution by one V-cycle (for every layer)
+    public void improve() { mTopGrid.solveCorrection(); }
+
+    // size of the residual on the top grid (the largest of the layers)
+    public float residual() { return mTopGrid.residual(); }
+
+    // access to the top grid's solution data (see index())
+    public float[] data() { return mTopGrid.data(); }
+
+    // position of the layer's value for a cell in the data array
+    public int index(int ix, int iy) {
+      return mTopGrid.index(ix, iy)*mNumLayers + mLayer;
+    } // index()
+
+    // distance between rows in the data array (within a block)
+    public int stride() { return mTopGrid.stride()*mNumLayers; }
+
+    // distance between neighbouring cells in a row of the data array
+    public int step() { return mNumLayers; }
+
+    // whether a block is stored on the top grid
+    public boolean hasBlock(int kx, int ky) {
+      return mTopGrid.hasTile(kx, ky);
+    } // hasBlock()
+
+    // copy values between the top grid's tiles
+    public void updateHalos() { mTopGrid.updateHalos(); }
+
+  } // class MultigridSolver.Layer
+
+  // the flows being solved for (one for each layer)
+  // (a copy of the array, since the caller's array may be reordered, see
+  // FlowSet.flows())
+  private final Flow mFlows[];
+
+  // the view of the solver for each flow
+  private final Layer mLayers[];
+
+  // number of layers (flows)
+  private final int mNumLayers;
+
+  // the base grid (no refinement)
+  private final int mBaseXSize,
+                    mBaseYSize;
+
+  // refinement level for the topmost grid, and its width
+  private final int mRefineLevel,
+                    mTopXSize;
+
+  // the finest level at which any flow wants each block solved (see
+  // combineDesiredSolutionLevels())
+  private int mDesiredSolutionLevel[][];
+
+  // the finest level at which each block's solution was kept up to date
+  // by the last solve (either solved there, or next to a block that was)
+  // (a tiled grid only stores the blocks that are kept up to date)
+  private int mMaintainedLevel[][];
+
+  // number of top grid cells in a base block
+  private final int mBlockCells;
+
+  // the source term of each layer on the top grid, staged in a tile for
+  // each base block that has been given some source since the last
+  // clearSource() (gathered into the grid when solving, so that each 
+  // flow's source can be built separately, even on different threads)
+  // (mSourceTiles[layer][y*mBaseXSize + x] is the block's tile, or -1,
+  // and the tile's values, row by row, start at tile*mBlockCells in 
+  // mSources[layer]; the tiles are handed out in order, and the blocks
+  // that have them are listed in mSourceBlocks[layer])
+  private final int   mSourceTiles[][];
+  private final float mSources[][];
+  private final int   mSourceBlocks[][],
+                      mNumSourceBlocks[];
+
+  // the top grid cells given some source in each layer since the last
+  // clearSource() (as iy*width + ix, the first mNumSourceCells[layer] 
+  // entries, growing as needed; so that gathering the sources only visits
+  // those cells)
+  private final int mSourceCells[][],
+                    mNumSourceCells[];
+
+  // whether each cell of a staging tile is in mSourceCells, one bit per
+  // cell (the bits for a tile start at tile*mTileListWords in 
+  // mSourceListed[layer], and are cleared when the tile is handed out)
+  private final int mTileListWords;
+  private final int mSourceListed[][];
+
+  // the cells whose sources were copied on to the top grid by the last
+  // gatherSources() (as for mSourceCells)
+  private final int mGatheredCells[][],
+                    mNumGatheredCells[];
+
+  // which blocks had top grid tiles only to hold their source terms after
+  // the last gatherSources(), and which blocks have non-zero sources now
+  // (workspaces for gatherSources()) [y*mBaseXSize + x]
+  private final boolean mSourceOnlyTiles[],
+                        mNonZeroBlocks[];
+
+  // whether the walls have changed since the stencils were built
+  // (either openings, or just in-flow values, see Layer.wallsChanged())
+  private boolean mOpeningsChanged,
+                  mInFlowsChanged;
+
+  // blocks whose openings have changed since the stencils were built, if
+  // not all of them have (see openingsChanged()) [y*mBaseXSize + x]
+  private final boolean mChangedBlocks[];
+  private boolean       mBlocksChanged;
+
+  // the connected region of open blocks that each base block belongs to,
+  // and the number of blocks in each region (found again only when the 
+  // openings change, see findRegions()) [y*mBaseXSize + x]
+  private final int mRegions[];
+  private int       mRegionAreas[];
+  private int       mNumRegions;
+  
+  // workspace for findRegions() [y*mBaseXSize + x]
+  private final int mRegionStack[];
+  
+  // total in-flow at the walls of each region (workspace for 
+  // findInFlowSinks()) [layer*mNumRegions + region]
+  private float mRegionInFlows[];
+  
+  // uniform sink in each base block that balances the in-flows at the
+  // walls of the connected region it belongs to (see findInFlowSinks())
+  // [layer][y][x]
+  private final float mInFlowSinks[][][];
+
+  // the most refined solution grid
+  private FlowGrid mTopGrid = null;
+
+  // constructor (for a single flow)
+  public MultigridSolver(Flow flow) { this(new Flow[]{ flow }); }
+
+  // constructor (the flows must have the same size and openings)
+  public MultigridSolver(Flow flows[]) {
+
+    assert( flows.length > 0 );
+
+    mFlows = flows.clone();
+    mNumLayers = flows.length;
+    mBaseXSize = flows[0].baseXSize();
+    mBaseYSize = flows[0].baseYSize();
+    mRefineLevel = flows[0].refineLevel();
+    mTopXSize = flows[0].topXSize();
+    for ( Flow flow : flows ) {
+      assert( flow.baseXSize() == mBaseXSize &&
+              flow.baseYSize() == mBaseYSize &&
+              flow.refineLevel() == mRefineLevel );
+    }
+
+    mLayers = new Layer[mNumLayers];
+    for ( int k = 0 ; k < mNumLayers ; k++ ) mLayers[k] = new Layer(k);
+
+    final int numBlocks = mBaseXSize*mBaseYSize;
+    mBlockCells = ( 1 << (2*mRefineLevel) );
+    mSourceTiles = new int[mNumLayers][numBlocks];
+    mSources = new float[mNumLayers][kInitialSourceTiles*mBlockCells];
+    mSourceBlocks = new int[mNumLayers][numBlocks];
+    mNumSourceBlocks = new int[mNumLayers];
+    for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+      for ( int k = 0 ; k < numBlocks ; k++ ) mSourceTiles[layer][k] = -1;
+    }
+
+    mSourceCells = new int[mNumLayers][kInitialSourceTiles*mBlockCells];
+    mNumSourceCells = new int[mNumLayers];
+    mTileListWords = ( mBlockCells + 31 )/32;
+    mSourceListed = new int[mNumLayers][kInitialSourceTiles*mTileListWords];
+    mGatheredCells = new int[mNumLayers][kInitialSourceTiles*mBlockCells];
+    mNumGatheredCells = new int[mNumLayers];
+    mSourceOnlyTiles = new boolean[mBaseXSize*mBaseYSize];
+    mNonZeroBlocks = new boolean[mBaseXSize*mBaseYSize];
+    mChangedBlocks = new boolean[mBaseXSize*mBaseYSize];
+    mBlocksChanged = false;
+
+    mDesiredSolutionLevel = new int[mBaseYSize][mBaseXSize];
+    mMaintainedLevel = new int[mBaseYSize][mBaseXSize];
+    resetMaintainedLevels();
+
+    mRegions = new int[mBaseXSize*mBaseYSize];
+    mRegionStack = new int[mBaseXSize*mBaseYSize];
+    mRegionAreas = new int[0];
+    mRegionInFlows = new float[0];
+    mInFlowSinks = new float[mNumLayers][mBaseYSize][mBaseXSize];
+    findRegions();
+    findInFlowSinks();
+
+    mTopGrid = new FlowGrid(this, mRefineLevel);
+    mTopGrid.buildStencil();
+    mOpeningsChanged = mInFlowsChanged = false;
+
+  } // constructor
+
+  // the solver for one of the flows
+  public Layer layer(int index) { return mLayers[index]; }
+
+  // the solver for one of the flows (by flow rather than by position)
+  public Layer layer(Flow flow) {
+
+    for ( int k = 0 ; k < mNumLayers ; k++ ) {
+      if ( mFlows[k] == flow ) return mLayers[k];
+    }
+    assert( false );
+    return null;
+
+  } // layer(flow)
+
+  // number of layers (flows)
+  int numLayers() { return mNumLayers; }
+
+  // access to the wall layout (the openings are the same for all layers)
+  float[][][] walls() { return mFlows[0].solverWalls(); }
+
+  // access to one layer's walls and in-flow values (as the solver sees
+  // them, see Flow.setStaticInFlow())
+  float[][][] walls(int layer) { return mFlows[layer].solverWalls(); }
+
+  // access to the combined desired solution levels
+  int[][] desiredSolutionLevel() { return mDesiredSolutionLevel; }
+
+  // top grid's refinement level
+  int refineLevel() { return mRefineLevel; }
+
+  // the most refined grid
+  FlowGrid topGrid() { return mTopGrid; }
+
+  // the sink in each base block that balances the in-flows of its region
+  // (for each layer) [layer][y][x]
+  float[][][] inFlowSinks() { return mInFlowSinks; }
+
+  // access to the maintained solution levels (see refreshMaintainedLevels())
+  int[][] maintainedLevel() { return mMaintainedLevel; }
+
+  // clear the current solution (and the sources)
+  public void reset() {
+
+    mTopGrid.reset();
+    resetMaintainedLevels();
+    for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+      clearSource(layer);
+      mNumGatheredCells[layer] = 0;
+    }
+    for ( int k = 0 ; k < mSourceOnlyTiles.length ; k++ ) {
+      mSourceOnlyTiles[k] = false;
+    }
+
+  } // reset()
+
+  // clear the source term for one layer (the staging tiles are handed 
+  // back, and are cleared when they are next used)
+  private void clearSource(int layer) {
+
+    mNumSourceCells[layer] = 0;
+
+    final int tiles[] = mSourceTiles[layer],
+              blocks[] = mSourceBlocks[layer];
+    for ( int n = 0 ; n < mNumSourceBlocks[layer] ; n++ ) {
+      tiles[blocks[n]] = -1;
+    }
+    mNumSourceBlocks[layer] = 0;
+
+  } // clearSource()
+
+  // increase the source term of one layer for a top grid cell
+  private void addToSource(int layer, int ix, int iy, float value) {
+
+    final int block = (iy >> mRefineLevel)*mBaseXSize + (ix >> mRefineLevel);
+    if ( mSourceTiles[layer][block] < 0 ) addSourceTile(layer, block);
+    mSources[layer][sourceIndex(layer, ix, iy)] += value;
+    
+    final int word = listWord(layer, ix, iy),
+              bit = ( 1 << (listBit(ix, iy) & 31) );
+    final int listed[] = mSourceListed[layer];
+    if ( (listed[word] & bit) == 0 ) {
+      listed[word] |= bit;
+      final int num = mNumSourceCells[layer];
+      if ( num == mSourceCells[layer].length ) {
+        mSourceCells[layer] = Arrays.copyOf(mSourceCells[layer], 2*num);
+      }
+      mSourceCells[layer][num] = iy*mTopXSize + ix;
+      mNumSourceCells[layer] = num + 1;
+    }
+
+  } // addToSource()
+
+  // whether a top grid cell is in the layer's list of source cells
+  private boolean listed(int layer, int ix, int iy) {
+
+    final int block = (iy >> mRefineLevel)*mBaseXSize + (ix >> mRefineLevel);
+    if ( mSourceTiles[layer][block] < 0 ) return false;
+    final int bit = ( 1 << (listBit(ix, iy) & 31) );
+    return ( (mSourceListed[layer][listWord(layer, ix, iy)] & bit) != 0 );
+
+  } // listed()
+
+  // position of a cell's bit in its staging tile (see mSourceListed)
+  private int listBit(int ix, int iy) {
+
+    final int mask = (1 << mRefineLevel) - 1;
+    return ((iy & mask) << mRefineLevel) + (ix & mask);
+
+  } // listBit()
+
+  // position of the word holding a cell's bit in mSourceListed[layer] 
+  // (the block must have a tile)
+  private int listWord(int layer, int ix, int iy) {
+
+    final int tile = mSourceTiles[layer][(iy >> mRefineLevel)*mBaseXSize 
+                                         + (ix >> mRefineLevel)];
+    return tile*mTileListWords + (listBit(ix, iy) >> 5);
+
+  } // listWord()
+
+  // the source term of one layer for a top grid cell
+  private float source(int layer, int ix, int iy) {
+
+    final int block = (iy >> mRefineLevel)*mBaseXSize + (ix >> mRefineLevel);
+    if ( mSourceTiles[layer][block] < 0 ) return 0.0f;
+    return mSources[layer][sourceIndex(layer, ix, iy)];
+
+  } // source()
+
+  // position of a cell's staged source term in mSources[layer] (the 
+  // block must have a tile)
+  private int sourceIndex(int layer, int ix, int iy) {
+
+    final int mask = (1 << mRefineLevel) - 1;
+    final int tile = mSourceTiles[layer][(iy >> mRefineLevel)*mBaseXSize 
+                                         + (ix >> mRefineLevel)];
+    return tile*mBlockCells + ((iy & mask) << mRefineLevel) + (ix & mask);
+
+  } // sourceIndex()
+
+  // give a block a tile to stage one layer's source terms in
+  // (the tiles are all handed back by clearSource(), so the next tile is
+  // always the next in order; the tile starts with zero values, and with
+  // none of its cells listed)
+  private void addSourceTile(int layer, int block) {
+
+    final int tile = mNumSourceBlocks[layer];
+    final int start = tile*mBlockCells,
+              end = start + mBlockCells;
+    if ( end > mSources[layer].length ) {
+      mSources[layer] = Arrays.copyOf(mSources[layer], 
+                                      2*mSources[layer].length);
+    }
+    Arrays.fill(mSources[layer], start, end, 0.0f);
+    
+    final int wordStart = tile*mTileListWords,
+              wordEnd = wordStart + mTileListWords;
+    if ( wordEnd > mSourceListed[layer].length ) {
+      mSourceListed[layer] = Arrays.copyOf(mSourceListed[layer],
+                                           2*mSourceListed[layer].length);
+    }
+    Arrays.fill(mSourceListed[layer], wordStart, wordEnd, 0);
+    
+    mSourceTiles[layer][block] = tile;
+    mSourceBlocks[layer][mNumSourceBlocks[layer]++] = block;
+
+  } // addSourceTile()
+
+  // bring the grids up to date with the flows' walls, desired solution
+  // levels and sources (needed before the correction scheme is used)
+  private void prepare() {
+
+    updateStencils();
+    combineDesiredSolutionLevels();
+    gradeDesiredSolutionLevels();
+    refreshMaintainedLevels();
+    gatherSources();
+
+  } // prepare()
+
+  // produce a solution (each level solves the problem afresh)
+  private void solve() {
+
+    updateStencils();
+    combineDesiredSolutionLevels();
+    refreshMaintainedLevels();
+    gatherSources();
+    mTopGrid.solve();
+
+  } // solve()
+
+  // rebuild the stencils if the walls have changed
+  private void updateStencils() {
+
+    if ( mOpeningsChanged || mBlocksChanged ) findRegions();
+    if ( mOpeningsChanged || mBlocksChanged || mInFlowsChanged ) {
+      findInFlowSinks();
+    }
+
+    if      ( mOpeningsChanged ) mTopGrid.buildStencil();
+    else if ( mBlocksChanged   ) mTopGrid.buildStencil(mChangedBlocks);
+    else if ( mInFlowsChanged  ) mTopGrid.buildWallTerms();
+    mOpeningsChanged = mInFlowsChanged = false;
+
+    if ( mBlocksChanged ) {
+      for ( int k = 0 ; k < mChangedBlocks.length ; k++ ) {
+        mChangedBlocks[k] = false;
+      }
+      mBlocksChanged = false;
+    }
+
+  } // updateStencils()
+
+  // label the connected regions of open blocks (a flood fill, done when
+  // the openings change)
+  private void findRegions() {
+
+    final float baseWalls[][][] = walls();
+    final int region[] = mRegions,
+              stack[]  = mRegionStack;
+    for ( int k = 0 ; k < region.length ; k++ ) region[k] = -1;
+
+    mNumRegions = 0;
+    for ( int start = 0 ; start < region.length ; start++ ) {
+      if ( region[start] >= 0 ) continue;
+
+      int top = 0;
+      stack[top++] = start;
+      region[start] = mNumRegions;
+      while ( top > 0 ) {
+        final int k = stack[--top],
+                  kx = k % mBaseXSize,
+                  ky = k / mBaseXSize;
+        final float walls[] = baseWalls[ky][kx];
+        if ( walls[Env.WEST] == Flow.OPEN && kx > 0 && region[k-1] < 0 ) {
+          region[k-1] = mNumRegions;
+          stack[top++] = k-1;
+        }
+        if ( walls[Env.EAST] == Flow.OPEN && kx < mBaseXSize-1 &&
+             region[k+1] < 0 ) {
+          region[k+1] = mNumRegions;
+          stack[top++] = k+1;
+        }
+        if ( walls[Env.NORTH] == Flow.OPEN && ky > 0 &&
+             region[k-mBaseXSize] < 0 ) {
+          region[k-mBaseXSize] = mNumRegions;
+          stack[top++] = k-mBaseXSize;
+        }
+        if ( walls[Env.SOUTH] == Flow.OPEN && ky < mBaseYSize-1 &&
+             region[k+mBaseXSize] < 0 ) {
+          region[k+mBaseXSize] = mNumRegions;
+          stack[top++] = k+mBaseXSize;
+        }
+      }
+      mNumRegions++;
+    }
+
+    if ( mRegionAreas.length < mNumRegions ) {
+      mRegionAreas = new int[mNumRegions];
+      mRegionInFlows = new float[mNumRegions*mNumLayers];
+    }
+    for ( int r = 0 ; r < mNumRegions ; r++ ) mRegionAreas[r] = 0;
+    for ( int k = 0 ; k < region.length ; k++ ) mRegionAreas[region[k]]++;
+
+  } // findRegions()
+
+  // work out the sink that spreads the total in-flow at the walls of each
+  // connected region evenly over its area (for each layer)
+  // (otherwise the equations have no solution; relaxation would spread 
+  // the imbalance out anyway, but in the correction scheme the blocks that
+  // are solved at different levels disagree about it, and the error grows
+  // once the base grid is solved accurately)
+  // (the in-flows can change every tick, so this is one pass over the 
+  // blocks to total them, and one to share them out, see findRegions())
+  private void findInFlowSinks() {
+
+    final float baseWalls[][][] = walls();
+    final int numRegions = mNumRegions;
+    final float inFlow[] = mRegionInFlows;
+    for ( int n = 0 ; n < numRegions*mNumLayers ; n++ ) inFlow[n] = 0.0f;
+
+    for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+      final float layerWalls[][][] = walls(layer);
+      final int offset = layer*numRegions;
+      for ( int ky = 0, k = 0 ; ky < mBaseYSize ; ky++ ) {
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++, k++ ) {
+          final float walls[] = baseWalls[ky][kx],
+                      values[] = layerWalls[ky][kx];
+          float sum = 0.0f;
+          for ( int d = 0 ; d < 4 ; d++ ) {
+            if ( walls[d] != Flow.OPEN ) sum += values[d];
+          }
+          inFlow[offset + mRegions[k]] += sum;
+        }
+      }
+    }
+
+    for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+      final float sinks[][] = mInFlowSinks[layer];
+      final int offset = layer*numRegions;
+      for ( int ky = 0, k = 0 ; ky < mBaseYSize ; ky++ ) {
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++, k++ ) {
+          final int r = mRegions[k];
+          sinks[ky][kx] = inFlow[offset + r]/mRegionAreas[r];
+        }
+      }
+    }
+
+  } // findInFlowSinks()
+
+  // note the blocks whose openings have changed (see Layer.openingsChanged())
+  // (the flows share the openings, so any layer's blocks will do)
+  private void openingsChanged(boolean blocks[]) {
+
+    assert( blocks.length == mChangedBlocks.length );
+    for ( int k = 0 ; k < blocks.length ; k++ ) {
+      if ( blocks[k] ) mChangedBlocks[k] = mBlocksChanged = true;
+    }
+
+  } // openingsChanged()
+
+  // copy the layers' sources on to the top grid
+  // (only the cells that had sources last time or have them now are 
+  // visited; the top grid keeps tiles for blocks that are not solved at 
+  // the top level only while they hold non-zero sources)
+  private void gatherSources() {
+
+    // tiles that have just stopped being solved start again from zero
+    mTopGrid.releaseSourceTiles(mSourceOnlyTiles);
+
+    for ( int k = 0 ; k < mNonZeroBlocks.length ; k++ ) {
+      mNonZeroBlocks[k] = false;
+    }
+    
+    for ( int layer = 0 ; layer < mNumLayers ; layer++ ) {
+      final float source[] = mSources[layer];
+      final int gathered[] = mGatheredCells[layer],
+                cells[] = mSourceCells[layer];
+
+      for ( int n = 0 ; n < mNumGatheredCells[layer] ; n++ ) {
+        final int i = gathered[n],
+                  ix = i % mTopXSize,
+                  iy = i / mTopXSize;
+        if ( !listed(layer, ix, iy) ) {
+          mTopGrid.setSource(ix, iy, layer, 0.0f);
+        }
+      }
+
+      final int num = mNumSourceCells[layer];
+      for ( int n = 0 ; n < num ; n++ ) {
+        final int i = cells[n],
+                  ix = i % mTopXSize,
+                  iy = i / mTopXSize;
+        final float value = source[sourceIndex(layer, ix, iy)];
+        mTopGrid.setSource(ix, iy, layer, value);
+        if ( value != 0.0f ) {
+          mNonZeroBlocks[(iy >> mRefineLevel)*mBaseXSize 
+                         + (ix >> mRefineLevel)] = true;
+        }
+      }
+      
+      if ( num > gathered.length ) {
+        mGatheredCells[layer] = new int[cells.length];
+      }
+      System.arraycopy(cells, 0, mGatheredCells[layer], 0, num);
+      mNumGatheredCells[layer] = num;
+    }
+
+    mTopGrid.releaseSourceTiles(mNonZeroBlocks);
+    for ( int ky = 0, k = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++, k++ ) {
+        mSourceOnlyTiles[k] = ( mTopGrid.hasTile(kx, ky) &&
+                                mMaintainedLevel[ky][kx] < mRefineLevel );
+      }
+    }
+
+  } // gatherSources()
+
+  // the finest level wanted by any flow for each block
+  private void combineDesiredSolutionLevels() {
+
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        int level = 0;
+        for ( Flow flow : mFlows ) {
+          level = Math.max(level, flow.solveLevels()[ky][kx]);
+        }
+        mDesiredSolutionLevel[ky][kx] = level;
+      }
+    }
+
+  } // combineDesiredSolutionLevels()
+
+  // raise the desired solution levels so that open neighbours differ by
+  // at most one level (the correction scheme is unstable across big jumps)
+  private void gradeDesiredSolutionLevels() {
+
+    final float baseWalls[][][] = walls();
+    final int desiredSolutionLevel[][] = mDesiredSolutionLevel;
+
+    boolean changed = true;
+    while ( changed ) {
+      changed = false;
+      for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+        for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+          float walls[] = baseWalls[ky][kx];
+          int level = desiredSolutionLevel[ky][kx];
+          if ( walls[Env.EAST] == Flow.OPEN ) {
+            level = Math.max(level, desiredSolutionLevel[ky][kx+1]-1);
+          }
+          if ( walls[Env.WEST] == Flow.OPEN ) {
+            level = Math.max(level, desiredSolutionLevel[ky][kx-1]-1);
+          }
+          if ( walls[Env.NORTH] == Flow.OPEN ) {
+            level = Math.max(level, desiredSolutionLevel[ky-1][kx]-1);
+          }
+          if ( walls[Env.SOUTH] == Flow.OPEN ) {
+            level = Math.max(level, desiredSolutionLevel[ky+1][kx]-1);
+          }
+          if ( level != desiredSolutionLevel[ky][kx] ) {
+            desiredSolutionLevel[ky][kx] = level;
+            changed = true;
+          }
+        }
+      }
+    }
+
+  } // gradeDesiredSolutionLevels()
+
+  // nothing is stored above the base grid (after a reset, when the whole
+  // solution is zero, so refined values can be copied from the base grid)
+  private void resetMaintainedLevels() {
+
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        mMaintainedLevel[ky][kx] = 0;
+      }
+    }
+
+  } // resetMaintainedLevels()
+
+  // work out which levels each block's solution is needed at for the
+  // current desired solution levels, and bring the solution up to date
+  // where it has not been kept up to date (or release the storage where
+  // it is no longer needed)
+  // (a block's values are needed at its neighbours' levels too)
+  private void refreshMaintainedLevels() {
+
+    final float baseWalls[][][] = walls();
+    final int desiredSolutionLevel[][] = mDesiredSolutionLevel;
+
+    for ( int ky = 0 ; ky < mBaseYSize ; ky++ ) {
+      for ( int kx = 0 ; kx < mBaseXSize ; kx++ ) {
+        final float walls[] = baseWalls[ky][kx];
+        int level = desiredSolutionLevel[ky][kx];
+        if ( walls[Env.EAST] == Flow.OPEN ) {
+          level = Math.max(level, desiredSolutionLevel[ky][kx+1]);
+        }
+        if ( walls[Env.WEST] == Flow.OPEN ) {
+          level = Math.max(level, desiredSolutionLevel[ky][kx-1]);
+        }
+        if ( walls[Env.NORTH] == Flow.OPEN ) {
+          level = Math.max(level, desiredSolutionLevel[ky-1][kx]);
+        }
+        if ( walls[Env.SOUTH] == Flow.OPEN ) {
+          level = Math.max(level, desiredSolutionLevel[ky+1][kx]);
+        }
+
+        if ( level != mMaintainedLevel[ky][kx] ) {
+          mTopGrid.refreshBlock(kx, ky, mMaintainedLevel[ky][kx], level);
+        }
+        mMaintainedLevel[ky][kx] = level;
+      }
+    }
+
+  } // refreshMaintainedLevels()
+
+} // class MultigridSolver
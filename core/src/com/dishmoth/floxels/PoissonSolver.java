@@ -0,0 +1,70 @@
+/*
+ *  PoissonSolver.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// interface for the engines that solve for a flow's potential
+// (the solution and source live on the flow's top grid; the walls and the
+// desired solution levels are taken from the flow, see Flow.setSolver())
+public interface PoissonSolver {
+
+  // bring the solver up to date after the flow's walls have changed
+  // (either openings have been added or removed, or just in-flow values)
+  public void wallsChanged(boolean openingsChanged);
+
+  // bring the solver up to date after openings have been added or removed
+  // around some of the blocks (blocks[ky*baseXSize + kx] is true for each
+  // block whose walls have opened or closed; in-flow values may also have
+  // changed anywhere)
+  public void openingsChanged(boolean blocks[]);
+
+  // set the current solution to zero
+  public void reset();
+
+  // set the source term to zero
+  public void clearSource();
+
+  // increase the source term for a top grid cell
+  public void addToSource(int ix, int iy, float value);
+
+  // source term for a top grid cell (zero if the block is not stored)
+  public float source(int ix, int iy);
+
+  // potential value for a top grid cell (zero if the block is not stored)
+  public float data(int ix, int iy);
+
+  // get ready for improve() and residual() after the source has changed
+  public void prepare();
+
+  // produce a solution from scratch
+  public void solve();
+
+  // improve the current solution by one cycle (after prepare())
+  public void improve();
+
+  // size of the residual on the top grid (root-mean-square, after prepare())
+  public float residual();
+
+  // access to the solution data (see index())
+  public float[] data();
+
+  // position of a cell in the data array (the block must be stored)
+  public int index(int ix, int iy);
+
+  // distance between rows in the data array (within a block)
+  public int stride();
+
+  // distance between neighbouring cells in a row of the data array
+  public int step();
+
+  // whether a base block's solution is stored on the top grid
+  public boolean hasBlock(int kx, int ky);
+
+  // make sure values can be read across the edges of the blocks
+  // (needed before neighbouring cells are compared, see Flow)
+  public void updateHalos();
+
+} // interface PoissonSolver
@@ -0,0 +1,39 @@
+/*
+ *  SerialTaskRunner.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// runs the parts of a job one after another on the calling thread
+public class SerialTaskRunner implements TaskRunner {
+
+  // a job that is already complete (see start())
+  static private final Job kDoneJob = new Job() {
+    public boolean done() { return true; }
+    public void finish() {}
+  };
+
+  // constructor
+  public SerialTaskRunner() {}
+  
+  // implementation of TaskRunner
+  public int numThreads() { return 1; }
+  
+  // implementation of TaskRunner
+  public void run(Task task, int num) {
+    
+    for ( int index = 0 ; index < num ; index++ ) task.run(index);
+    
+  } // TaskRunner.run()
+  
+  // implementation of TaskRunner (the job is complete before this returns)
+  public Job start(Task task, int num) {
+    
+    run(task, num);
+    return kDoneJob;
+    
+  } // TaskRunner.start()
+  
+} // class SerialTaskRunner
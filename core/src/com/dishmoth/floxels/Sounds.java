@@ -315,13 +315,14 @@ public class Sounds {
   } // advanceSpecial()
   
   // play sounds for dead floxels based on which are dying most
+  // (types beyond the first two share the second type's sounds)
   public void playDeathSounds(int killCount[]) {
     
     if ( !mAvailable || mMuted ) return;
 
-    assert( killCount.length == 2 );
-    for ( int k = 0 ; k < 2 ; k++ ) {
-      mDeathCount[k] += killCount[k];
+    assert( killCount.length >= 2 );
+    for ( int k = 0 ; k < killCount.length ; k++ ) {
+      mDeathCount[Math.min(k, 1)] += killCount[k];
     }
     
   } // playDeathSounds()
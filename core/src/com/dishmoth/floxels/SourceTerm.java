@@ -9,6 +9,6 @@ package com.dishmoth.floxels;
 // implementer contributes to the Poisson source terms 
 public interface SourceTerm {
   
-  public void addToSource(int floxelType, float source[][], int refineFactor);
+  public void addToSource(int floxelType, Flow flow);
 
 } // interface SourceTerm
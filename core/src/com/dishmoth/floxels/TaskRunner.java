@@ -0,0 +1,36 @@
+/*
+ *  TaskRunner.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+// runs a job that is split into independent parts, possibly in parallel
+// (the html version has no threads, so there the parts run one at a time)
+public interface TaskRunner {
+
+  // a job made up of numbered parts which do not depend on each other
+  public interface Task {
+    public void run(int index);
+  } // interface TaskRunner.Task
+  
+  // a job that has been started in the background (see start())
+  public interface Job {
+    public boolean done();
+    public void finish();
+  } // interface TaskRunner.Job
+  
+  // number of threads that the parts of a job are shared between
+  public int numThreads();
+  
+  // run the parts 0 to num-1 of the task, returning when all are complete
+  public void run(Task task, int num);
+  
+  // start the parts 0 to num-1 of the task without waiting for them
+  // (Job.finish() returns when all are complete, and Job.done() checks
+  // without waiting; without threads the parts run straight away, before
+  // this returns)
+  public Job start(Task task, int num);
+  
+} // interface TaskRunner
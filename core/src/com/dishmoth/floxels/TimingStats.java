@@ -28,6 +28,17 @@ class TimingStats {
                 mMinSeconds,
                 mMaxSeconds;
 
+  // time spent on the game logic and on drawing in each frame, and the
+  // sprite batch's render calls (see addFrameWork())
+  // (the drawing time is what the CPU spends building and submitting the
+  // batches, so it grows with the number of floxels on screen)
+  private int  mNumFrames,
+               mRenderCalls;
+  private long mUpdateNanos,
+               mMaxUpdateNanos,
+               mDrawNanos,
+               mMaxDrawNanos;
+
   // value (average frames-per-second as percentage) to show on screen
   private int   mFpsUpdates,
                 mFpsValue,
@@ -58,6 +69,9 @@ class TimingStats {
     mNumUpdates = 0;
     mTotalSeconds = mMinSeconds = mMaxSeconds = 0.0f;
     
+    mNumFrames = mRenderCalls = 0;
+    mUpdateNanos = mMaxUpdateNanos = mDrawNanos = mMaxDrawNanos = 0;
+    
   } // clear()
   
   // reset fps counters
@@ -93,6 +107,19 @@ class TimingStats {
                + "ms, max="
                + Env.decimalPlaces(1000*mMaxSeconds, 1)
                + "ms)" );
+      if ( mNumFrames > 0 ) {
+        Env.debug( "  update mean="
+                 + Env.decimalPlaces(1.0e-6f*mUpdateNanos/mNumFrames, 2)
+                 + "ms, max="
+                 + Env.decimalPlaces(1.0e-6f*mMaxUpdateNanos, 2)
+                 + "ms; draw mean="
+                 + Env.decimalPlaces(1.0e-6f*mDrawNanos/mNumFrames, 2)
+                 + "ms, max="
+                 + Env.decimalPlaces(1.0e-6f*mMaxDrawNanos, 2)
+                 + "ms, " 
+                 + Env.decimalPlaces(mRenderCalls/(float)mNumFrames, 1)
+                 + " batches" );
+      }
       clear();
     }
 
@@ -116,6 +143,20 @@ class TimingStats {
     
   } // update()
 
+  // record the work done in a frame: the nanoseconds spent updating the
+  // game and drawing it, and the sprite batch's render calls
+  public void addFrameWork(long updateNanos, long drawNanos, 
+                           int renderCalls) {
+    
+    mNumFrames++;
+    mUpdateNanos += updateNanos;
+    mDrawNanos += drawNanos;
+    mMaxUpdateNanos = Math.max(mMaxUpdateNanos, updateNanos);
+    mMaxDrawNanos = Math.max(mMaxDrawNanos, drawNanos);
+    mRenderCalls += renderCalls;
+    
+  } // addFrameWork()
+  
   // show the frame rate on screen
   public void display(SpriteBatch batch) {
     
@@ -6,6 +6,8 @@
 
 package com.dishmoth.floxels;
 
+import java.util.Arrays;
+
 // class for adjusting the overall flow around the maze
 public class VentControl {
 
@@ -78,6 +80,10 @@ public class VentControl {
   // seconds since the object was created
   private float mNoiseTime;
 
+  // workspace for the total count of enemy floxels (if there are several
+  // enemy populations)
+  private int mEnemyCount[][];
+
   // noise generator for random flow
   private Perlin3D mNoise;
   
@@ -135,10 +141,10 @@ public class VentControl {
     
   } // overrideTracking()
   
-  // change over teams
+  // change over teams (the first two types swap over, see Floxels)
   public void switchFloxelTypes() {
     
-    mFloxelType = 1 - mFloxelType;
+    if ( mFloxelType < 2 ) mFloxelType = 1 - mFloxelType;
     
   } // switchFloxelTypes()
   
@@ -174,6 +180,32 @@ public class VentControl {
     
   } // advance()
 
+  // number of floxels of other types in each grid square
+  private int[][] countEnemies() {
+
+    final int numTypes = mFloxels.numFloxelTypes();
+    if ( numTypes == 2 ) return mFloxels.countFloxels(1 - mFloxelType);
+
+    int first[][] = mFloxels.countFloxels(0);
+    if ( mEnemyCount == null ) {
+      mEnemyCount = new int[first.length][first[0].length];
+    }
+    for ( int iy = 0 ; iy < mEnemyCount.length ; iy++ ) {
+      Arrays.fill(mEnemyCount[iy], 0);
+    }
+    for ( int type = 0 ; type < numTypes ; type++ ) {
+      if ( type == mFloxelType ) continue;
+      final int count[][] = mFloxels.countFloxels(type);
+      for ( int iy = 0 ; iy < count.length ; iy++ ) {
+        for ( int ix = 0 ; ix < count[iy].length ; ix++ ) {
+          mEnemyCount[iy][ix] += count[iy][ix];
+        }
+      }
+    }
+    return mEnemyCount;
+
+  } // countEnemies()
+
   // follow a cluster of enemy particles
   private void trackEnemy() {
 
@@ -182,8 +214,7 @@ public class VentControl {
       return;
     }
     
-    final int otherType = 1 - mFloxelType;    
-    final int count[][] = mFloxels.countFloxels(otherType);
+    final int count[][] = countEnemies();
     int max  = 0,
         xMax = -1,
         yMax = -1;
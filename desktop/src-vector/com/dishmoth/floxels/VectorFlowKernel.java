@@ -0,0 +1,366 @@
+/*
+ *  VectorFlowKernel.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+// the inner loops of the flow solver using SIMD instructions
+// (built on the incubating vector API, so it needs a recent JDK and the
+// jdk.incubator.vector module; it is compiled separately from the rest of
+// the desktop code and loaded only if it works, see DesktopFlowKernel)
+// (the arithmetic is done in the same order as in FlowKernel, so the
+// results match it exactly, apart from the rounding in sum())
+public class VectorFlowKernel extends FlowKernel {
+
+  // the widest vectors that the processor handles well, but no more than
+  // eight values (the rows of a block are short, sixteen cells at most,
+  // so that the coarse rows of restriction fill a vector)
+  static private final VectorSpecies<Float> kSpecies
+        = ( FloatVector.SPECIES_PREFERRED.length() > 8 )
+          ? FloatVector.SPECIES_256
+          : FloatVector.SPECIES_PREFERRED;
+
+  // number of values in a vector
+  static private final int kLength = kSpecies.length();
+
+  // vectors shorter than this are not worth using
+  static private final int kMinLength = 4;
+
+  // lanes 0, 2, 4, ... (the cells of one colour when smoothing a row)
+  private final VectorMask<Float> mEvenLanes;
+
+  // lanes 0, 1, 4, 5, ... (the cells of one colour when smoothing a row
+  // of a grid with two layers)
+  private final VectorMask<Float> mEvenPairLanes;
+
+  // take the even or odd lanes from a pair of vectors
+  private final VectorShuffle<Float> mEvens,
+                                     mOdds;
+
+  // repeat each lane of the lower or upper half of a vector twice
+  private final VectorShuffle<Float> mDoubleLow,
+                                     mDoubleHigh;
+
+  // as mEvens, mOdds, mDoubleLow and mDoubleHigh, but for the cells of a
+  // grid with two layers, taking the values in pairs
+  private final VectorShuffle<Float> mPairEvens,
+                                     mPairOdds,
+                                     mPairDoubleLow,
+                                     mPairDoubleHigh;
+
+  // constructor (fails if the processor's vectors are too short)
+  public VectorFlowKernel() {
+
+    if ( kLength < kMinLength || kLength % 2 != 0 ) {
+      throw new UnsupportedOperationException("Vector length " + kLength);
+    }
+
+    boolean even[] = new boolean[kLength],
+            evenPair[] = new boolean[kLength];
+    int evens[] = new int[kLength],
+        odds[] = new int[kLength],
+        doubleLow[] = new int[kLength],
+        doubleHigh[] = new int[kLength],
+        pairEvens[] = new int[kLength],
+        pairOdds[] = new int[kLength],
+        pairDoubleLow[] = new int[kLength],
+        pairDoubleHigh[] = new int[kLength];
+    for ( int k = 0 ; k < kLength ; k++ ) {
+      even[k] = ( k % 2 == 0 );
+      evenPair[k] = ( (k/2) % 2 == 0 );
+      evens[k] = 2*k;
+      odds[k] = 2*k + 1;
+      doubleLow[k] = k/2;
+      doubleHigh[k] = kLength/2 + k/2;
+      pairEvens[k] = 4*(k/2) + k%2;
+      pairOdds[k] = pairEvens[k] + 2;
+      pairDoubleLow[k] = 2*(k/4) + k%2;
+      pairDoubleHigh[k] = kLength/2 + pairDoubleLow[k];
+    }
+
+    // (indices beyond the first vector wrap round to be exceptional,
+    // and so select from the second vector in rearrange())
+    mEvenLanes  = VectorMask.fromArray(kSpecies, even, 0);
+    mEvenPairLanes = VectorMask.fromArray(kSpecies, evenPair, 0);
+    mEvens      = VectorShuffle.fromArray(kSpecies, evens, 0);
+    mOdds       = VectorShuffle.fromArray(kSpecies, odds, 0);
+    mDoubleLow  = VectorShuffle.fromArray(kSpecies, doubleLow, 0);
+    mDoubleHigh = VectorShuffle.fromArray(kSpecies, doubleHigh, 0);
+    mPairEvens      = VectorShuffle.fromArray(kSpecies, pairEvens, 0);
+    mPairOdds       = VectorShuffle.fromArray(kSpecies, pairOdds, 0);
+    mPairDoubleLow  = VectorShuffle.fromArray(kSpecies, pairDoubleLow, 0);
+    mPairDoubleHigh = VectorShuffle.fromArray(kSpecies, pairDoubleHigh, 0);
+
+  } // constructor
+
+  // description for debug messages
+  @Override
+  public String name() { return "vector (" + kLength + " floats)"; }
+
+  // one red-black smoothing step (see FlowKernel)
+  // (whole vectors of cells are updated, then the cells of the other
+  // colour are put back as they were)
+  @Override
+  public void smoothRow(float data[], float source[],
+                        float coefN[], float coefS[], float coefE[],
+                        float coefW[], float coefC[], float wallTerm[],
+                        float sourceFactor, int first, int last, int stride) {
+
+    final int s = stride;
+    int i = first;
+    for ( ; i + kLength <= last + 1 ; i += kLength ) {
+      final FloatVector phi = FloatVector.fromArray(kSpecies, data, i);
+      final FloatVector update
+            = FloatVector.fromArray(kSpecies, coefN, i)
+              .mul(FloatVector.fromArray(kSpecies, data, i-s))
+              .add(FloatVector.fromArray(kSpecies, coefS, i)
+                   .mul(FloatVector.fromArray(kSpecies, data, i+s)))
+              .add(FloatVector.fromArray(kSpecies, coefE, i)
+                   .mul(FloatVector.fromArray(kSpecies, data, i+1)))
+              .add(FloatVector.fromArray(kSpecies, coefW, i)
+                   .mul(FloatVector.fromArray(kSpecies, data, i-1)))
+              .add(FloatVector.fromArray(kSpecies, coefC, i).mul(phi))
+              .add(FloatVector.fromArray(kSpecies, wallTerm, i))
+              .sub(FloatVector.fromArray(kSpecies, source, i)
+                   .mul(sourceFactor));
+      phi.blend(update, mEvenLanes).intoArray(data, i);
+    }
+
+    if ( i <= last ) {
+      super.smoothRow(data, source, coefN, coefS, coefE, coefW, coefC,
+                      wallTerm, sourceFactor, i, last, stride);
+    }
+
+  } // smoothRow()
+
+  // one red-black smoothing step on a layered grid (see FlowKernel)
+  // (only two layers are vectorized, which is what FlowSet uses: each 
+  // vector holds both layers of half as many cells, with the cells'
+  // coefficients repeated for the two layers)
+  @Override
+  public void smoothRowLayers(float data[], float source[],
+                              float coefN[], float coefS[], float coefE[],
+                              float coefW[], float coefC[], float wallTerm[],
+                              float sourceFactor, int first, int last,
+                              int stride, int layers) {
+
+    if ( layers != 2 ) {
+      super.smoothRowLayers(data, source, coefN, coefS, coefE, coefW, coefC,
+                            wallTerm, sourceFactor, first, last, stride,
+                            layers);
+      return;
+    }
+
+    final int s = stride,
+              cells = kLength/2;
+    int i = first;
+    for ( ; i + cells <= last + 1 && i + kLength <= coefC.length ;
+          i += cells ) {
+      final int j = 2*i;
+      final FloatVector phi = FloatVector.fromArray(kSpecies, data, j);
+      final FloatVector update
+            = coefficients(coefN, i)
+              .mul(FloatVector.fromArray(kSpecies, data, j-s))
+              .add(coefficients(coefS, i)
+                   .mul(FloatVector.fromArray(kSpecies, data, j+s)))
+              .add(coefficients(coefE, i)
+                   .mul(FloatVector.fromArray(kSpecies, data, j+2)))
+              .add(coefficients(coefW, i)
+                   .mul(FloatVector.fromArray(kSpecies, data, j-2)))
+              .add(coefficients(coefC, i).mul(phi))
+              .add(FloatVector.fromArray(kSpecies, wallTerm, j))
+              .sub(FloatVector.fromArray(kSpecies, source, j)
+                   .mul(sourceFactor));
+      phi.blend(update, mEvenPairLanes).intoArray(data, j);
+    }
+
+    if ( i <= last ) {
+      super.smoothRowLayers(data, source, coefN, coefS, coefE, coefW, coefC,
+                            wallTerm, sourceFactor, i, last, stride, layers);
+    }
+
+  } // smoothRowLayers()
+
+  // the coefficients of kLength/2 cells, each repeated for two layers
+  private FloatVector coefficients(float coef[], int start) {
+
+    return FloatVector.fromArray(kSpecies, coef, start)
+                      .rearrange(mDoubleLow);
+
+  } // coefficients()
+
+  // average pairs of fine rows down to one coarse row (see FlowKernel)
+  // (one or two layers are vectorized; each vector of the coarse row
+  // holds kLength/layers cells)
+  @Override
+  public void restrictRow(float fine[], int fineStart, int fineStride,
+                          float coarse[], int coarseStart,
+                          int num, int layers) {
+
+    if ( layers != 1 && layers != 2 ) {
+      super.restrictRow(fine, fineStart, fineStride,
+                        coarse, coarseStart, num, layers);
+      return;
+    }
+
+    final VectorShuffle<Float> evens = ( layers == 1 ) ? mEvens : mPairEvens,
+                               odds  = ( layers == 1 ) ? mOdds  : mPairOdds;
+    final int s = fineStride,
+              cells = kLength/layers;
+    int n = 0,
+        i = fineStart,
+        k = coarseStart;
+    for ( ; n + cells <= num ; n += cells, i += 2*kLength, k += kLength ) {
+      final FloatVector north0 = FloatVector.fromArray(kSpecies, fine, i),
+                        north1 = FloatVector.fromArray(kSpecies, fine,
+                                                       i+kLength),
+                        south0 = FloatVector.fromArray(kSpecies, fine, i+s),
+                        south1 = FloatVector.fromArray(kSpecies, fine,
+                                                       i+s+kLength);
+      north0.rearrange(evens, north1)
+            .add(north0.rearrange(odds, north1))
+            .add(south0.rearrange(evens, south1))
+            .add(south0.rearrange(odds, south1))
+            .mul(0.25f)
+            .intoArray(coarse, k);
+    }
+
+    if ( n < num ) {
+      super.restrictRow(fine, i, fineStride, coarse, k, num-n, layers);
+    }
+
+  } // restrictRow()
+
+  // copy one coarse row to pairs of fine rows (see FlowKernel)
+  @Override
+  public void prolongateRow(float coarse[], int coarseStart,
+                            float fine[], int fineStart, int fineStride,
+                            int num, int layers) {
+
+    if ( layers != 1 && layers != 2 ) {
+      super.prolongateRow(coarse, coarseStart,
+                          fine, fineStart, fineStride, num, layers);
+      return;
+    }
+
+    final VectorShuffle<Float> doubleLow  = ( layers == 1 ) ? mDoubleLow
+                                                            : mPairDoubleLow,
+                               doubleHigh = ( layers == 1 ) ? mDoubleHigh
+                                                            : mPairDoubleHigh;
+    final int s = fineStride,
+              cells = kLength/layers;
+    int n = 0,
+        i = fineStart,
+        k = coarseStart;
+    for ( ; n + cells <= num ; n += cells, i += 2*kLength, k += kLength ) {
+      final FloatVector phi = FloatVector.fromArray(kSpecies, coarse, k);
+      final FloatVector low  = phi.rearrange(doubleLow),
+                        high = phi.rearrange(doubleHigh);
+      low.intoArray(fine, i);
+      high.intoArray(fine, i+kLength);
+      low.intoArray(fine, i+s);
+      high.intoArray(fine, i+s+kLength);
+    }
+
+    if ( n < num ) {
+      super.prolongateRow(coarse, k, fine, i, fineStride, num-n, layers);
+    }
+
+  } // prolongateRow()
+
+  // correct pairs of fine rows towards one coarse row (see FlowKernel)
+  @Override
+  public void correctRow(float coarse[], int coarseStart,
+                         float fine[], int fineStart, int fineStride,
+                         int num, int layers, float factor) {
+
+    if ( layers != 1 && layers != 2 ) {
+      super.correctRow(coarse, coarseStart,
+                       fine, fineStart, fineStride, num, layers, factor);
+      return;
+    }
+
+    final VectorShuffle<Float> evens = ( layers == 1 ) ? mEvens : mPairEvens,
+                               odds  = ( layers == 1 ) ? mOdds  : mPairOdds,
+                               doubleLow  = ( layers == 1 ) ? mDoubleLow
+                                                            : mPairDoubleLow,
+                               doubleHigh = ( layers == 1 ) ? mDoubleHigh
+                                                            : mPairDoubleHigh;
+    final int s = fineStride,
+              cells = kLength/layers;
+    int n = 0,
+        i = fineStart,
+        k = coarseStart;
+    for ( ; n + cells <= num ; n += cells, i += 2*kLength, k += kLength ) {
+      final FloatVector north0 = FloatVector.fromArray(kSpecies, fine, i),
+                        north1 = FloatVector.fromArray(kSpecies, fine,
+                                                       i+kLength),
+                        south0 = FloatVector.fromArray(kSpecies, fine, i+s),
+                        south1 = FloatVector.fromArray(kSpecies, fine,
+                                                       i+s+kLength);
+      final FloatVector mean = north0.rearrange(evens, north1)
+                               .add(north0.rearrange(odds, north1))
+                               .add(south0.rearrange(evens, south1))
+                               .add(south0.rearrange(odds, south1))
+                               .mul(0.25f);
+      final FloatVector correction
+            = FloatVector.fromArray(kSpecies, coarse, k).sub(mean)
+                                                        .mul(factor);
+      final FloatVector low  = correction.rearrange(doubleLow),
+                        high = correction.rearrange(doubleHigh);
+      north0.add(low).intoArray(fine, i);
+      north1.add(high).intoArray(fine, i+kLength);
+      south0.add(low).intoArray(fine, i+s);
+      south1.add(high).intoArray(fine, i+s+kLength);
+    }
+
+    if ( n < num ) {
+      super.correctRow(coarse, k, fine, i, fineStride, num-n, layers,
+                       factor);
+    }
+
+  } // correctRow()
+
+  // sum of a run of values (see FlowKernel)
+  @Override
+  public float sum(float data[], int start, int num, int step) {
+
+    if ( step != 1 ) return super.sum(data, start, num, step);
+
+    FloatVector total = FloatVector.zero(kSpecies);
+    int n = 0;
+    for ( ; n + kLength <= num ; n += kLength ) {
+      total = total.add(FloatVector.fromArray(kSpecies, data, start+n));
+    }
+    return total.reduceLanes(VectorOperators.ADD)
+           + super.sum(data, start+n, num-n, 1);
+
+  } // sum()
+
+  // add a value to a run of values (see FlowKernel)
+  @Override
+  public void add(float data[], int start, int num, int step, float value) {
+
+    if ( step != 1 ) {
+      super.add(data, start, num, step, value);
+      return;
+    }
+
+    int n = 0;
+    for ( ; n + kLength <= num ; n += kLength ) {
+      FloatVector.fromArray(kSpecies, data, start+n).add(value)
+                 .intoArray(data, start+n);
+    }
+    super.add(data, start+n, num-n, 1, value);
+
+  } // add()
+
+} // class VectorFlowKernel
@@ -0,0 +1,84 @@
+/*
+ *  DesktopFlowKernel.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import java.util.Random;
+
+// chooses the fastest flow solver kernel that works on this machine
+// (VectorFlowKernel is compiled separately and is only present if the JDK
+// supports it, and it only runs if the jdk.incubator.vector module has
+// been added, so it is loaded by name and checked before it is used)
+public class DesktopFlowKernel {
+
+  // name of the SIMD version of the kernel
+  static private final String kVectorKernelClass
+                                      = "com.dishmoth.floxels.VectorFlowKernel";
+
+  // system property that can be set to "false" to avoid the SIMD version
+  static private final String kVectorProperty = "floxels.vector";
+
+  // size of the rows used to check the kernel's results
+  static private final int kTestSize = 37;
+
+  // the SIMD kernel if it is available, or otherwise the plain version
+  static public FlowKernel create() {
+
+    FlowKernel scalar = new FlowKernel();
+    if ( "false".equals(System.getProperty(kVectorProperty)) ) return scalar;
+
+    try {
+      Class<?> c = Class.forName(kVectorKernelClass);
+      FlowKernel kernel = (FlowKernel)c.getConstructor().newInstance();
+      if ( matches(kernel, scalar) ) return kernel;
+    } catch ( Exception | LinkageError ex ) {
+      // not compiled, module not added, or vectors too short
+    }
+    // (a kernel that gives different results is not used either)
+    return scalar;
+
+  } // create()
+
+  // check that a kernel gives the same results as the plain version
+  static private boolean matches(FlowKernel kernel, FlowKernel scalar) {
+
+    final int s = kTestSize,
+              n = 3*s;
+    Random random = new Random(1);
+    float test[][] = new float[8][n],
+          check[][] = new float[8][n];
+    for ( int a = 0 ; a < test.length ; a++ ) {
+      for ( int i = 0 ; i < n ; i++ ) {
+        test[a][i] = check[a][i] = random.nextFloat() - 0.5f;
+      }
+    }
+
+    for ( int pass = 0 ; pass < 2 ; pass++ ) {
+      FlowKernel k = ( pass == 0 ) ? kernel : scalar;
+      float t[][] = ( pass == 0 ) ? test : check;
+      k.smoothRow(t[0], t[1], t[2], t[3], t[4], t[5], t[6], t[7],
+                  0.25f, s+1, 2*s-2, s);
+      k.smoothRowLayers(t[1], t[0], t[2], t[3], t[4], t[5], t[6], t[7],
+                        0.25f, s/2+1, s-2, s, 2);
+      k.restrictRow(t[1], 1, s, t[2], 2, s/2 - 2, 1);
+      k.prolongateRow(t[3], 3, t[4], 1, s, s/2 - 2, 1);
+      k.correctRow(t[5], 4, t[6], 1, s, s/2 - 2, 1, 0.9f);
+      k.restrictRow(t[2], 2, s, t[3], 1, s/4 - 1, 2);
+      k.prolongateRow(t[4], 2, t[5], 3, s, s/4 - 1, 2);
+      k.correctRow(t[6], 1, t[0], 2, s, s/4 - 1, 2, 0.9f);
+      k.add(t[7], 2, n-4, 1, k.sum(t[7], 1, n-2, 1)/n);
+    }
+
+    for ( int a = 0 ; a < test.length ; a++ ) {
+      for ( int i = 0 ; i < n ; i++ ) {
+        if ( Math.abs(test[a][i] - check[a][i]) > 1.0e-5f ) return false;
+      }
+    }
+    return true;
+
+  } // matches()
+
+} // class DesktopFlowKernel
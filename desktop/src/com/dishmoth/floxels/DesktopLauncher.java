@@ -18,6 +18,12 @@ public class DesktopLauncher {
         final float scale = 0.85f;
         final int size = 10*Math.round(scale*Math.min(dm.width,dm.height)/10);
 	  
+        // (run with -Dfloxels.capacity=N to allow more floxels; smaller
+        // values are ignored, since the game needs at least the default)
+        final int capacity = Integer.getInteger("floxels.capacity",
+                                                Env.maxFloxels());
+        Env.setMaxFloxels(Math.max(capacity, Env.maxFloxels()));
+
         Lwjgl3ApplicationConfiguration config = new Lwjgl3ApplicationConfiguration();
         config.setForegroundFPS(60);
         config.setTitle("Floxels");
@@ -25,6 +31,7 @@ public class DesktopLauncher {
         config.setResizable(false);
         config.setWindowIcon(FileType.Internal, "DesktopIcon128.png",
                   "DesktopIcon32.png", "DesktopIcon16.png");
-        new Lwjgl3Application(new FloxelsGame(), config);
+        new Lwjgl3Application(new FloxelsGame(new ForkJoinTaskRunner(),
+                                                DesktopFlowKernel.create()), config);
 	}
 }
@@ -0,0 +1,104 @@
+/*
+ *  FlowGridCheck.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import java.util.Arrays;
+
+// check that tiled grids with several layers grow correctly
+// (a large grid is refined everywhere, so its tile pool must grow well past
+// the first allocation; the flows are solved once on their own and once
+// as layers of a shared solver, and the velocities must match exactly)
+public class FlowGridCheck {
+
+  // base grid size (big enough for tiled storage) and refinement level
+  static private final int kBaseSize    = 20,
+                           kRefineLevel = 4;
+
+  // numbers of layers to check
+  static private final int kNumLayers[] = { 1, 2, 3 };
+
+  // solver cycles to run
+  static private final int kNumSolves = 3;
+
+  // main
+  public static void main(String[] arg) {
+
+    float expected[] = null;
+    boolean ok = true;
+    for ( int numLayers : kNumLayers ) {
+      FlowSet flowSet = makeFlowSet(numLayers);
+      for ( int n = 0 ; n < kNumSolves ; n++ ) flowSet.solve();
+
+      boolean same = true;
+      for ( int layer = 0 ; layer < numLayers ; layer++ ) {
+        final float vel[] = velocities(flowSet.flow(layer));
+        if ( expected == null ) expected = vel;
+        same = same && Arrays.equals(vel, expected);
+      }
+      System.out.println(numLayers + " layer(s): "
+                         + ( same ? "ok" : "DIFFERENT" ));
+      ok = ok && same;
+    }
+    if ( !ok ) System.exit(1);
+
+  } // main()
+
+  // flows with closed outer walls and the same sources in each layer,
+  // refined everywhere
+  static private FlowSet makeFlowSet(int numLayers) {
+
+    FlowSet flowSet = new FlowSet(numLayers, kBaseSize, kBaseSize,
+                                  kRefineLevel);
+    flowSet.setWarmStart(true);
+
+    final float inFlow = VentControl.inFlowDefault();
+    for ( Flow flow : flowSet.flows() ) {
+      float walls[][][] = flow.walls();
+      for ( int iy = 0 ; iy < kBaseSize ; iy++ ) {
+        walls[iy][0][Env.WEST] = inFlow;
+        walls[iy][kBaseSize-1][Env.EAST] = inFlow;
+      }
+      for ( int ix = 0 ; ix < kBaseSize ; ix++ ) {
+        walls[0][ix][Env.NORTH] = inFlow;
+        walls[kBaseSize-1][ix][Env.SOUTH] = inFlow;
+      }
+    }
+    flowSet.reset();
+
+    for ( Flow flow : flowSet.flows() ) {
+      flow.resetDesiredSolutionLevel(kRefineLevel);
+      flow.clearSource();
+      for ( int iy = 0 ; iy < flow.topYSize() ; iy += 4 ) {
+        for ( int ix = 0 ; ix < flow.topXSize() ; ix += 4 ) {
+          flow.addToSource(ix, iy, (ix + iy)%5 - 2);
+        }
+      }
+    }
+    return flowSet;
+
+  } // makeFlowSet()
+
+  // the flow's velocities at a spread of positions
+  static private float[] velocities(Flow flow) {
+
+    final int num = 2*kBaseSize;
+    float values[] = new float[2*num*num];
+    Flow.Vel vel = new Flow.Vel();
+    int k = 0;
+    for ( int iy = 0 ; iy < num ; iy++ ) {
+      for ( int ix = 0 ; ix < num ; ix++ ) {
+        flow.getVelocity((ix + 0.5f)*kBaseSize/num,
+                         (iy + 0.5f)*kBaseSize/num, vel);
+        values[k++] = vel.x;
+        values[k++] = vel.y;
+      }
+    }
+    return values;
+
+  } // velocities()
+
+} // class FlowGridCheck
@@ -0,0 +1,215 @@
+/*
+ *  FlowSolverBenchmark.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import java.util.Random;
+
+// compare the flow solvers on every maze (accuracy and time per tick)
+// (each solver gets the same moving blobs of source, with the desired
+// solution levels set where the source is, as in the game; accuracy is
+// the velocity error where the solution is wanted, relative to a solution
+// that has been converged to much greater accuracy)
+public class FlowSolverBenchmark {
+
+  // tile layouts to run (see Mazes)
+  static private final int kLayouts[][] = { {10,10}, {11,9}, {12,8} };
+
+  // refinement level of the flows (as in FloxelsStory)
+  static private final int kRefineLevel = 4;
+
+  // ticks per maze, and how many of those are ignored at the start
+  static private final int kNumTicks  = 60,
+                           kNumWarmUp = 10;
+
+  // cycles used to converge the reference solution each tick
+  static private final int kNumReferenceCycles = 20;
+
+  // moving blobs of floxels (number, floxels per blob, speed and size)
+  static private final int   kNumBlobs        = 6,
+                             kFloxelsPerBlob  = 100;
+  static private final float kBlobSpeed       = 0.03f,
+                             kBlobRadius      = 0.6f;
+
+  // source terms for the floxels (as in Floxels.defineFlockingSources())
+  static private final float kAttractionStrength = 0.3f,
+                             kRepulsionStrength  = 3.0f;
+
+  // names of the solvers (see makeSolver())
+  static private final String kSolverNames[] = { "multigrid",
+                                                 "conj-grad",
+                                                 "cosine" };
+
+  // a solver is only picked if its error is within this factor of the
+  // multigrid's error
+  static private final float kErrorAllowance = 1.1f;
+
+  // main
+  public static void main(String[] arg) {
+
+    Env.setFlowKernel(DesktopFlowKernel.create());
+    System.out.println("Flow kernel: " + Env.flowKernel().name());
+
+    System.out.print("layout maze ");
+    for ( String name : kSolverNames ) {
+      System.out.printf(" | %-9s  error    ms", name);
+    }
+    System.out.println(" | fastest");
+
+    for ( int layout[] : kLayouts ) {
+      Env.setTilesXY(layout[0], layout[1]);
+      for ( int index = -1 ; index < Mazes.numMazes() ; index++ ) {
+        runMaze(index);
+      }
+    }
+
+  } // main()
+
+  // make a solver for a flow
+  static private PoissonSolver makeSolver(int type, Flow flow) {
+
+    switch ( type ) {
+      case 0:  return new MultigridSolver(flow).layer(0);
+      case 1:  return new ConjugateGradientSolver(flow);
+      default: return new CosineTransformSolver(flow);
+    }
+
+  } // makeSolver()
+
+  // run all the solvers on one maze (index -1 is the title maze)
+  static private void runMaze(int index) {
+
+    final MazeData maze = Mazes.get(index);
+    final int numSolvers = kSolverNames.length;
+
+    Flow flows[] = new Flow[numSolvers];
+    for ( int k = 0 ; k < numSolvers ; k++ ) {
+      flows[k] = makeFlow(maze);
+      flows[k].setSolver(makeSolver(k, flows[k]));
+    }
+    Flow reference = makeFlow(maze);
+    reference.setSolver(new ConjugateGradientSolver(reference));
+
+    double errors[] = new double[numSolvers];
+    long   nanos[]  = new long[numSolvers];
+
+    for ( int tick = 0 ; tick < kNumTicks ; tick++ ) {
+      setSources(reference, tick, index);
+      for ( int n = 0 ; n < kNumReferenceCycles ; n++ ) reference.solve();
+
+      for ( int k = 0 ; k < numSolvers ; k++ ) {
+        setSources(flows[k], tick, index);
+        final long start = System.nanoTime();
+        flows[k].solve();
+        final long time = System.nanoTime() - start;
+        if ( tick >= kNumWarmUp ) {
+          nanos[k] += time;
+          errors[k] += velocityError(flows[k], reference);
+        }
+      }
+    }
+
+    final int num = kNumTicks - kNumWarmUp;
+    System.out.printf("%2dx%-2d  %4d ",
+                      Env.numTilesX(), Env.numTilesY(), index);
+    int fastest = 0;
+    for ( int k = 0 ; k < numSolvers ; k++ ) {
+      errors[k] /= num;
+      nanos[k] /= num;
+      System.out.printf(" | %9s %7.4f %5.2f",
+                        "", errors[k], nanos[k]*1.0e-6);
+      if ( errors[k] <= kErrorAllowance*errors[0] &&
+           nanos[k] < nanos[fastest] ) fastest = k;
+    }
+    System.out.println(" | " + kSolverNames[fastest]);
+
+  } // runMaze()
+
+  // make a flow for a maze (as in FloxelsStory)
+  static private Flow makeFlow(MazeData maze) {
+
+    Flow flow = new Flow(Env.numTilesX(), Env.numTilesY(), kRefineLevel);
+    flow.setWarmStart(true);
+    flow.setWalls(maze, VentControl.inFlowDefault());
+    return flow;
+
+  } // makeFlow()
+
+  // fill the source term for moving blobs of floxels, and set the desired
+  // solution levels where the floxels are (as in Floxels)
+  static private void setSources(Flow flow, int tick, long seed) {
+
+    final int factor  = flow.refineFactor(),
+              subSize = factor/2;
+    Random random = new Random(seed);
+
+    float xs[] = new float[kNumBlobs*kFloxelsPerBlob],
+          ys[] = new float[kNumBlobs*kFloxelsPerBlob];
+    for ( int b = 0, k = 0 ; b < kNumBlobs ; b++ ) {
+      final float x0 = random.nextFloat()*flow.baseXSize(),
+                  y0 = random.nextFloat()*flow.baseYSize(),
+                  vx = kBlobSpeed*(random.nextFloat() - 0.5f),
+                  vy = kBlobSpeed*(random.nextFloat() - 0.5f);
+      final float x = Env.fold(x0 + vx*tick, flow.baseXSize()),
+                  y = Env.fold(y0 + vy*tick, flow.baseYSize());
+      for ( int p = 0 ; p < kFloxelsPerBlob ; p++, k++ ) {
+        final float px = x + kBlobRadius*(2*random.nextFloat() - 1),
+                    py = y + kBlobRadius*(2*random.nextFloat() - 1);
+        xs[k] = Math.max(0.01f, Math.min(flow.baseXSize()-0.01f, px));
+        ys[k] = Math.max(0.01f, Math.min(flow.baseYSize()-0.01f, py));
+      }
+    }
+
+    flow.clearSource();
+    flow.resetDesiredSolutionLevel(0);
+    for ( int k = 0 ; k < xs.length ; k++ ) {
+      final int kx = subSize*(int)(xs[k]*2),
+                ky = subSize*(int)(ys[k]*2);
+      if ( flow.source(kx, ky) == 0.0f ) {
+        for ( int dy = 0 ; dy < subSize ; dy++ ) {
+          for ( int dx = 0 ; dx < subSize ; dx++ ) {
+            flow.addToSource(kx+dx, ky+dy, -kAttractionStrength);
+          }
+        }
+      }
+      flow.setDesiredSolutionLevel((int)xs[k], (int)ys[k], 
+                                   flow.refineLevel());
+    }
+    for ( int k = 0 ; k < xs.length ; k++ ) {
+      flow.addToSource((int)(xs[k]*factor), (int)(ys[k]*factor),
+                       kRepulsionStrength);
+    }
+
+  } // setSources()
+
+  // relative error in the velocities where the solution is wanted
+  static private double velocityError(Flow flow, Flow reference) {
+
+    final int factor = flow.refineFactor();
+    final int desired[][] = flow.desiredSolutionLevel();
+    Flow.Vel vel = new Flow.Vel(),
+             refVel = new Flow.Vel();
+
+    double sumErr = 0.0,
+           sumRef = 0.0;
+    for ( int iy = 0 ; iy < flow.topYSize() ; iy++ ) {
+      for ( int ix = 0 ; ix < flow.topXSize() ; ix++ ) {
+        if ( desired[iy/factor][ix/factor] < flow.refineLevel() ) continue;
+        final float x = (ix + 0.5f)/factor,
+                    y = (iy + 0.5f)/factor;
+        flow.getVelocity(x, y, vel);
+        reference.getVelocity(x, y, refVel);
+        final double dx = vel.x - refVel.x,
+                     dy = vel.y - refVel.y;
+        sumErr += dx*dx + dy*dy;
+        sumRef += refVel.x*refVel.x + refVel.y*refVel.y;
+      }
+    }
+    return ( sumRef > 0.0 ) ? Math.sqrt(sumErr/sumRef) : 0.0;
+
+  } // velocityError()
+
+} // class FlowSolverBenchmark
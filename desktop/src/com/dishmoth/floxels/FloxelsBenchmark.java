@@ -0,0 +1,142 @@
+/*
+ *  FloxelsBenchmark.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import java.util.LinkedList;
+
+// time the game tick for increasing numbers of floxels
+// (two populations hunt each other in the first maze, with the flows built
+// and solved as in FloxelsStory; the time is split between the source
+// terms, the flow solve and the floxels' advance; the floxels' source
+// terms are added for all of the types in one go, or for each type in its
+// own task, and the floxels are moved in turn, then in parallel chunks;
+// FloxelsStory uses the tasks and the chunks when there are threads)
+// (drawing is not included, since it needs the game's window: run the
+// game with -Dfloxels.capacity=N and the debug log reports the time spent
+// drawing each frame, see TimingStats; the sprite batch holds at most 8191
+// sprites, see FloxelsGame, so 100k floxels are drawn in about 13 parts)
+public class FloxelsBenchmark {
+
+  // floxel capacities to try (each split evenly between the two types)
+  static private final int kNumFloxels[] = { 1000, 3000, 10000,
+                                             30000, 100000 };
+
+  // whether the source terms are added in a task for each type
+  // (see FloxelsStory.updateFlows())
+  static private final boolean kSourceTasks[] = { false, true };
+
+  // numbers of chunks for moving the floxels (see Floxels.setMoveChunks())
+  static private final int kMoveChunks[] = { 0, 8 };
+
+  // refinement level of the flows (as in FloxelsStory)
+  static private final int kRefineLevel = 4;
+
+  // solver settings (as in FloxelsStory when the flows are not pipelined;
+  // a fixed number of cycles means that every run does the same work)
+  static private final float kFlowTolerance   = 0.5f;
+  static private final int   kFlowSolveCycles = 2;
+
+  // hunting strengths for the two types (as for the levels of the game)
+  static private final float kHuntStrengths[] = { 1.0f, -0.5f };
+
+  // ticks per run, and how many of those are ignored at the start
+  static private final int kNumTicks  = 200,
+                           kNumWarmUp = 50;
+
+  // main
+  public static void main(String[] arg) {
+
+    Env.initialize();
+    Env.setTilesXY(10, 10);
+    Env.setTaskRunner(new ForkJoinTaskRunner());
+    Env.setFlowKernel(DesktopFlowKernel.create());
+    System.out.println("Flow kernel: " + Env.flowKernel().name()
+                       + ", threads: " + Env.tasks().numThreads());
+
+    System.out.println("  floxels    terms  chunks   sources     solve"
+                       + "   advance     total   (ms per tick, 33.3 for 30Hz)");
+    for ( int num : kNumFloxels ) {
+      for ( boolean tasks : kSourceTasks ) {
+        for ( int chunks : kMoveChunks ) run(num, tasks, chunks);
+      }
+    }
+
+  } // main()
+
+  // time the ticks for one number of floxels
+  static private void run(int numFloxels, boolean sourceTasks, 
+                          int numChunks) {
+
+    FlowSet flowSet = new FlowSet(2, Env.numTilesX(), Env.numTilesY(),
+                                  kRefineLevel);
+    flowSet.setWarmStart(true);
+    flowSet.setFixedCycles(kFlowSolveCycles);
+    Flow flows[] = flowSet.flows();
+    MazeData maze = Mazes.get(0);
+    for ( Flow flow : flows ) prepareFlow(flow, maze);
+    flowSet.reset();
+    flowSet.solve();
+
+    final Floxels floxels = new Floxels(flows, numFloxels);
+    floxels.setMoveChunks(numChunks);
+    floxels.releaseFloxels(0, numFloxels/2, 2.5f, 2.5f, 2.0f);
+    floxels.releaseFloxels(1, numFloxels/2, 7.5f, 7.5f, 2.0f);
+    for ( int type = 0 ; type < 2 ; type++ ) {
+      floxels.setHuntingStrength(type, kHuntStrengths[type]);
+    }
+
+    TaskRunner.Task sourceTask = new TaskRunner.Task() {
+      public void run(int type) {
+        floxels.defineFlockingSources(type);
+        floxels.addHuntingSources(type);
+      }
+    };
+
+    LinkedList<Sprite> addSprites = new LinkedList<Sprite>(),
+                       killSprites = new LinkedList<Sprite>();
+    LinkedList<StoryEvent> events = new LinkedList<StoryEvent>();
+
+    long sourceTime = 0,
+         solveTime = 0,
+         advanceTime = 0;
+    for ( int tick = 0 ; tick < kNumTicks ; tick++ ) {
+      final long t0 = System.nanoTime();
+      if ( sourceTasks ) {
+        Env.tasks().run(sourceTask, 2);
+      } else {
+        floxels.defineFlockingSources();
+        floxels.addHuntingSources();
+      }
+      final long t1 = System.nanoTime();
+      flowSet.solve(kFlowTolerance, 0, null);
+      final long t2 = System.nanoTime();
+      floxels.advance(addSprites, killSprites, events);
+      final long t3 = System.nanoTime();
+      if ( tick >= kNumWarmUp ) {
+        sourceTime += t1 - t0;
+        solveTime += t2 - t1;
+        advanceTime += t3 - t2;
+      }
+    }
+
+    final double scale = 1.0e-6/(kNumTicks - kNumWarmUp);
+    System.out.printf("  %7d  %7s  %6d  %8.2f  %8.2f  %8.2f  %8.2f%n",
+                      numFloxels, ( sourceTasks ? "types" : "all" ), 
+                      numChunks,
+                      sourceTime*scale, solveTime*scale, advanceTime*scale,
+                      (sourceTime + solveTime + advanceTime)*scale);
+
+  } // run()
+
+  // build a flow consistent with the maze (as in FloxelsStory)
+  static private void prepareFlow(Flow flow, MazeData maze) {
+
+    flow.setWalls(maze, VentControl.inFlowDefault());
+
+  } // prepareFlow()
+
+} // class FloxelsBenchmark
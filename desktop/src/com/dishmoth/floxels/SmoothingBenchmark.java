@@ -0,0 +1,167 @@
+/*
+ *  SmoothingBenchmark.java
+ *  Copyright (c) 2016 Simon Hern
+ *  Contact: dishmoth@yahoo.co.uk, dishmoth.com, github.com/dishmoth
+ */
+
+package com.dishmoth.floxels;
+
+import java.util.Random;
+
+// time several smoothing steps on large refined grids, done one step at a
+// time or a tile at a time for various tile sizes (see FlowGrid.smoothTiles())
+// (every block is refined, the walls are random, and the tiled result is
+// checked against the plain one)
+public class SmoothingBenchmark {
+
+  // grids to run (base grid size, refinement level)
+  static private final int kGrids[][] = { {10,4}, {15,4}, {16,4}, {24,4} };
+
+  // numbers of smoothing steps to run in one go
+  static private final int kNumSteps[] = { 2, 4, 8, 20 };
+
+  // tile sizes to try (x, y)
+  static private final int kTileSizes[][] = { {16,16}, {32,8}, {32,32},
+                                              {64,8}, {64,16}, {64,64},
+                                              {128,16}, {256,8} };
+
+  // chance of a wall between two base blocks
+  static private final float kWallChance = 0.3f;
+
+  // repetitions of each measurement, and how many are ignored at the start
+  static private final int kNumRepeats = 40,
+                           kNumWarmUp  = 10;
+
+  // main
+  public static void main(String[] arg) {
+
+    Env.setFlowKernel(DesktopFlowKernel.create());
+    System.out.println("Flow kernel: " + Env.flowKernel().name());
+
+    for ( int grid[] : kGrids ) runGrid(grid[0], grid[1]);
+
+  } // main()
+
+  // time the smoothing for one size of grid
+  static private void runGrid(int baseSize, int refineLevel) {
+
+    Flow flow = makeFlow(baseSize, refineLevel);
+    MultigridSolver solver = new MultigridSolver(flow);
+    flow.setSolver(solver.layer(0));
+    for ( int n = 0 ; n < 3 ; n++ ) flow.solve();
+
+    final FlowGrid grid = solver.topGrid();
+    final float start[] = grid.data().clone();
+    final int size = baseSize << refineLevel;
+    System.out.printf("%dx%d cells:%n", size, size);
+
+    System.out.print("  steps    plain");
+    for ( int tile[] : kTileSizes ) {
+      System.out.printf("  %7s", tile[0] + "x" + tile[1]);
+    }
+    System.out.println("   (ms per step)");
+
+    for ( int numSteps : kNumSteps ) {
+      System.out.printf("  %5d", numSteps);
+
+      System.arraycopy(start, 0, grid.data(), 0, start.length);
+      for ( int n = 0 ; n < numSteps ; n++ ) grid.smoothSolution();
+      final float plain[] = cellValues(grid);
+      System.out.printf("  %7.3f", time(grid, start, numSteps, null));
+
+      for ( int tile[] : kTileSizes ) {
+        System.arraycopy(start, 0, grid.data(), 0, start.length);
+        grid.smoothTiles(numSteps, tile[0], tile[1]);
+        final boolean same = sameValues(cellValues(grid), plain);
+        System.out.printf("  %6.3f%s", time(grid, start, numSteps, tile),
+                          ( same ? " " : "!" ));
+      }
+      System.out.println();
+    }
+    System.out.println("  (! marks a result that differs from plain steps)");
+
+  } // runGrid()
+
+  // average time per step (plain steps if there is no tile size)
+  static private double time(FlowGrid grid, float start[],
+                             int numSteps, int tile[]) {
+
+    long total = 0;
+    for ( int r = 0 ; r < kNumRepeats ; r++ ) {
+      System.arraycopy(start, 0, grid.data(), 0, start.length);
+      final long t0 = System.nanoTime();
+      if ( tile == null ) {
+        for ( int n = 0 ; n < numSteps ; n++ ) grid.smoothSolution();
+      } else {
+        grid.smoothTiles(numSteps, tile[0], tile[1]);
+      }
+      if ( r >= kNumWarmUp ) total += System.nanoTime() - t0;
+    }
+    return total*1.0e-6/((kNumRepeats - kNumWarmUp)*numSteps);
+
+  } // time()
+
+  // the values of the grid's cells (not including any padding)
+  static private float[] cellValues(FlowGrid grid) {
+
+    final int nx = grid.xSize(),
+              ny = grid.ySize();
+    float values[] = new float[nx*ny];
+    for ( int iy = 0 ; iy < ny ; iy++ ) {
+      for ( int ix = 0 ; ix < nx ; ix++ ) {
+        values[iy*nx + ix] = grid.data()[grid.index(ix, iy)];
+      }
+    }
+    return values;
+
+  } // cellValues()
+
+  // whether two sets of values are identical
+  static private boolean sameValues(float a[], float b[]) {
+
+    if ( a.length != b.length ) return false;
+    for ( int k = 0 ; k < a.length ; k++ ) {
+      if ( a[k] != b[k] ) return false;
+    }
+    return true;
+
+  } // sameValues()
+
+  // make a flow with random walls and sources, refined everywhere
+  static private Flow makeFlow(int baseSize, int refineLevel) {
+
+    Random random = new Random(baseSize);
+    final float inFlow = VentControl.inFlowDefault();
+
+    Flow flow = new Flow(baseSize, baseSize, refineLevel);
+    flow.setWarmStart(true);
+
+    float walls[][][] = flow.walls();
+    for ( int iy = 0 ; iy < baseSize ; iy++ ) {
+      for ( int ix = 0 ; ix < baseSize ; ix++ ) {
+        if ( ix == 0 ) walls[iy][ix][Env.WEST] = inFlow;
+        if ( iy == 0 ) walls[iy][ix][Env.NORTH] = inFlow;
+        if ( ix == baseSize-1 || random.nextFloat() < kWallChance ) {
+          walls[iy][ix][Env.EAST] = inFlow;
+          if ( ix < baseSize-1 ) walls[iy][ix+1][Env.WEST] = inFlow;
+        }
+        if ( iy == baseSize-1 || random.nextFloat() < kWallChance ) {
+          walls[iy][ix][Env.SOUTH] = inFlow;
+          if ( iy < baseSize-1 ) walls[iy+1][ix][Env.NORTH] = inFlow;
+        }
+      }
+    }
+
+    final int size = flow.topXSize();
+    flow.clearSource();
+    for ( int k = 0 ; k < size*size/16 ; k++ ) {
+      flow.addToSource(random.nextInt(size), random.nextInt(size),
+                       2*random.nextFloat() - 1);
+    }
+    flow.resetDesiredSolutionLevel(refineLevel);
+
+    return flow;
+
+  } // makeFlow()
+
+} // class SmoothingBenchmark